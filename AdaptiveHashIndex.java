@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * AdaptiveHashIndex is an in-memory hash index over the leaves of a BTreeFile.
+ * It learns the keys which are probed often with equality searches and maps
+ * them directly to the left-most leaf page holding the key, so later probes
+ * skip the descent from the root.
+ * <p>
+ * A key is added once it has been probed a given number of times. Both the
+ * index and the probe counts are capped in size and evict the least recently
+ * used keys. The index is only a hint: the BTreeFile removes the keys of a page
+ * whenever tuples move between pages (split, steal or merge) or the page is
+ * freed, and removes a key whenever a tuple with that key is inserted. A hit
+ * is checked against the leaf before it is used.
+ *
+ * @see BTreeFile#indexIterator(TransactionId, IndexPredicate)
+ */
+public class AdaptiveHashIndex {
+
+	/** Default maximum number of keys in the index */
+	public static final int DEFAULT_CAPACITY = 4096;
+	/** Default number of probes of a key before it is added to the index */
+	public static final int DEFAULT_THRESHOLD = 3;
+
+	private final int capacity;
+	private final int threshold;
+
+	private final LinkedHashMap<Field, BTreePageId> index;
+	private final HashMap<BTreePageId, HashSet<Field>> keysOnPage;
+	private final LinkedHashMap<Field, Integer> probes;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Create an empty adaptive hash index.
+	 * @param capacity - the maximum number of keys in the index
+	 * @param threshold - the number of probes of a key before it is added to the index
+	 */
+	public AdaptiveHashIndex(final int capacity, int threshold) {
+		this.capacity = capacity;
+		this.threshold = threshold;
+		this.keysOnPage = new HashMap<BTreePageId, HashSet<Field>>();
+		this.index = new LinkedHashMap<Field, BTreePageId>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Field, BTreePageId> eldest) {
+				if(size() > AdaptiveHashIndex.this.capacity) {
+					unlink(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		this.probes = new LinkedHashMap<Field, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Field, Integer> eldest) {
+				return size() > AdaptiveHashIndex.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Look up the leaf page holding a key
+	 * @param key - the key searched for
+	 * @return the left-most leaf page holding the key, or null if the key is not
+	 * in the index
+	 */
+	public synchronized BTreePageId lookup(Field key) {
+		BTreePageId pid = index.get(key);
+		if(pid == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+		return pid;
+	}
+
+	/**
+	 * Record an equality probe which found its first match on the given leaf page.
+	 * The key is added to the index once it has been probed often enough.
+	 * @param key - the key searched for
+	 * @param pid - the left-most leaf page holding the key
+	 */
+	public synchronized void recordProbe(Field key, BTreePageId pid) {
+		Integer count = probes.get(key);
+		count = (count == null) ? 1 : count + 1;
+		if(count < threshold) {
+			probes.put(key, count);
+			return;
+		}
+		probes.remove(key);
+		BTreePageId old = index.put(key, pid);
+		if(old != null) {
+			unlink(key, old);
+		}
+		HashSet<Field> keys = keysOnPage.get(pid);
+		if(keys == null) {
+			keys = new HashSet<Field>();
+			keysOnPage.put(pid, keys);
+		}
+		keys.add(key);
+	}
+
+	/**
+	 * Remove a key from the index
+	 * @param key - the key to remove
+	 */
+	public synchronized void invalidateKey(Field key) {
+		BTreePageId pid = index.remove(key);
+		if(pid != null) {
+			unlink(key, pid);
+		}
+	}
+
+	/**
+	 * Remove all the keys mapped to a page from the index
+	 * @param pid - the id of the page whose tuples have moved
+	 */
+	public synchronized void invalidatePage(BTreePageId pid) {
+		HashSet<Field> keys = keysOnPage.remove(pid);
+		if(keys != null) {
+			for(Field key : keys) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove all keys from the index
+	 */
+	public synchronized void clear() {
+		index.clear();
+		keysOnPage.clear();
+		probes.clear();
+	}
+
+	/**
+	 * @return the number of keys in the index
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return the number of lookups which found their key in the index
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups which did not find their key in the index
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Remove a key from the reverse mapping of a page
+	 */
+	private void unlink(Field key, BTreePageId pid) {
+		HashSet<Field> keys = keysOnPage.get(pid);
+		if(keys != null) {
+			keys.remove(key);
+			if(keys.isEmpty()) {
+				keysOnPage.remove(pid);
+			}
+		}
+	}
+}
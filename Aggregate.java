@@ -41,7 +41,13 @@ public class Aggregate extends Operator {
         this.af = afield;
         this.gf = gfield;
         this.operation = aop;
+        newAggregator();
+    }
 
+    /**
+     * Create the aggregator for the types of the fields of the child.
+     */
+    private void newAggregator() {
         Type gbFieldType, aFieldType = node.getTupleDesc().getFieldType(af);
 
         if (gf == Aggregator.NO_GROUPING){
@@ -155,7 +161,7 @@ public class Aggregate extends Operator {
         Type[] typeArray;
         String[] stringArray;
 
-        if (af == Aggregator.NO_GROUPING){
+        if (gf == Aggregator.NO_GROUPING){
             typeArray = new Type[1];
             typeArray[0] = node.getTupleDesc().getFieldType(af);
             stringArray = new String[1];
@@ -193,8 +199,8 @@ public class Aggregate extends Operator {
     @Override
     public void setChildren(DbIterator[] children) {
 
-        if (this.node != children[0]){
-            this.node = children[0];
-        }
+        // the types of the child's fields may have changed below it
+        this.node = children[0];
+        newAggregator();
     }
 }
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeCompactor rewrites the leaves of a BTreeFile, in key order, into
+ * densely packed leaves on consecutive pages of the file, so that scans of the
+ * tree read the file sequentially again after deletes have left the leaves
+ * half full and splits and merges have scattered them across the file.
+ * <p>
+ * The compaction runs online, in steps. Each step rewrites at most
+ * pagesPerStep leaves with the same parent, fetching the pages it touches
+ * through the BufferPool with read-write permission as an insert would, so
+ * the tree stays usable between steps. A pass over the whole tree is a
+ * sequence of steps from the leftmost leaf to the rightmost.
+ *
+ * @see BTreeFile#rewriteLeaves
+ */
+public class BTreeCompactor {
+
+	/** Default number of leaves rewritten by one step */
+	public static final int DEFAULT_PAGES_PER_STEP = 16;
+
+	private final BTreeFile file;
+	private final int pagesPerStep;
+	private BTreePageId lastLeaf; // the last leaf written by the previous step
+	private boolean done;
+
+	/**
+	 * Create a compactor, ready to start a pass over the tree.
+	 * @param file - the tree to compact
+	 * @param pagesPerStep - the most leaves to rewrite in one step
+	 */
+	public BTreeCompactor(BTreeFile file, int pagesPerStep) {
+		if(pagesPerStep < 1) {
+			throw new IllegalArgumentException("a step must rewrite at least one page");
+		}
+		this.file = file;
+		this.pagesPerStep = pagesPerStep;
+	}
+
+	public BTreeCompactor(BTreeFile file) {
+		this(file, DEFAULT_PAGES_PER_STEP);
+	}
+
+	/**
+	 * @return true if the current pass has reached the rightmost leaf
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Start a new pass from the leftmost leaf
+	 */
+	public void reset() {
+		lastLeaf = null;
+		done = false;
+	}
+
+	/**
+	 * Rewrite the next run of leaves of the pass. The leaves are written
+	 * right after the ones of the previous step if those pages are free.
+	 * @param tid - the transaction the step runs in
+	 * @return true if the pass is done
+	 */
+	public boolean step(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		if(done) {
+			return true;
+		}
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage first;
+		int targetPage;
+		if(lastLeaf == null) {
+			BTreeRootPtrPage rootPtr = file.getRootPtrPage(tid, dirtypages);
+			if(rootPtr.getRootId() == null) {
+				done = true;
+				return true;
+			}
+			first = leftmostLeaf(tid, dirtypages, rootPtr.getRootId());
+			targetPage = 0;
+		}
+		else {
+			// tuples inserted since the previous step may have split the last
+			// leaf; its new right siblings are rewritten by this step
+			BTreeLeafPage last = (BTreeLeafPage) file.getPage(tid, dirtypages, lastLeaf, Permissions.READ_ONLY);
+			if(last.getRightSiblingId() == null) {
+				done = true;
+				return true;
+			}
+			first = (BTreeLeafPage) file.getPage(tid, dirtypages, last.getRightSiblingId(), Permissions.READ_WRITE);
+			targetPage = lastLeaf.pageNumber() + 1;
+		}
+
+		BTreeLeafPage written = file.rewriteLeaves(tid, dirtypages, first, pagesPerStep, targetPage);
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+		lastLeaf = written.getId();
+		done = written.getRightSiblingId() == null;
+		return done;
+	}
+
+	/**
+	 * Run a whole pass, one step after the other
+	 * @param tid - the transaction the steps run in
+	 */
+	public void run(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		reset();
+		while(!step(tid)) {
+		}
+	}
+
+	private BTreeLeafPage leftmostLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) file.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+		}
+		return (BTreeLeafPage) file.getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+	}
+}
@@ -25,6 +25,21 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private int[] keyFields; // keyFields[0] == keyField
+	private boolean compactKeys;
+	private final AdaptiveHashIndex hashIndex = new AdaptiveHashIndex(
+			AdaptiveHashIndex.DEFAULT_CAPACITY, AdaptiveHashIndex.DEFAULT_THRESHOLD);
+	private volatile PageBloomFilters leafFilters = null; // null unless enabled
+	private final PageChecksums checksums; // the CRC32C of each page, in a side file
+
+	/** Number of pages the file grows by when no page is free */
+	public static final int EXTENT_PAGES = 64;
+
+	// cached copy of the header pages, loaded at the first page allocation:
+	// bit i of freePages is set if page i is free
+	private ArrayList<BTreePageId> headerIds = null;
+	private long[] freePages = null;
+	private int freeHint; // no word of freePages before this one has a free page
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -35,10 +50,82 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on an ordered list of fields. Tuples are
+	 * sorted lexicographically on the key fields, and the keys stored in internal
+	 * pages are CompositeFields holding all the key fields. An existing file is
+	 * opened in the format of internal pages recorded in its root pointer page.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in key order
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @see CompositeField
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, storedCompactKeys(f));
+	}
+
+	/**
+	 * Constructs a B+ tree file, optionally storing its internal pages in the compact
+	 * key format. With compact keys, the separator keys copied up into the internal
+	 * pages are truncated to the shortest prefix which separates the two leaves, and
+	 * are stored without padding, so string-keyed trees have a much higher fanout.
+	 * Files with compact keys must not be built with BTreeFileEncoder, which writes
+	 * internal pages in the fixed-size format. The format is recorded in the root
+	 * pointer page when the file is created.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in key order
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param compactKeys - whether to truncate separators and store them compactly
+	 * @throws IllegalArgumentException if the file exists and its internal pages
+	 *         are in the other format
+	 * @see BTreeInternalPage#BTreeInternalPage(BTreePageId, byte[], int[], boolean)
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean compactKeys) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
+		this.compactKeys = compactKeys;
 		this.td = td;
+		this.checksums = new PageChecksums(f);
+		if(f.length() >= BTreeRootPtrPage.getPageSize() && storedCompactKeys(f) != compactKeys) {
+			throw new IllegalArgumentException("BTreeFile " + f + " was written "
+					+ (compactKeys ? "without" : "with") + " compact keys");
+		}
+	}
+
+	/**
+	 * Read the format of the internal pages of an existing file from its
+	 * root pointer page
+	 * @return true if the file stores compact keys, false if it does not or
+	 *         has no root pointer page yet
+	 */
+	private static boolean storedCompactKeys(File f) {
+		if(f.length() < BTreeRootPtrPage.getPageSize()) {
+			return false;
+		}
+		byte[] data = new byte[BTreeRootPtrPage.getPageSize()];
+		try {
+			RandomAccessFile rf = new RandomAccessFile(f, "r");
+			try {
+				rf.readFully(data);
+			} finally {
+				rf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("unable to read the root pointer page of " + f, e);
+		}
+		return BTreeRootPtrPage.hasCompactKeys(data);
 	}
 
 	/**
@@ -79,64 +166,71 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
-
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
+			byte pageBuf[] = readPageData(id.pageNumber());
+			if(!checksums.matches(id.pageNumber(), pageBuf)) {
+				throw new IllegalArgumentException("Checksum mismatch on page "
+						+ id.pageNumber() + " of BTreeFile " + f);
+			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return new BTreeRootPtrPage(id, pageBuf);
 			}
-			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+			else if(id.pgcateg() == BTreePageId.INTERNAL) {
+				return new BTreeInternalPage(id, pageBuf, keyFields, compactKeys);
+			}
+			else if(id.pgcateg() == BTreePageId.LEAF) {
+				return new BTreeLeafPage(id, pageBuf, keyFields);
+			}
+			else { // id.pgcateg() == BTreePageId.HEADER
+				return new BTreeHeaderPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
+		}
+	}
+
+	/**
+	 * Read the bytes of a page from the file on disk. Page 0 is the root
+	 * pointer page, which is smaller than the other pages.
+	 */
+	private byte[] readPageData(int pageNo) throws IOException {
+		int size = pageNo == 0 ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+		long offset = pageOffset(pageNo);
+		byte pageBuf[] = new byte[size];
+		RandomAccessFile rf = new RandomAccessFile(f, "r");
+		try {
+			if(offset >= rf.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			if(offset + size > rf.length()) {
+				throw new IllegalArgumentException("Unable to read "
+						+ size + " bytes from BTreeFile");
 			}
+			rf.seek(offset);
+			rf.readFully(pageBuf);
+		} finally {
+			rf.close();
 		}
+		return pageBuf;
+	}
+
+	/**
+	 * @return the offset of a page in the file
+	 */
+	private static long pageOffset(int pageNo) {
+		return pageNo == 0 ? 0 : BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Check the bytes of a page on disk against their checksum, without going
+	 * through the BufferPool.
+	 * 
+	 * @param pageNo - the number of the page, 0 for the root pointer page
+	 * @return false if the page has a checksum which its bytes do not match
+	 */
+	public boolean verifyPage(int pageNo) throws IOException {
+		return checksums.matches(pageNo, readPageData(pageNo));
 	}
 
 	/**
@@ -146,19 +240,24 @@ public class BTreeFile implements DbFile {
 	 * @param page - the page to write to disk
 	 */
 	public void writePage(Page page) throws IOException {
-		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
+		writePageData(page.getId().pageNumber(), page.getPageData());
+	}
+
+	/**
+	 * Write the bytes of a page at its place in the file, with its checksum
+	 */
+	private void writePageData(int pageNo, byte[] data) throws IOException {
+		checksums.beforeWrite(pageNo);
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
+		try {
+			rf.seek(pageOffset(pageNo));
 			rf.write(data);
+			// the new checksum may only be recorded once the page is on disk
+			rf.getFD().sync();
+		} finally {
 			rf.close();
 		}
+		checksums.afterWrite(pageNo, data);
 	}
 	
 	/**
@@ -176,6 +275,160 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the fields that this B+ tree is keyed on, in key order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree
+	 * @param t - the tuple
+	 * @return the key field of the tuple, or a CompositeField if the tree is keyed
+	 * on more than one field
+	 */
+	public Field getKey(Tuple t) {
+		return CompositeField.keyOf(t, keyFields);
+	}
+
+	/**
+	 * Returns the adaptive hash index used to speed up equality searches on this B+ tree
+	 */
+	public AdaptiveHashIndex getAdaptiveHashIndex() {
+		return hashIndex;
+	}
+
+	/**
+	 * Enable or disable the bloom filters over the keys of each leaf page. Equality
+	 * searches for a full key check the filter of the leaf where the key would be
+	 * before reading the leaf, so searches for absent keys usually read no leaf.
+	 * The filter of a leaf is built the first time an equality search reads it, and
+	 * is dropped whenever tuples move into the leaf by a split, steal or merge.
+	 * @param enabled - whether to keep leaf filters
+	 */
+	public void setLeafFilters(boolean enabled) {
+		leafFilters = enabled ? new PageBloomFilters(1) : null;
+	}
+
+	/**
+	 * Returns the bloom filters over the keys of each leaf page, or null if they are
+	 * not enabled
+	 */
+	public PageBloomFilters getLeafFilters() {
+		return leafFilters;
+	}
+
+	/**
+	 * Build the bloom filter of a leaf page from its tuples, if leaf filters are
+	 * enabled and the page has no filter yet
+	 * @param page - the leaf page
+	 */
+	void buildLeafFilter(BTreeLeafPage page) {
+		PageBloomFilters filters = leafFilters;
+		int pageNo = page.getId().pageNumber();
+		if(filters == null || filters.hasFilter(pageNo)) {
+			return;
+		}
+		filters.create(pageNo, page.getMaxTuples());
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			filters.add(pageNo, getKey(it.next()));
+		}
+	}
+
+	/**
+	 * Check whether the leaf filters show that no tuple has the given key, without
+	 * reading any leaf page. Descends the internal pages like findLeafPage to the
+	 * left-most leaf which may hold the key; tuples with the key may only be found
+	 * further right if the key equals the separator bounding that leaf.
+	 * @param tid - the transaction id
+	 * @param pid - the root of the tree
+	 * @param key - a full key of this tree
+	 * @return true if the key is definitely absent
+	 */
+	boolean isKeyAbsent(TransactionId tid, BTreePageId pid, Field key)
+			throws DbException, TransactionAbortedException {
+		PageBloomFilters filters = leafFilters;
+		if(filters == null) {
+			return false;
+		}
+		Field upper = null;
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage pg = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = pg.iterator();
+			BTreeEntry node = it.next();
+			BTreeEntry next = null;
+			while(it.hasNext()) {
+				next = it.next();
+				if(next.getKey().compare(Op.LESS_THAN, key)) {
+					node = next;
+					next = null;
+				}
+				else {
+					break;
+				}
+			}
+			if(key.compare(Op.GREATER_THAN, node.getKey())) {
+				pid = node.getRightChild();
+				if(next != null) {
+					upper = next.getKey();
+				}
+			}
+			else {
+				pid = node.getLeftChild();
+				upper = node.getKey();
+			}
+		}
+		return !filters.mightContain(pid.pageNumber(), key)
+				&& (upper == null || key.compare(Op.LESS_THAN, upper));
+	}
+
+	/**
+	 * Forget what the adaptive hash index and the leaf filters know about a page,
+	 * because tuples are about to move between it and other pages
+	 * @param pid - the id of the page
+	 */
+	private void invalidatePage(BTreePageId pid) {
+		hashIndex.invalidatePage(pid);
+		PageBloomFilters filters = leafFilters;
+		if(filters != null) {
+			filters.invalidate(pid.pageNumber());
+		}
+	}
+
+	/**
+	 * Remove a key, and all of its prefixes if the key is composite, from the
+	 * adaptive hash index. Called before a tuple with the key is inserted, since
+	 * the new tuple may become the left-most tuple with that key (or prefix).
+	 * @param key - the key of the tuple
+	 */
+	private void invalidateKey(Field key) {
+		if(key instanceof CompositeField) {
+			CompositeField ck = (CompositeField) key;
+			for(int i = 1; i <= ck.numFields(); i++) {
+				hashIndex.invalidateKey(ck.prefix(i));
+			}
+		}
+		else {
+			hashIndex.invalidateKey(key);
+		}
+	}
+
+	/**
+	 * Convert a search value into the form of the keys of this B+ tree. A single
+	 * field searched in a tree with a composite key is treated as a one-field prefix
+	 * of the key.
+	 * @param f - the search value
+	 * @return the search value as a key of this tree
+	 */
+	Field toKey(Field f) {
+		if(keyFields.length > 1 && f != null && !(f instanceof CompositeField)) {
+			return new CompositeField(new Field[] { f });
+		}
+		return f;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -227,12 +480,13 @@ public class BTreeFile implements DbFile {
 			}
 		}
 
-		// branch off into the node's children...
-		boolean branch = f.compare(Op.GREATER_THAN_OR_EQ, node.getKey());
+		// branch off into the node's children... keys equal to the separator may be
+		// found in the left child (e.g. duplicates, or a prefix of a composite key)
+		boolean branch = f.compare(Op.GREATER_THAN, node.getKey());
 		BTreePageId child;
-		if (branch){ // >=
+		if (branch){ // >
 			child = node.getRightChild();
-		} else{ // <
+		} else{ // <=
 			child = node.getLeftChild();
 		}
 
@@ -258,6 +512,69 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the right-most page possibly containing a key less than or equal to the key field f.
+	 * It locks all internal nodes along the path to the leaf node with READ_ONLY permission,
+	 * and locks the leaf node with permission perm.
+	 * 
+	 * If f is null, it finds the right-most leaf page -- used for the reverse iterator
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the right-most leaf page possibly containing a key less than or equal to f
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 */
+	private BTreeLeafPage findLastLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, 
+			Permissions perm, Field f) 
+					throws DbException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
+		}
+
+		BTreeInternalPage pg = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, perm);
+		Iterator<BTreeEntry> it = pg.reverseIterator();
+		if(!it.hasNext()) {
+			throw new DbException("Empty internal page!");
+		}
+
+		// follow the right child of the last entry with a key less than or equal to f,
+		// or the left child of the first entry if there is none
+		BTreePageId child = null;
+		BTreeEntry e = null;
+		while(child == null && it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.GREATER_THAN_OR_EQ, e.getKey())) {
+				child = e.getRightChild();
+			}
+		}
+		if(child == null) {
+			child = e.getLeftChild();
+		}
+
+		return this.findLastLeafPage(tid, dirtypages, child, perm, f);
+	}
+
+	/**
+	 * Convenience method to find the right-most leaf page possibly containing a key less
+	 * than or equal to f when there is no dirtypages HashMap. Used by the reverse iterators.
+	 * @see #findLastLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the right-most leaf page
+	 * @return the right-most leaf page possibly containing a key less than or equal to f
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f) 
+					throws DbException, TransactionAbortedException {
+		return findLastLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -289,6 +606,9 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
 
+		// tuples are about to move off this page
+		invalidatePage(page.getId());
+
 		// new leaf page we are splitting into
 		BTreeLeafPage newLeaf = (BTreeLeafPage) this.getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
 		// iterator to move tuples over into new page
@@ -311,7 +631,11 @@ public class BTreeFile implements DbFile {
 		}
 
 		// grab the middle tuple
-		Field middle = newLeaf.iterator().next().getField(this.keyField());
+		Field middle = this.getKey(newLeaf.iterator().next());
+		if(compactKeys) {
+			// copy up the shortest key separating the two pages
+			middle = getSeparator(this.getKey(page.reverseIterator().next()), middle);
+		}
 		// the parent page
 		BTreeInternalPage parent = this.getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle);
 		// updating the parentID of the new page we created
@@ -350,6 +674,48 @@ public class BTreeFile implements DbFile {
 		return page;
 	}
 	
+	/**
+	 * Find the shortest key separating two adjacent leaf pages. String fields are
+	 * truncated to the shortest prefix greater than the corresponding field of the
+	 * lower key; for a composite key, the first field that differs is truncated and
+	 * the string fields after it are emptied.
+	 * 
+	 * @param lower - the last key of the left page
+	 * @param upper - the first key of the right page
+	 * @return a key greater than lower (unless the two are equal) and less than or
+	 * equal to upper
+	 * @see StringField#shortestSeparator(StringField)
+	 */
+	private Field getSeparator(Field lower, Field upper) {
+		if(!(upper instanceof CompositeField)) {
+			if(upper instanceof StringField) {
+				return ((StringField) upper).shortestSeparator((StringField) lower);
+			}
+			return upper;
+		}
+
+		CompositeField cl = (CompositeField) lower;
+		CompositeField cu = (CompositeField) upper;
+		Field[] sep = new Field[cu.numFields()];
+		boolean differs = false;
+		boolean truncated = false;
+		for(int i = 0; i < sep.length; i++) {
+			Field u = cu.getField(i);
+			if(truncated) {
+				sep[i] = (u instanceof StringField) ? new StringField("", Type.STRING_LEN) : u;
+			}
+			else if(!differs && !u.equals(cl.getField(i))) {
+				sep[i] = getSeparator(cl.getField(i), u);
+				differs = true;
+				truncated = !sep[i].equals(u);
+			}
+			else {
+				sep[i] = u;
+			}
+		}
+		return new CompositeField(sep);
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -380,7 +746,7 @@ public class BTreeFile implements DbFile {
 		BTreeInternalPage newInternal = (BTreeInternalPage) this.getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
 		// find the middle entry
-		int middle = page.getNumEntries() / 2;
+		int middle = page.getSplitPoint();
 		// iterator to go through tuples
 		BTreeInternalPageIterator internalIter = (BTreeInternalPageIterator) page.iterator();
 
@@ -426,6 +792,159 @@ public class BTreeFile implements DbFile {
 		return page;
 	}
 	
+	/**
+	 * Rewrite a run of adjacent leaf pages with the same parent into densely
+	 * packed leaves on consecutive pages of the file, so that a scan reads them
+	 * sequentially. The run starts at the given leaf and takes up to maxPages
+	 * of its right siblings; all the pages are full except for the last two,
+	 * which share the remaining tuples. The old pages are freed, and the
+	 * entries of the parent pointing at them are replaced. If the run already
+	 * has this layout, nothing is changed.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param first - the first leaf of the run
+	 * @param maxPages - the most leaves to rewrite
+	 * @param targetPage - the page to write the first leaf to, or the lowest
+	 * free page after it; 0 to leave a run which already has the layout where
+	 * it is, and write others anywhere
+	 * @return the last leaf of the rewritten run
+	 * @see BTreeCompactor
+	 */
+	protected BTreeLeafPage rewriteLeaves(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeLeafPage first, int maxPages, int targetPage)
+					throws DbException, IOException, TransactionAbortedException {
+		BTreePageId parentId = first.getParentId();
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			return first; // the root is the only leaf
+		}
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+
+		// the run: the first leaf and its right siblings under the same parent
+		ArrayList<BTreeLeafPage> sources = new ArrayList<BTreeLeafPage>();
+		sources.add(first);
+		int total = first.getNumTuples();
+		BTreePageId nextId = first.getRightSiblingId();
+		while(sources.size() < maxPages && nextId != null) {
+			BTreeLeafPage next = (BTreeLeafPage) getPage(tid, dirtypages, nextId, Permissions.READ_WRITE);
+			if(!next.getParentId().equals(parentId)) {
+				break;
+			}
+			sources.add(next);
+			total += next.getNumTuples();
+			nextId = next.getRightSiblingId();
+		}
+		BTreeLeafPage last = sources.get(sources.size() - 1);
+
+		// the number of tuples of each new page
+		int max = first.getMaxTuples();
+		int k = Math.max(1, (total + max - 1) / max);
+		if(k == 1 && sources.size() == parent.getNumEntries() + 1) {
+			k = 2; // the parent must keep two children
+		}
+		int[] counts = new int[k];
+		for(int i = 0; i < k; i++) {
+			counts[i] = Math.min(max, total - i * max);
+		}
+		if(k > 1 && counts[k - 1] < max / 2) {
+			int pair = counts[k - 2] + counts[k - 1];
+			counts[k - 2] = pair - pair / 2;
+			counts[k - 1] = pair / 2;
+		}
+
+		// leave the run alone if it already has the layout
+		boolean inPlace = sources.size() == k
+				&& (targetPage == 0 || first.getId().pageNumber() == targetPage);
+		for(int i = 0; i < sources.size() && inPlace; i++) {
+			inPlace = sources.get(i).getId().pageNumber() == first.getId().pageNumber() + i
+					&& sources.get(i).getNumTuples() == counts[i];
+		}
+		if(inPlace) {
+			return last;
+		}
+
+		// write the tuples of the run to consecutive new pages
+		int from = targetPage > 0 ? targetPage : findFreeRun(tid, dirtypages, 1, k);
+		int start = getEmptyPageRun(tid, dirtypages, from, k);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>(total);
+		for(BTreeLeafPage source : sources) {
+			invalidatePage(source.getId());
+			Iterator<Tuple> it = source.iterator();
+			while(it.hasNext()) {
+				tuples.add(it.next());
+			}
+		}
+		BTreeLeafPage[] pages = new BTreeLeafPage[k];
+		int t = 0;
+		for(int i = 0; i < k; i++) {
+			BTreePageId id = new BTreePageId(tableid, start + i, BTreePageId.LEAF);
+			invalidatePage(id);
+			pages[i] = (BTreeLeafPage) wipePage(tid, dirtypages, id);
+			pages[i].setParentId(parentId);
+			for(int j = 0; j < counts[i]; j++) {
+				pages[i].insertTuple(tuples.get(t++));
+			}
+		}
+
+		// link the new pages into the leaf chain
+		for(int i = 0; i < k; i++) {
+			pages[i].setLeftSiblingId(i == 0 ? first.getLeftSiblingId() : pages[i - 1].getId());
+			pages[i].setRightSiblingId(i == k - 1 ? last.getRightSiblingId() : pages[i + 1].getId());
+		}
+		if(first.getLeftSiblingId() != null) {
+			BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, first.getLeftSiblingId(), Permissions.READ_WRITE);
+			left.setRightSiblingId(pages[0].getId());
+		}
+		if(last.getRightSiblingId() != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, last.getRightSiblingId(), Permissions.READ_WRITE);
+			right.setLeftSiblingId(pages[k - 1].getId());
+		}
+
+		// rebuild the parent with the new pages in place of the run
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		ArrayList<Field> keys = new ArrayList<Field>();
+		children.add(entries.get(0).getLeftChild());
+		for(BTreeEntry e : entries) {
+			keys.add(e.getKey());
+			children.add(e.getRightChild());
+		}
+		int pos = children.indexOf(first.getId());
+		int m = sources.size();
+		for(int i = 0; i < m; i++) {
+			children.remove(pos);
+		}
+		for(int i = 0; i < m - 1; i++) {
+			keys.remove(pos);
+		}
+		for(int i = 0; i < k; i++) {
+			children.add(pos + i, pages[i].getId());
+		}
+		for(int i = 1; i < k; i++) {
+			Field middle = getKey(pages[i].iterator().next());
+			if(compactKeys) {
+				middle = getSeparator(getKey(pages[i - 1].reverseIterator().next()), middle);
+			}
+			keys.add(pos + i - 1, middle);
+		}
+		for(BTreeEntry e : entries) {
+			parent.deleteKeyAndRightChild(e);
+		}
+		for(int i = 0; i < keys.size(); i++) {
+			parent.insertEntry(new BTreeEntry(keys.get(i), children.get(i), children.get(i + 1)));
+		}
+
+		for(BTreeLeafPage source : sources) {
+			dirtypages.remove(source.getId());
+			setEmptyPage(tid, dirtypages, source.getId().pageNumber());
+		}
+		return pages[k - 1];
+	}
+
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
@@ -585,15 +1104,21 @@ public class BTreeFile implements DbFile {
 			rootPtr.setRootId(rootId);
 		}
 
+		invalidateKey(getKey(t));
+
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, getKey(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
+		PageBloomFilters filters = leafFilters;
+		if(filters != null) {
+			filters.add(leafPage.getId().pageNumber(), getKey(t));
+		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
@@ -673,6 +1198,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId rightSiblingId = null;
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
+
+		// tuples are about to move between the page and one of its siblings
+		invalidatePage(page.getId());
+		if(leftSiblingId != null) invalidatePage(leftSiblingId);
+		if(rightSiblingId != null) invalidatePage(rightSiblingId);
 		
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
@@ -764,7 +1294,7 @@ public class BTreeFile implements DbFile {
 
 		// update the corresponding parent entry
 		Tuple rNext = right.iterator().next();
-		entry.setKey(rNext.getField(this.keyField()));
+		entry.setKey(this.getKey(rNext));
 		parent.updateEntry(entry);
 
 	}
@@ -796,12 +1326,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.shouldMergeWith(leftSibling, leftEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -812,7 +1341,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(page.shouldMergeWith(rightSibling, rightEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -853,7 +1382,7 @@ public class BTreeFile implements DbFile {
 		page.insertEntry(newEntry);
 
 		// advance iterator to correct spot
-		int numDiff = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numDiff = entriesToSteal(page, leftSibling, leftSibling.reverseIterator());
 		int i = 0;
 		BTreeInternalPageReverseIterator lIter = (BTreeInternalPageReverseIterator) leftSibling.reverseIterator();
 		while (lIter.hasNext() && i < numDiff){
@@ -915,7 +1444,7 @@ public class BTreeFile implements DbFile {
 		page.insertEntry(newEntry);
 
 		// advance iterator to right spot
-		int numDiff = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numDiff = entriesToSteal(page, rightSibling, rightSibling.iterator());
 		int i = 0;
 		BTreeInternalPageIterator rIter = (BTreeInternalPageIterator) rightSibling.iterator();
 		while (rIter.hasNext() && i < numDiff){
@@ -941,6 +1470,36 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	/**
+	 * Returns the number of entries to move from a sibling to an internal page which
+	 * is less than half full, once the key of the parent entry was pulled down to the
+	 * page, so that both pages hold about as many entries; the next entry of the
+	 * sibling is then pushed up to the parent. Pages in the compact key format are
+	 * balanced by the bytes their entries take rather than by their number, which
+	 * also keeps the page from overflowing.
+	 * 
+	 * @param page - the internal page which is less than half full
+	 * @param sibling - the sibling which has entries to spare
+	 * @param it - the entries of the sibling, starting from the page
+	 */
+	private int entriesToSteal(BTreeInternalPage page, BTreeInternalPage sibling, Iterator<BTreeEntry> it) {
+		if(!page.isCompact())
+			return (sibling.getNumEntries() - page.getNumEntries()) / 2;
+		int pageBytes = page.getUsedBytes();
+		int siblingBytes = sibling.getUsedBytes();
+		int n = 0;
+		// the sibling keeps at least one entry besides the one pushed up
+		while(n < sibling.getNumEntries() - 2 && it.hasNext()) {
+			int size = page.getEntryBytes(it.next().getKey());
+			if(pageBytes + size > siblingBytes - size)
+				break;
+			pageBytes += size;
+			siblingBytes -= size;
+			n++;
+		}
+		return n;
+	}
+
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
@@ -1030,8 +1589,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1046,7 +1604,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isLessThanHalfFull()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1100,7 +1658,7 @@ public class BTreeFile implements DbFile {
 				// create the root pointer page and the root page
 				BufferedOutputStream bw = new BufferedOutputStream(
 						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData(compactKeys);
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
@@ -1114,7 +1672,12 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Grows the file by an extent of EXTENT_PAGES pages if none of the existing
+	 * pages are empty.
+	 * <p>
+	 * Free pages are found in a cached copy of the header pages, loaded at the
+	 * first allocation, rather than by walking the header pages through the
+	 * BufferPool. The slot of the page is still marked used in its header page.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1126,50 +1689,207 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		synchronized(this) {
+			loadFreePages(tid, dirtypages);
+			int emptyPageNo = nextFreePage();
+			if(emptyPageNo == -1) {
+				preallocate(tid, dirtypages);
+				emptyPageNo = nextFreePage();
+			}
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
+			claimPage(tid, dirtypages, emptyPageNo);
+			return emptyPageNo;
+		}
+	}
+
+	/**
+	 * Find the lowest page number from which n consecutive pages are free. The
+	 * pages past the end of the file count as free, since the file can grow.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param from - the lowest page number to consider
+	 * @param n - the number of pages
+	 * @return the first page of the run; the pages are not marked used
+	 */
+	int findFreeRun(TransactionId tid, HashMap<PageId, Page> dirtypages, int from, int n)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			loadFreePages(tid, dirtypages);
+			int pages = numPages();
+			int start = Math.max(from, 1);
+			int run = 0;
+			for(int pageNo = start; pageNo <= pages && run < n; pageNo++) {
+				if(isFree(pageNo)) {
+					if(run == 0) {
+						start = pageNo;
+					}
+					run++;
 				}
 				else {
-					headerPage = null;
+					run = 0;
 				}
 			}
+			return run > 0 ? start : Math.max(start, pages + 1);
+		}
+	}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+	/**
+	 * Allocate n consecutive pages, at the lowest position at or after from
+	 * where they are all free, growing the file if needed.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param from - the lowest page number to consider
+	 * @param n - the number of pages
+	 * @return the page number of the first page
+	 */
+	int getEmptyPageRun(TransactionId tid, HashMap<PageId, Page> dirtypages, int from, int n)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			while(true) {
+				int start = findFreeRun(tid, dirtypages, from, n);
+				while(numPages() < start + n - 1) {
+					preallocate(tid, dirtypages);
+				}
+				// a new extent may have put a header page inside the run
+				boolean free = true;
+				for(int pageNo = start; pageNo < start + n && free; pageNo++) {
+					free = isFree(pageNo);
+				}
+				if(free) {
+					for(int pageNo = start; pageNo < start + n; pageNo++) {
+						claimPage(tid, dirtypages, pageNo);
+					}
+					return start;
+				}
+				from = start + 1;
 			}
 		}
+	}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+	/**
+	 * @return true if the page is marked free in the cached bitmap
+	 */
+	private boolean isFree(int pageNo) {
+		return (pageNo >>> 6) < freePages.length && (freePages[pageNo >>> 6] & (1L << pageNo)) != 0;
+	}
+
+	/**
+	 * Mark a free page used in its header page and in the cache
+	 */
+	private void claimPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages,
+				headerIds.get(pageNo / BTreeHeaderPage.getNumSlots()), Permissions.READ_WRITE);
+		headerPage.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), true);
+		freePages[pageNo >>> 6] &= ~(1L << pageNo);
+	}
+
+	/**
+	 * Load the header page ids and the free page bitmap from the header pages,
+	 * unless they are already cached
+	 */
+	private void loadFreePages(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(freePages != null) {
+			return;
+		}
+		ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		long[] bits = new long[8];
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int base = ids.size() * BTreeHeaderPage.getNumSlots();
+			bits = Arrays.copyOf(bits, Math.max(bits.length,
+					(base + BTreeHeaderPage.getNumSlots() + 63) >>> 6));
+			for(int slot = headerPage.getEmptySlot(); slot != -1; slot = headerPage.getEmptySlot(slot + 1)) {
+				bits[(base + slot) >>> 6] |= 1L << (base + slot);
 			}
+			ids.add(headerId);
+			headerId = headerPage.getNextPageId();
+		}
+		headerIds = ids;
+		freePages = bits;
+		freeHint = 0;
+	}
+
+	/**
+	 * Find the lowest free page in the cached bitmap, one 64-bit word at a time
+	 * @return the page number, or -1 if no page is free
+	 */
+	private int nextFreePage() {
+		for(int w = freeHint; w < freePages.length; w++) {
+			if(freePages[w] != 0) {
+				freeHint = w;
+				return (w << 6) + Long.numberOfTrailingZeros(freePages[w]);
+			}
+		}
+		freeHint = freePages.length;
+		return -1;
+	}
+
+	/**
+	 * Grow the file by EXTENT_PAGES empty pages in a single write and mark
+	 * them free. A page of the extent is used as a header page if the extent
+	 * runs past the last header page.
+	 */
+	private void preallocate(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		int first = numPages() + 1;
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.setLength(rf.length() + (long) EXTENT_PAGES * BufferPool.getPageSize());
+		} finally {
+			rf.close();
+		}
+		for(int pageNo = first; pageNo < first + EXTENT_PAGES; pageNo++) {
+			if(pageNo / BTreeHeaderPage.getNumSlots() >= headerIds.size()) {
+				addHeaderPage(tid, dirtypages, pageNo);
+			}
+			else {
+				markFree(tid, dirtypages, pageNo);
+			}
+		}
+	}
+
+	/**
+	 * Turn the given page into a new header page at the end of the header page
+	 * chain. All the slots of a new header page are used.
+	 */
+	private void addHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) wipePage(tid, dirtypages,
+				new BTreePageId(tableid, pageNo, BTreePageId.HEADER));
+		headerPage.init();
+		if(headerIds.isEmpty()) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setHeaderId(headerPage.getId());
+		}
+		else {
+			BTreePageId prevId = headerIds.get(headerIds.size() - 1);
+			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+			prevPage.setNextPageId(headerPage.getId());
+			headerPage.setPrevPageId(prevId);
 		}
+		headerIds.add(headerPage.getId());
+		int words = (headerIds.size() * BTreeHeaderPage.getNumSlots() + 63) >>> 6;
+		if(words > freePages.length) {
+			freePages = Arrays.copyOf(freePages, words);
+		}
+	}
 
-		return emptyPageNo; 
+	/**
+	 * Mark a page free in its header page, which must exist, and in the cache
+	 */
+	private void markFree(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages,
+				headerIds.get(pageNo / BTreeHeaderPage.getNumSlots()), Permissions.READ_WRITE);
+		headerPage.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), false);
+		freePages[pageNo >>> 6] |= 1L << pageNo;
+		freeHint = Math.min(freeHint, pageNo >>> 6);
 	}
 	
 	/**
@@ -1192,13 +1912,17 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
-		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
+		return wipePage(tid, dirtypages, new BTreePageId(tableid, emptyPageNo, pgcateg));
+	}
+
+	/**
+	 * Wipe a page on disk and in the cache, and return a clean copy locked with
+	 * read-write permission
+	 */
+	private Page wipePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId newPageId)
+			throws DbException, IOException, TransactionAbortedException {
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		writePageData(newPageId.pageNumber(), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1223,74 +1947,23 @@ public class BTreeFile implements DbFile {
 	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		// if this is the last page in the file (and not the only page), just 
-		// truncate the file
-		// @TODO: Commented out because we should probably do this somewhere else in case the transaction aborts....
-//		synchronized(this) {
-//			if(emptyPageNo == numPages()) {
-//				if(emptyPageNo <= 1) {
-//					// if this is the only page in the file, just return.
-//					// It just means we have an empty root page
-//					return;
-//				}
-//				long newSize = f.length() - BufferPool.getPageSize();
-//				FileOutputStream fos = new FileOutputStream(f, true);
-//				FileChannel fc = fos.getChannel();
-//				fc.truncate(newSize);
-//				fc.close();
-//				fos.close();
-//				return;
-//			}
-//		}
-
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
-		}
-
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
-		}
+		invalidatePage(new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF));
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
+		synchronized(this) {
+			loadFreePages(tid, dirtypages);
+			// add header pages until there is one with a slot corresponding to emptyPageNo
+			while(emptyPageNo / BTreeHeaderPage.getNumSlots() >= headerIds.size()) {
+				int headerPageNo = nextFreePage();
+				if(headerPageNo == -1) {
+					// the new extent brings its own header page if one is needed
+					preallocate(tid, dirtypages);
+					continue;
+				}
+				claimPage(tid, dirtypages, headerPageNo);
+				addHeaderPage(tid, dirtypages, headerPageNo);
+			}
+			markFree(tid, dirtypages, emptyPageNo);
 		}
-
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
 	}
 
 	/**
@@ -1319,6 +1992,32 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in reverse sorted order,
+	 * following the left sibling pointers of the leaf pages. This method will acquire
+	 * a read lock on the affected pages of the file, and may block until the lock can
+	 * be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, largest key first
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeFileReverseIterator(this, tid);
+	}
+
+	/**
+	 * Get a reverse iterator for all tuples in this B+ tree file matching the given
+	 * predicate, largest key first. This method will acquire a read lock on the affected
+	 * pages of the file, and may block until the lock can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples in reverse sorted order
+	 */
+	public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BTreeReverseSearchIterator(this, tid, ipred);
+	}
+
 }
 
 /**
@@ -1403,7 +2102,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File.
+ * <p>
+ * If the tree has a composite key and the predicate value is a CompositeField
+ * of n components, the first n-1 components must match the key exactly and the
+ * predicate operation is applied to the n-th component, e.g. the value
+ * (tenant, ts) with GREATER_THAN returns the tuples of that tenant after ts.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1414,6 +2118,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	BTreeFile f;
 	IndexPredicate ipred;
 
+	Field value; // the predicate value, in the form of a key of f
+	CompositeField prefix; // the components of value which must match exactly, or null
+	Field last; // the component of value the operation is applied to
+	boolean probed; // whether the first match of an equality search has been seen
+
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
@@ -1424,6 +2133,17 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+
+		this.value = f.toKey(ipred.getField());
+		if(value instanceof CompositeField && ((CompositeField) value).numFields() > 1) {
+			CompositeField cv = (CompositeField) value;
+			this.prefix = cv.prefix(cv.numFields() - 1);
+			this.last = cv.getField(cv.numFields() - 1);
+		}
+		else {
+			this.prefix = null;
+			this.last = value;
+		}
 	}
 
 	/**
@@ -1434,16 +2154,59 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+		probed = false;
+		curp = null;
+		boolean fullKey = ipred.getOp() == Op.EQUALS && (!(value instanceof CompositeField)
+				|| ((CompositeField) value).numFields() == f.keyFields().length);
+		if(fullKey && f.isKeyAbsent(tid, root, value)) {
+			// the leaf filters show that no tuple has the key
+			it = null;
+			return;
 		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		if(ipred.getOp() == Op.EQUALS) {
+			// go straight to the leaf if the key is in the adaptive hash index
+			curp = findHashedLeafPage();
+			probed = (curp != null);
+		}
+		if(curp == null) {
+			if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
+					|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+				curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, value);
+			}
+			else {
+				// less than: start at the first key with the matching prefix, if any
+				curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, prefix);
+			}
+		}
+		if(fullKey) {
+			f.buildLeafFilter(curp);
 		}
 		it = curp.iterator();
 	}
 
+	/**
+	 * Look up the leaf page holding the search key in the adaptive hash index of the
+	 * file, and check that the page still holds the key.
+	 * @return the left-most leaf page holding the search key, or null if the key is
+	 * not in the adaptive hash index
+	 */
+	private BTreeLeafPage findHashedLeafPage() throws DbException, TransactionAbortedException {
+		AdaptiveHashIndex hashIndex = f.getAdaptiveHashIndex();
+		BTreePageId hint = hashIndex.lookup(value);
+		if(hint == null) {
+			return null;
+		}
+		BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, hint, Permissions.READ_ONLY);
+		Iterator<Tuple> pit = page.iterator();
+		while(pit.hasNext()) {
+			if(f.getKey(pit.next()).compare(Op.EQUALS, value)) {
+				return page;
+			}
+		}
+		hashIndex.invalidateKey(value);
+		return null;
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1457,7 +2220,25 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.getKey(t);
+				if(prefix != null) {
+					if(key.compare(Op.LESS_THAN, prefix)) {
+						// not yet reached the tuples with the matching prefix
+						continue;
+					}
+					else if(key.compare(Op.GREATER_THAN, prefix)) {
+						// passed the tuples with the matching prefix
+						return null;
+					}
+					key = ((CompositeField) key).getField(prefix.numFields());
+				}
+
+				if (key.compare(ipred.getOp(), last)) {
+					if(ipred.getOp() == Op.EQUALS && !probed) {
+						// this is the left-most leaf holding the key
+						f.getAdaptiveHashIndex().recordProbe(value, curp.getId());
+						probed = true;
+					}
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1466,7 +2247,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, last)) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1504,3 +2285,178 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a BTreeFile in
+ * reverse sorted order
+ */
+class BTreeFileReverseIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public BTreeFileReverseIterator(BTreeFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY, null);
+		it = curp.reverseIterator();
+	}
+
+	/**
+	 * Read the previous tuple either from the current page if it has more tuples or
+	 * from the previous page by following the left sibling pointer.
+	 * 
+	 * @return the next tuple in reverse order, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (it != null && !it.hasNext())
+			it = null;
+
+		while (it == null && curp != null) {
+			BTreePageId prevp = curp.getLeftSiblingId();
+			if(prevp == null) {
+				curp = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+				if (!it.hasNext())
+					it = null;
+			}
+		}
+
+		if (it == null)
+			return null;
+		return it.next();
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File in reverse sorted order. Composite predicate values are handled
+ * as in BTreeSearchIterator.
+ */
+class BTreeReverseSearchIterator extends BTreeSearchIterator {
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 */
+	public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		super(f, tid, ipred);
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page applicable
+	 * for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN 
+				|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+			curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY, value);
+		}
+		else {
+			// greater than: start at the last key with the matching prefix, if any
+			curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY, prefix);
+		}
+		it = curp.reverseIterator();
+	}
+
+	/**
+	 * Read the previous tuple either from the current page if it has more tuples matching
+	 * the predicate or from the previous page by following the left sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate in reverse order, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = f.getKey(t);
+				if(prefix != null) {
+					if(key.compare(Op.GREATER_THAN, prefix)) {
+						// not yet reached the tuples with the matching prefix
+						continue;
+					}
+					else if(key.compare(Op.LESS_THAN, prefix)) {
+						// passed the tuples with the matching prefix
+						return null;
+					}
+					key = ((CompositeField) key).getField(prefix.numFields());
+				}
+
+				if (key.compare(ipred.getOp(), last)) {
+					return t;
+				}
+				else if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+					// if the predicate was not satisfied and the operation is greater than, we
+					// have hit the end
+					return null;
+				}
+				else if(ipred.getOp() == Op.EQUALS && 
+						key.compare(Op.LESS_THAN, last)) {
+					// if the tuple is now less than the field passed in and the operation
+					// is equals, we have reached the end
+					return null;
+				}
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if(prevp == null) {
+				return null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+			}
+		}
+
+		return null;
+	}
+}
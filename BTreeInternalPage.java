@@ -18,9 +18,21 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean compactKeys;
 	
 	private int childCategory; // either leaf or internal
 
+	// in the compact key format, bytes taken by the parent pointer, child page category,
+	// number of used slots, and the slot number and pointer of the first child
+	private static final int COMPACT_EXTRA_BYTES = INDEX_SIZE + 1 + 2 + 2 + INDEX_SIZE;
+
+	/**
+	 * @return true if this page is stored in the compact key format
+	 */
+	boolean isCompact() {
+		return compactKeys;
+	}
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +49,10 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			if (compactKeys)
+				assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
+			else
+				assert (getNumEntries() >= getMaxEntries() / 2);
 		}
 	}
 	
@@ -66,8 +81,48 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on an ordered list of fields.
+	 * Keys are stored as the concatenation of the key fields.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in key order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		this(id, data, keyFields, false);
+	}
+
+	/**
+	 * Create a BTreeInternalPage, optionally in the compact key format. The compact
+	 * format stores only the used slots, each as a 2-byte slot number, a child pointer
+	 * and (except for slot 0) a key in which strings are not padded to their maximum
+	 * length: <p>
+	 *          parent pointer | child page category | no. used slots | used slots
+	 * <p>
+	 * The page is full when there is no room left for an entry with the largest
+	 * possible key, so pages holding short keys (e.g. the truncated separators
+	 * chosen by {@link BTreeFile}) have a much higher fanout.
+	 * @see BTreePage#getCompactKeySize(Field)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in key order
+	 * @param compactKeys - whether the page is stored in the compact key format
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields, boolean compactKeys) throws IOException {
+		super(id, keyFields);
+		this.compactKeys = compactKeys;
+		if(compactKeys) {
+			this.numSlots = (BufferPool.getPageSize() - COMPACT_EXTRA_BYTES) / getEntrySize(getMinCompactKeySize()) + 1;
+		}
+		else {
+			this.numSlots = getMaxEntries() + 1;
+		}
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -81,6 +136,16 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
+		if(compactKeys) {
+			header = new byte[getHeaderSize()];
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			readCompactSlots(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -113,9 +178,14 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * In the compact key format, this is the number of entries with the largest
+	 * possible key which fit on the page.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if(compactKeys) {
+			return (BufferPool.getPageSize() - COMPACT_EXTRA_BYTES) / getEntrySize(getCompactKeySize(null));
+		}
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -129,7 +199,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -145,7 +215,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields,compactKeys);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,7 +238,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +251,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -220,6 +290,117 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the used slots of a page in the compact key format.
+	 */
+	private void readCompactSlots(DataInputStream dis) throws IOException {
+		int used = dis.readUnsignedShort();
+		try {
+			for (int j=0; j<used; j++) {
+				int slot = dis.readUnsignedShort();
+				markSlotUsed(slot, true);
+				children[slot] = dis.readInt();
+				if (slot > 0)
+					keys[slot] = readCompactKey(dis);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+	}
+
+	/**
+	 * Write the used slots of a page in the compact key format.
+	 */
+	private void writeCompactSlots(DataOutputStream dos) throws IOException {
+		dos.writeShort(numSlots - getNumFreeSlots());
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			dos.writeShort(i);
+			dos.writeInt(children[i]);
+			if (i > 0)
+				writeCompactKey(keys[i], dos);
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken by an entry with a key of keySize bytes
+	 * in the compact key format
+	 */
+	private static int getEntrySize(int keySize) {
+		return 2 + INDEX_SIZE + keySize;
+	}
+
+	/**
+	 * @return the number of bytes taken by the entries on this page in the compact
+	 * key format, not counting the first child pointer
+	 */
+	int getUsedBytes() {
+		int used = 0;
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				used += getEntrySize(getCompactKeySize(keys[i]));
+		return used;
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key takes on this page in
+	 * the compact key format
+	 */
+	int getEntryBytes(Field key) {
+		return getEntrySize(getCompactKeySize(key));
+	}
+
+	/**
+	 * @return true if this page is less than half full. In the compact key format,
+	 * this is decided by the bytes taken by its entries rather than by their number.
+	 */
+	public boolean isLessThanHalfFull() {
+		if (compactKeys)
+			return getUsedBytes() < (BufferPool.getPageSize() - COMPACT_EXTRA_BYTES) / 2;
+		int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+		return getNumEmptySlots() > maxEmptySlots;
+	}
+
+	/**
+	 * @return true if this page, which is less than half full, should be merged with
+	 * the given sibling rather than take entries from it: in the compact key format,
+	 * if the entries of both pages and the key pulled down from their parent fit on
+	 * one page, and otherwise if the sibling is at minimum occupancy
+	 * @param sibling - a sibling of this page
+	 * @param parentKey - the key of the parent entry between the two pages
+	 */
+	public boolean shouldMergeWith(BTreeInternalPage sibling, Field parentKey) {
+		if (compactKeys)
+			return getUsedBytes() + sibling.getUsedBytes() + getEntryBytes(parentKey)
+					<= BufferPool.getPageSize() - COMPACT_EXTRA_BYTES;
+		int maxEmptySlots = getMaxEntries() - getMaxEntries()/2; // ceiling
+		return sibling.getNumEmptySlots() >= maxEmptySlots;
+	}
+
+	/**
+	 * Returns the number of entries which should stay on this page when it is split;
+	 * the next entry is pushed up into the parent. Pages in the compact key format are
+	 * split in the middle of their bytes rather than in the middle of their entries.
+	 */
+	public int getSplitPoint() {
+		if (!compactKeys)
+			return getNumEntries() / 2;
+		int half = getUsedBytes() / 2;
+		int bytes = 0;
+		int count = 0;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			bytes += getEntrySize(getCompactKeySize(keys[i]));
+			if (bytes > half)
+				break;
+			count++;
+		}
+		return Math.min(count, getNumEntries() - 1);
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -247,6 +428,12 @@ public class BTreeInternalPage extends BTreePage {
 		// write out the child page category
 		try {
 			dos.writeByte((byte) childCategory);
+			if (compactKeys) {
+				writeCompactSlots(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+				return baos.toByteArray();
+			}
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -269,7 +456,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +503,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -457,7 +644,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
@@ -479,6 +666,10 @@ public class BTreeInternalPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
+		if (compactKeys && getUsedBytes() + getEntrySize(getCompactKeySize(e.getKey())) > 
+				BufferPool.getPageSize() - COMPACT_EXTRA_BYTES)
+			throw new DbException("called insertEntry on page with no room for the key.");
+
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
 		for (int i=0; i<numSlots; i++) {
@@ -562,13 +753,26 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumFreeSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. In the compact key format,
+	 * this is the number of entries with the largest possible key which still fit.
 	 */
 	public int getNumEmptySlots() {
+		int free = getNumFreeSlots();
+		if (compactKeys) {
+			int freeBytes = BufferPool.getPageSize() - COMPACT_EXTRA_BYTES - getUsedBytes();
+			free = Math.min(free, freeBytes / getEntrySize(getCompactKeySize(null)));
+		}
+		return free;
+	}
+
+	/**
+	 * Returns the number of unused key slots on this page.
+	 */
+	private int getNumFreeSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -601,6 +805,14 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Returns the number of slots on this page, including slot 0 which holds only
+	 * a child pointer
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -743,7 +955,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
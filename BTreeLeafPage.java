@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -12,12 +13,15 @@ import java.io.*;
  *
  */
 public class BTreeLeafPage extends BTreePage {
-	private final byte header[];
+	private final SlotBitmap slots; // the header of the page
+	private final int headerSize;
 	private final Tuple tuples[];
 	private final int numSlots;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
+	// whether the before-image is the current contents, not serialized yet
+	private boolean imagePending = false;
 
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
@@ -26,8 +30,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = (fieldid == keyField) ? getKey(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -62,48 +67,45 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on an ordered list of fields.
+	 * Tuples are kept sorted lexicographically on the key fields.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in key order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		ByteBuffer buf = ByteBuffer.wrap(data);
 
 		// Read the parent and sibling pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.leftSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.rightSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = buf.getInt();
+		this.leftSibling = buf.getInt();
+		this.rightSibling = buf.getInt();
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		headerSize = getHeaderSize();
+		slots = new SlotBitmap(data, buf.position(), numSlots);
+		buf.position(buf.position() + headerSize);
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
-		dis.close();
+		// allocate and read the actual records of this page
+		for (int i=0; i<tuples.length; i++)
+			tuples[i] = readNextTuple(buf,i);
 
-		setBeforeImage();
+		// the bytes read are the page as getPageData would write it; they are
+		// only read, so they are shared rather than copied
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+			imagePending = false;
+		}
 	}
 
 	/** 
@@ -121,11 +123,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
-		int hb = (tuplesPerPage / 8);
-		if (hb * 8 < tuplesPerPage) hb++;
-
-		return hb;
+		return SlotBitmap.getNumBytes(getMaxTuples());
 	}
 
 	/** Return a view of this page before it was modified
@@ -135,9 +133,9 @@ public class BTreeLeafPage extends BTreePage {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				oldDataRef = imagePending ? getPageData() : oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -146,27 +144,35 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
+	/**
+	 * The current contents become the before-image. They are serialized
+	 * only if the page is modified again.
+	 */
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			imagePending = true;
+		}
+	}
+
+	protected void beforeModify() {
+		synchronized(oldDataLock)
+		{
+			if(imagePending) {
+				oldData = getPageData();
+				imagePending = false;
+			}
 		}
 	}
 
 	/**
 	 * Read tuples from the source file.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
+	private Tuple readNextTuple(ByteBuffer buf, int slotId) {
+		// if associated bit is not set, skip to the next tuple, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
+			buf.position(buf.position() + td.getSize());
 			return null;
 		}
 
@@ -174,15 +180,8 @@ public class BTreeLeafPage extends BTreePage {
 		Tuple t = new Tuple(td);
 		RecordId rid = new RecordId(pid, slotId);
 		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
+		for (int j=0; j<td.numFields(); j++)
+			t.setField(j, td.parseField(j, buf));
 
 		return t;
 	}
@@ -199,84 +198,27 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		// a new array is all zeroes, so empty slots and padding are skipped
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
 
 		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		buf.putInt(parent);
+		buf.putInt(leftSibling);
+		buf.putInt(rightSibling);
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
+		slots.write(data, buf.position());
 
 		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+		int tupleSize = td.getSize();
+		for (int i=slots.nextUsed(0); i!=-1; i=slots.nextUsed(i+1)) {
+			buf.position(3 * INDEX_SIZE + headerSize + i * tupleSize);
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(buf);
 		}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		return data;
 	}
 
 	/**
@@ -311,27 +253,19 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("type mismatch, in addTuple");
 
 		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
+		int emptySlot = slots.nextFree(0);
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		Field key = getKey(t);
+		for (int i=slots.nextUsed(0); i!=-1; i=slots.nextUsed(i+1)) {
+			if(getKey(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lessOrEqKey = i;
+			else
+				break;	
 		}
 
 		// shift records back or forward to fill empty slot and make room for new record
@@ -400,6 +334,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		beforeModify();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +355,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		beforeModify();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -445,34 +381,37 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return slots.getNumFree();
 	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return slots.isUsed(i);
+	}
+
+	/**
+	 * @return the first used slot at or after slot i, or -1 if there is none
+	 */
+	int nextUsedSlot(int i) {
+		return slots.nextUsed(i);
+	}
+
+	/**
+	 * @return the last used slot at or before slot i, or -1 if there is none
+	 */
+	int prevUsedSlot(int i) {
+		return slots.prevUsed(i);
 	}
 
 	/**
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		beforeModify();
+		slots.setUsed(i, value);
 	}
 
 	/**
@@ -533,15 +472,12 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
-				if(nextToReturn != null)
-					return true;
-			}
-		} catch(NoSuchElementException e) {
+		// skip the empty slots a word of the header at a time
+		curTuple = curTuple < 0 ? -1 : p.nextUsedSlot(curTuple);
+		if (curTuple == -1)
 			return false;
-		}
+		nextToReturn = p.getTuple(curTuple++);
+		return true;
 	}
 
 	public Tuple next() {
@@ -582,16 +518,11 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (curTuple >= 0) {
-				nextToReturn = p.getTuple(curTuple--);
-				if(nextToReturn != null)
-					return true;
-			}
+		curTuple = p.prevUsedSlot(curTuple);
+		if (curTuple == -1)
 			return false;
-		} catch(NoSuchElementException e) {
-			return false;
-		}
+		nextToReturn = p.getTuple(curTuple--);
+		return true;
 	}
 
 	public Tuple next() {
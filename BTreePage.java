@@ -22,6 +22,7 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields; // keyFields[0] == keyField
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -52,11 +53,140 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage of an index keyed on an ordered list of fields.
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in key order
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * Get the key of a tuple stored in this index
+	 * @param t - the tuple
+	 * @return the key field of the tuple, or a CompositeField if the index is
+	 * keyed on more than one field
+	 */
+	protected Field getKey(Tuple t) {
+		return CompositeField.keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes taken by a key of this index
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for (int k : keyFields)
+			size += td.getFieldType(k).getLen();
+		return size;
+	}
+
+	/**
+	 * Parse a key of this index from a stream
+	 * @param dis - the stream to read from
+	 * @return the key field, or a CompositeField if the index is keyed on more
+	 * than one field
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		if (keyFields.length == 1)
+			return td.getFieldType(keyField).parse(dis);
+		Field[] key = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			key[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(key);
+	}
+
+	/**
+	 * Returns the components of a key of this index
+	 */
+	private Field[] keyComponents(Field key) {
+		if (keyFields.length == 1)
+			return new Field[] { key };
+		CompositeField ck = (CompositeField) key;
+		Field[] comps = new Field[ck.numFields()];
+		for (int i = 0; i < comps.length; i++)
+			comps[i] = ck.getField(i);
+		return comps;
+	}
+
+	/**
+	 * Returns the number of bytes taken by a key in the compact key format, in
+	 * which strings are stored as a 2-byte length followed by the characters,
+	 * without padding. Other types are stored as by {@link Field#serialize}.
+	 * @param key - the key, or null for the largest possible key
+	 */
+	protected int getCompactKeySize(Field key) {
+		Field[] comps = (key == null) ? null : keyComponents(key);
+		int size = 0;
+		for (int i = 0; i < keyFields.length; i++) {
+			Type t = td.getFieldType(keyFields[i]);
+			if (t != Type.STRING_TYPE)
+				size += t.getLen();
+			else if (comps == null)
+				size += 2 + Type.STRING_LEN;
+			else
+				size += 2 + ((StringField) comps[i]).getValue().length();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes taken by the smallest possible key in the
+	 * compact key format
+	 */
+	protected int getMinCompactKeySize() {
+		int size = 0;
+		for (int k : keyFields) {
+			Type t = td.getFieldType(k);
+			size += (t == Type.STRING_TYPE) ? 2 : t.getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * Write a key in the compact key format
+	 * @see #getCompactKeySize(Field)
+	 */
+	protected void writeCompactKey(Field key, DataOutputStream dos) throws IOException {
+		for (Field f : keyComponents(key)) {
+			if (f.getType() == Type.STRING_TYPE) {
+				String s = ((StringField) f).getValue();
+				dos.writeShort(s.length());
+				dos.writeBytes(s);
+			}
+			else {
+				f.serialize(dos);
+			}
+		}
+	}
+
+	/**
+	 * Read a key in the compact key format
+	 * @see #getCompactKeySize(Field)
+	 */
+	protected Field readCompactKey(DataInputStream dis) throws IOException, java.text.ParseException {
+		Field[] comps = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			Type t = td.getFieldType(keyFields[i]);
+			if (t == Type.STRING_TYPE) {
+				byte[] bs = new byte[dis.readUnsignedShort()];
+				dis.readFully(bs);
+				comps[i] = new StringField(new String(bs), Type.STRING_LEN);
+			}
+			else {
+				comps[i] = t.parse(dis);
+			}
+		}
+		return (keyFields.length == 1) ? comps[0] : new CompositeField(comps);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -104,6 +234,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		beforeModify();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -112,6 +243,13 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Called before the contents of this page are modified, for pages which
+	 * capture their before-image lazily
+	 */
+	protected void beforeModify() {
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -11,6 +11,8 @@ import java.io.*;
 public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
+	// flag set in the root category byte if the internal pages store compact keys
+	private final static int COMPACT_KEYS = 0x80;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -21,6 +23,7 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private boolean compactKeys;
 
 	private byte[] oldData;
 
@@ -31,7 +34,8 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page. The high bit of the category byte is set if
+	 * the internal pages of the tree are in the compact key format.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -39,7 +43,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int category = dis.readByte() & 0xFF;
+		rootCategory = category & ~COMPACT_KEYS;
+		compactKeys = (category & COMPACT_KEYS) != 0;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -91,7 +97,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (rootCategory | (compactKeys ? COMPACT_KEYS : 0)));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -126,6 +132,36 @@ public class BTreeRootPtrPage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeRootPtrPage of a tree whose internal pages are in the given format.
+	 * @param compactKeys - whether the internal pages store compact keys
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(boolean compactKeys) {
+		byte[] data = createEmptyPageData();
+		if(compactKeys) {
+			data[4] = (byte) COMPACT_KEYS;
+		}
+		return data;
+	}
+
+	/**
+	 * Read the format of the internal pages from the bytes of a root pointer
+	 * page
+	 * @return true if the internal pages store compact keys
+	 */
+	static boolean hasCompactKeys(byte[] data) {
+		return (data[4] & COMPACT_KEYS) != 0;
+	}
+
+	/**
+	 * @return true if the internal pages of the tree store compact keys
+	 */
+	public boolean hasCompactKeys() {
+		return compactKeys;
+	}
+
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -14,7 +14,9 @@ public class BTreeScan implements DbIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private boolean descending = false;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -38,8 +40,31 @@ public class BTreeScan implements DbIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table as a part of the
+	 * specified transaction, returning tuples in ascending or descending key order.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param ipred
+	 * 			  The index predicate to match. If null, the scan will return all tuples
+	 *            in sorted order
+	 * @param descending
+	 *            if true, tuples are returned largest key first
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.descending = descending;
 		reset(tableid,tableAlias);
 	}
 
@@ -60,6 +85,20 @@ public class BTreeScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return true if this operator returns tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return this.descending;
+	}
+
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -75,12 +114,14 @@ public class BTreeScan implements DbIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
 		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+			this.it = descending ? file.reverseIterator(tid) : file.iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = descending ? file.reverseIndexIterator(tid, ipred) : file.indexIterator(tid, ipred);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
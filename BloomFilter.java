@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * BloomFilter is a compact probabilistic set of Fields. mightContain never
+ * returns false for a field which was added, and returns true for a field
+ * which was not added with a probability which depends on the number of bits
+ * per entry (about 1% with 10 bits per entry).
+ * <p>
+ * Fields are hashed from their hashCode, which is stable across runs for the
+ * field types of SimpleDB, so a filter can be serialized with the data it
+ * describes and read back later.
+ */
+public class BloomFilter {
+
+	/** Default number of bits per entry, for a false positive rate of about 1% */
+	public static final int DEFAULT_BITS_PER_ENTRY = 10;
+
+	private final long[] bits;
+	private final int numHashes;
+
+	/**
+	 * Create an empty bloom filter sized for the given number of entries.
+	 * @param expectedEntries - the number of fields which will be added
+	 * @param bitsPerEntry - the number of bits of the filter per entry
+	 */
+	public BloomFilter(int expectedEntries, int bitsPerEntry) {
+		long numBits = Math.max(64L, (long) expectedEntries * bitsPerEntry);
+		this.bits = new long[(int) ((numBits + 63) / 64)];
+		this.numHashes = Math.max(1, (int) Math.round(bitsPerEntry * Math.log(2)));
+	}
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * Add a field to the filter
+	 * @param f - the field to add
+	 */
+	public void add(Field f) {
+		long h = mix(f.hashCode());
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		long numBits = getNumBits();
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param f - the field to look for
+	 * @return false if the field was definitely not added to the filter, true
+	 * if it may have been
+	 */
+	public boolean mightContain(Field f) {
+		long h = mix(f.hashCode());
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		long numBits = getNumBits();
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add all the fields of another filter of the same size to this filter
+	 * @param other - the filter to merge into this one
+	 */
+	public void union(BloomFilter other) {
+		if (other.bits.length != bits.length || other.numHashes != numHashes)
+			throw new IllegalArgumentException("bloom filters have different sizes");
+		for (int i = 0; i < bits.length; i++)
+			bits[i] |= other.bits[i];
+	}
+
+	/**
+	 * @return the number of bits of this filter
+	 */
+	public long getNumBits() {
+		return (long) bits.length * 64;
+	}
+
+	/**
+	 * @return the number of bytes written by serialize
+	 */
+	public int getSerializedSize() {
+		return 2 * Type.INT_TYPE.getLen() + bits.length * 8;
+	}
+
+	/**
+	 * Write this filter to the specified DataOutputStream.
+	 * @param dos Where the data is written
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		dos.writeInt(numHashes);
+		dos.writeInt(bits.length);
+		for (long word : bits)
+			dos.writeLong(word);
+	}
+
+	/**
+	 * Read a filter written by serialize.
+	 * @param dis Where the data is read from
+	 * @return the filter
+	 */
+	public static BloomFilter deserialize(DataInputStream dis) throws IOException {
+		int numHashes = dis.readInt();
+		long[] bits = new long[dis.readInt()];
+		for (int i = 0; i < bits.length; i++)
+			bits[i] = dis.readLong();
+		return new BloomFilter(bits, numHashes);
+	}
+
+	/**
+	 * Spread a 32-bit hash code over 64 bits
+	 */
+	private static long mix(int hash) {
+		long h = hash * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 29;
+		return h;
+	}
+}
@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -31,6 +33,10 @@ public class BufferPool {
     private int numPages;
     private HashMap<PageId, Page> bMap;
     private HashMap<PageId, Page> pidToPg;
+    // bytes of each cached page, and their sum; files may have their own
+    // page size, so the pool is bounded by bytes rather than by pages
+    private HashMap<PageId, Integer> frameSizes;
+    private long usedBytes;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -41,11 +47,22 @@ public class BufferPool {
         this.numPages = numPages;
         this.bMap = new HashMap<PageId, Page>();
         this.pidToPg = new HashMap<PageId, Page>(numPages);
+        this.frameSizes = new HashMap<PageId, Integer>();
     }
     
     public static int getPageSize() {
       return pageSize;
     }
+
+    /**
+     * @return the number of bytes of a page of the given file
+     * @see HeapFile#getPageSize()
+     */
+    public static int getPageSize(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).getPageSize();
+        return pageSize;
+    }
     
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
@@ -72,22 +89,26 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException{
         // Check if buffer pool already contains the page
         if (bMap.containsKey(pid)){
             return bMap.get(pid);
         }
 
-        // Check size of buffer pool
-        if (bMap.size() >= numPages){
+        // Check size of buffer pool: it holds numPages pages of the default
+        // size, and fewer pages of files with larger pages
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        int frameSize = getPageSize(file);
+        while (!bMap.isEmpty() && usedBytes + frameSize > (long) numPages * getPageSize()){
             evictPage();
         }
 
         // If buffer pool doesn't contain the page, add it
-        int tableId = pid.getTableId();
-        Page pg = Database.getCatalog().getDatabaseFile(tableId).readPage(pid);
+        Page pg = file.readPage(pid);
         bMap.put(pid, pg);
+        frameSizes.put(pid, frameSize);
+        usedBytes += frameSize;
         return pg;
     }
 
@@ -146,6 +167,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The dictionary-encoded columns of the tuple may hold strings, which are
+     * stored as their codes; t then gets the record id of the stored tuple.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -155,20 +179,36 @@ public class BufferPool {
 
         // get the DbFile of the specified table
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        // returns the pages that were modified
-        ArrayList<Page> modPages = file.insertTuple(tid, t);
+        Tuple stored = Database.getCatalog().encodeStrings(tid, tableId, t);
+        // an online index build may not start or finish halfway through
+        Lock lock = Database.getCatalog().getIndexLock().readLock();
+        lock.lock();
+        try {
+            // returns the pages that were modified
+            ArrayList<Page> modPages;
+            OnlineIndexBuilder build = Database.getCatalog().getIndexBuild(tableId);
+            if (build == null){
+                modPages = file.insertTuple(tid, stored);
+            } else {
+                // the build sees the tuple either in its scan or in its delta
+                synchronized (build){
+                    modPages = file.insertTuple(tid, stored);
+                    build.recordInsert(stored);
+                }
+            }
 
-        // second part -- "marks any pages that were dirtied... as dirty..."
-        for (Page i : modPages){
-            // mark each page dirty
-            i.markDirty(true, tid);
-            // "Will acquire a write lock on the page the tuple is added to and
-            // any other pages that are updated..."
-            if (!this.pidToPg.containsKey(i.getId())){
-                this.getPage(tid, i.getId(), Permissions.READ_WRITE);
+            // second part -- "marks any pages that were dirtied... as dirty..."
+            markDirtyPages(tid, modPages);
+
+            // keep the covering indexes over this table up to date
+            for (CoveringIndex idx : Database.getCatalog().getIndexes(tableId)){
+                idx.insertTuple(tid, stored);
             }
-            // "...and adds versions of any pages that have been dirtied to the cache."
-            this.pidToPg.put(i.getId(), i);
+        } finally {
+            lock.unlock();
+        }
+        if (stored != t){
+            t.setRecordId(stored.getRecordId());
         }
     }
 
@@ -193,22 +233,54 @@ public class BufferPool {
         int ID = t.getRecordId().getPageId().getTableId();
         // get table tuple is in (based on ID above)
         DbFile table = Database.getCatalog().getDatabaseFile(ID);
-        // returns the pages that were modified
-        ArrayList<Page> modPages = table.deleteTuple(tid, t);
+        // an online index build may not start or finish halfway through
+        Lock lock = Database.getCatalog().getIndexLock().readLock();
+        lock.lock();
+        try {
+            // returns the pages that were modified
+            ArrayList<Page> modPages;
+            OnlineIndexBuilder build = Database.getCatalog().getIndexBuild(ID);
+            if (build == null){
+                modPages = table.deleteTuple(tid, t);
+            } else {
+                // the build sees the deletion either in its scan or in its delta
+                synchronized (build){
+                    modPages = table.deleteTuple(tid, t);
+                    build.recordDelete(t);
+                }
+            }
+
+            // mark each modified page as dirty
+            markDirtyPages(tid, modPages);
+
+            // keep the covering indexes over this table up to date
+            for (CoveringIndex idx : Database.getCatalog().getIndexes(ID)){
+                idx.deleteTuple(tid, t);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // mark each modified page as dirty
+    /**
+     * Marks the pages modified by an insert or a delete as dirty, and adds
+     * them to the cache. Tables may be modified by several threads at once,
+     * e.g. during an online index build, so the page tables are only touched
+     * while holding the buffer pool.
+     */
+    private synchronized void markDirtyPages(TransactionId tid, ArrayList<Page> modPages)
+        throws DbException, TransactionAbortedException {
         for (Page i : modPages){
+            // mark each page dirty
             i.markDirty(true, tid);
-            PageId pgID = i.getId();
-            // "Will acquire a write lock on the page the tuple is removed from and
-            //  any other pages that are updated..."
-            if (!this.pidToPg.containsKey(pgID)){
-                this.getPage(tid, pgID, Permissions.READ_WRITE);
+            // "Will acquire a write lock on the page the tuple is added to and
+            // any other pages that are updated..."
+            if (!this.pidToPg.containsKey(i.getId())){
+                this.getPage(tid, i.getId(), Permissions.READ_WRITE);
             }
             // "...and adds versions of any pages that have been dirtied to the cache."
-            this.pidToPg.put(pgID, i);
+            this.pidToPg.put(i.getId(), i);
         }
-
     }
 
     /**
@@ -220,6 +292,22 @@ public class BufferPool {
         for (PageId pg : bMap.keySet()){
             flushPage(pg);
         }
+        // LSM and columnar files keep their recent tuples in memory rather than in pages
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()){
+            DbFile file = Database.getCatalog().getDatabaseFile(tables.next());
+            if (file instanceof LSMFile){
+                ((LSMFile) file).flush();
+            } else if (file instanceof ColumnarFile){
+                ((ColumnarFile) file).flush();
+            } else if (file instanceof HeapFile){
+                // the page filters and zone maps now describe the pages on disk
+                ((HeapFile) file).savePageFilters();
+                ((HeapFile) file).saveZoneMaps();
+            }
+        }
+        // the dictionary files only grow as codes are given out; compact them
+        Database.getCatalog().saveDictionaries();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -231,7 +319,33 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        bMap.remove(pid);
+        removePage(pid);
+    }
+
+    /**
+     * Remove every page of a table from the cache, without writing the dirty
+     * ones, e.g. the pages of an index being dropped.
+     * @param tableid the id of the table
+     */
+    public synchronized void discardPages(int tableid) {
+        for (PageId pid : new ArrayList<PageId>(bMap.keySet())){
+            if (pid.getTableId() == tableid){
+                removePage(pid);
+            }
+        }
+        for (PageId pid : new ArrayList<PageId>(pidToPg.keySet())){
+            if (pid.getTableId() == tableid){
+                pidToPg.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * Remove a page from the cache, freeing its frame
+     */
+    private void removePage(PageId pid) {
+        if (bMap.remove(pid) != null)
+            usedBytes -= frameSizes.remove(pid);
     }
 
     /**
@@ -293,7 +407,7 @@ public class BufferPool {
             throw new DbException("Unable to evict a page!");
         }
         // remove the appropriate page
-        bMap.remove(pID);
+        removePage(pID);
     }
 
 }
@@ -6,6 +6,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -18,6 +20,9 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Catalog {
 
+    /** Number of tuples rewritten at a time when a dictionary is rebalanced */
+    public static final int REENCODE_BATCH = 1024;
+
     // fields required for the Catalog class
     // table holding ID (Integer) and corresponding file (DbFile)
     private HashMap<Integer,DbFile> filesTable;
@@ -27,6 +32,20 @@ public class Catalog {
     private HashMap<Integer,String> keysTable;
     // table holding name (String) and corresponding ID (Integer)
     private HashMap<String, Integer> IDsTable;
+    // table holding ID (Integer) of a base table and the covering indexes built over it
+    private HashMap<Integer, ArrayList<CoveringIndex>> indexesTable;
+    // table holding ID (Integer) of a base table and the online index build running over it
+    private ConcurrentHashMap<Integer, OnlineIndexBuilder> buildsTable;
+    // table holding ID (Integer) and the dictionary of each dictionary-encoded column, by field
+    private HashMap<Integer, StringDictionary[]> dictionariesTable;
+    // table holding name (String) and corresponding dictionary, shared by the columns encoded with it
+    private HashMap<String, StringDictionary> namedDictionariesTable;
+    // table holding name (String) and corresponding tablespace
+    private HashMap<String, Tablespace> tablespacesTable;
+    // table holding ID (Integer) and the tablespace the table was placed in
+    private HashMap<Integer, Tablespace> tableTablespacesTable;
+    // held for reading while a table is modified, and for writing while an index build starts or ends
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /**
      * Constructor.
@@ -37,6 +56,12 @@ public class Catalog {
         namesTable = new HashMap<Integer, String>();
         keysTable = new HashMap<Integer, String>();
         IDsTable = new HashMap<String, Integer>();
+        indexesTable = new HashMap<Integer, ArrayList<CoveringIndex>>();
+        buildsTable = new ConcurrentHashMap<Integer, OnlineIndexBuilder>();
+        dictionariesTable = new HashMap<Integer, StringDictionary[]>();
+        namedDictionariesTable = new HashMap<String, StringDictionary>();
+        tablespacesTable = new HashMap<String, Tablespace>();
+        tableTablespacesTable = new HashMap<Integer, Tablespace>();
     }
 
     /**
@@ -64,6 +89,20 @@ public class Catalog {
 
     }
 
+    /**
+     * Remove a table from the catalog, leaving its file as it is
+     * @param tableid The id of the table
+     */
+    private void removeTable(int tableid) {
+        filesTable.remove(tableid);
+        keysTable.remove(tableid);
+        tableTablespacesTable.remove(tableid);
+        String name = namesTable.remove(tableid);
+        if (name != null && IDsTable.get(name) != null && IDsTable.get(name) == tableid){
+            IDsTable.remove(name);
+        }
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -79,6 +118,348 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a covering index over a table that is already in the catalog. The
+     * BTreeFile backing the index is registered as a table of its own under
+     * the given name so that its pages can be fetched through the BufferPool.
+     * An index whose file is empty is first filled with the tuples already in
+     * the table, while changes to the table are held up, so that it is
+     * complete once the planner can use it; a file which is not empty is
+     * taken to be built already.
+     * @param index the index to add
+     * @param name the name of the index
+     */
+    public void addIndex(CoveringIndex index, String name)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!filesTable.containsKey(index.getBaseTableId())){
+            throw new NoSuchElementException("Table does not exist");
+        }
+        Lock lock = indexLock.writeLock();
+        lock.lock();
+        try {
+            addTable(index.getFile(), name);
+            if (index.getFile().getFile().length() == 0){
+                TransactionId tid = new TransactionId();
+                DbFileIterator it = filesTable.get(index.getBaseTableId()).iterator(tid);
+                it.open();
+                while (it.hasNext()){
+                    index.insertTuple(tid, it.next());
+                }
+                it.close();
+            }
+            if (!indexesTable.containsKey(index.getBaseTableId())){
+                indexesTable.put(index.getBaseTableId(), new ArrayList<CoveringIndex>());
+            }
+            indexesTable.get(index.getBaseTableId()).add(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start an online build of a covering index. The BufferPool reports the
+     * changes to the base table to the builder until the build finishes.
+     * @param builder the build to start
+     * @throws DbException if another index is being built over the same table
+     */
+    public void beginIndexBuild(OnlineIndexBuilder builder) throws DbException {
+        CoveringIndex index = builder.getIndex();
+        if (!filesTable.containsKey(index.getBaseTableId())){
+            throw new NoSuchElementException("Table does not exist");
+        }
+        Lock lock = indexLock.writeLock();
+        lock.lock();
+        try {
+            if (buildsTable.containsKey(index.getBaseTableId())){
+                throw new DbException("an index is already being built over table " + index.getBaseTableId());
+            }
+            addTable(index.getFile(), builder.getName());
+            builder.start();
+            buildsTable.put(index.getBaseTableId(), builder);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switch in the index of a finished online build, so that the BufferPool
+     * maintains it directly. Called with the index lock held for writing.
+     */
+    void finishIndexBuild(OnlineIndexBuilder builder) {
+        CoveringIndex index = builder.getIndex();
+        buildsTable.remove(index.getBaseTableId());
+        if (!indexesTable.containsKey(index.getBaseTableId())){
+            indexesTable.put(index.getBaseTableId(), new ArrayList<CoveringIndex>());
+        }
+        indexesTable.get(index.getBaseTableId()).add(index);
+    }
+
+    /**
+     * Stop reporting changes to an online build which failed, and drop its
+     * half-built index: the table registered for it, its pages in the
+     * BufferPool and its file, so that the build may be tried again.
+     */
+    void abortIndexBuild(OnlineIndexBuilder builder) {
+        Lock lock = indexLock.writeLock();
+        lock.lock();
+        try {
+            if (!buildsTable.remove(builder.getIndex().getBaseTableId(), builder)){
+                // the build never started, e.g. another build was running
+                return;
+            }
+            BTreeFile file = builder.getIndex().getFile();
+            removeTable(file.getId());
+            Database.getBufferPool().discardPages(file.getId());
+            file.getFile().delete();
+            PageChecksums.discard(file.getFile());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the online index build running over the specified table, or null
+     */
+    public OnlineIndexBuilder getIndexBuild(int tableid) {
+        return buildsTable.get(tableid);
+    }
+
+    /**
+     * Returns the lock which orders changes to tables against the start and
+     * the end of online index builds. The BufferPool holds it for reading
+     * while it modifies a table and its indexes.
+     */
+    public ReentrantReadWriteLock getIndexLock() {
+        return indexLock;
+    }
+
+    /**
+     * Returns the covering indexes built over the specified table
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @return the indexes over the table, possibly empty
+     */
+    public List<CoveringIndex> getIndexes(int tableid) {
+        if (!indexesTable.containsKey(tableid)){
+            return Collections.emptyList();
+        }
+        return indexesTable.get(tableid);
+    }
+
+    /**
+     * Make a column of a table that is already in the catalog
+     * dictionary-encoded: the column stores the int codes of its strings in
+     * the given dictionary. Columns which are joined with each other must
+     * share their dictionary, see {@link #addDictionary}.
+     * @param tableid The id of the table
+     * @param field the column, an INT_TYPE field of the table
+     * @param dict the dictionary of the column
+     */
+    public void setDictionary(int tableid, int field, StringDictionary dict) {
+        TupleDesc td = getTupleDesc(tableid);
+        if (td.getFieldType(field) != Type.INT_TYPE){
+            throw new IllegalArgumentException("Dictionary codes are stored in int fields");
+        }
+        if (!dictionariesTable.containsKey(tableid)){
+            dictionariesTable.put(tableid, new StringDictionary[td.numFields()]);
+        }
+        dictionariesTable.get(tableid)[field] = dict;
+    }
+
+    /**
+     * @return the dictionary of a column of a table, or null if the column is
+     *     not dictionary-encoded
+     */
+    public StringDictionary getDictionary(int tableid, int field) {
+        StringDictionary[] dicts = dictionariesTable.get(tableid);
+        return dicts == null ? null : dicts[field];
+    }
+
+    /**
+     * @return the dictionary of each column of a table, null for the columns
+     *     which are not dictionary-encoded; or null if no column is
+     */
+    public StringDictionary[] getDictionaries(int tableid) {
+        return dictionariesTable.get(tableid);
+    }
+
+    /**
+     * Add a dictionary which several columns may share, replacing any
+     * dictionary of the same name.
+     * @param name the name of the dictionary
+     * @param dict the dictionary
+     */
+    public void addDictionary(String name, StringDictionary dict) {
+        namedDictionariesTable.put(name, dict);
+    }
+
+    /**
+     * @param name the name of a dictionary
+     * @return the dictionary
+     * @throws NoSuchElementException if there is no dictionary of that name
+     */
+    public StringDictionary getDictionary(String name) throws NoSuchElementException {
+        if (!namedDictionariesTable.containsKey(name)){
+            throw new NoSuchElementException("Dictionary does not exist");
+        }
+        return namedDictionariesTable.get(name);
+    }
+
+    /**
+     * Rewrite the files of the dictionaries which are backed by a file, so
+     * that they only hold the codes still in use. The files are kept up to
+     * date as codes are given out, so this only makes them smaller.
+     */
+    public void saveDictionaries() throws IOException {
+        for (StringDictionary[] dicts : dictionariesTable.values()){
+            for (StringDictionary dict : dicts){
+                if (dict != null){
+                    dict.save();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode the strings a tuple holds in the dictionary-encoded columns of
+     * a table, giving new strings new codes. A dictionary with no code left
+     * for a new string, or whose rebalance was left unfinished, is
+     * rebalanced first, and every column encoded with it is rewritten with
+     * the new codes in the given transaction.
+     * @param tid the transaction inserting the tuple
+     * @param tableid the id of the table
+     * @param t a tuple of the table, with strings or codes in its
+     *     dictionary-encoded columns
+     * @return the tuple to store, t itself if it holds no string to encode
+     */
+    public Tuple encodeStrings(TransactionId tid, int tableid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        StringDictionary[] dicts = dictionariesTable.get(tableid);
+        if (dicts == null){
+            return t;
+        }
+        Tuple encoded = null;
+        for (int i = 0; i < dicts.length; i++){
+            if (dicts[i] == null || !(t.getField(i) instanceof StringField)){
+                continue;
+            }
+            if (encoded == null){
+                encoded = new Tuple(getTupleDesc(tableid));
+                for (int j = 0; j < dicts.length; j++){
+                    encoded.setField(j, t.getField(j));
+                }
+            }
+            String s = ((StringField) t.getField(i)).getValue();
+            synchronized (dicts[i]){
+                if (!dicts[i].canEncode(s)){
+                    reencode(tid, dicts[i]);
+                }
+                encoded.setField(i, new IntField(dicts[i].encode(s)));
+            }
+        }
+        return encoded == null ? t : encoded;
+    }
+
+    /**
+     * Rebalance the codes of a dictionary, and rewrite the tuples of every
+     * table with a column encoded with it: each tuple holding a retired code
+     * is deleted and inserted again with the new code, so that the indexes
+     * over the table follow. The retired codes keep decoding until every
+     * tuple is rewritten, so a rewrite which fails partway leaves the
+     * tuples readable, and is taken up again by the next rebalance.
+     */
+    private void reencode(TransactionId tid, StringDictionary dict)
+            throws DbException, IOException, TransactionAbortedException {
+        dict.rebalance();
+        for (Map.Entry<Integer, StringDictionary[]> e : new ArrayList<Map.Entry<Integer, StringDictionary[]>>(dictionariesTable.entrySet())){
+            if (Arrays.asList(e.getValue()).contains(dict)){
+                rewriteCodes(tid, e.getKey(), e.getValue(), dict);
+            }
+        }
+        dict.finishRebalance();
+    }
+
+    /**
+     * Rewrite the tuples of a table which hold retired codes of a dictionary,
+     * REENCODE_BATCH tuples at a time. A HeapFile is read once, page by
+     * page; tuples inserted again behind the scan hold new codes and are
+     * passed over. Other files are scanned again after each batch.
+     */
+    private void rewriteCodes(TransactionId tid, int tableid, StringDictionary[] dicts, StringDictionary dict)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = filesTable.get(tableid);
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        if (file instanceof HeapFile){
+            HeapFile hf = (HeapFile) file;
+            for (int pageNo = 0; pageNo < hf.numPages(); pageNo++){
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableid, pageNo), Permissions.READ_ONLY);
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()){
+                    Tuple t = it.next();
+                    if (holdsRetiredCode(t, dicts, dict)){
+                        batch.add(t);
+                    }
+                }
+                if (batch.size() >= REENCODE_BATCH){
+                    rewriteBatch(tid, tableid, dicts, dict, batch);
+                }
+            }
+            rewriteBatch(tid, tableid, dicts, dict, batch);
+            return;
+        }
+        while (true){
+            DbFileIterator it = file.iterator(tid);
+            it.open();
+            while (it.hasNext() && batch.size() < REENCODE_BATCH){
+                Tuple t = it.next();
+                if (holdsRetiredCode(t, dicts, dict)){
+                    batch.add(t);
+                }
+            }
+            it.close();
+            if (batch.isEmpty()){
+                return;
+            }
+            rewriteBatch(tid, tableid, dicts, dict, batch);
+        }
+    }
+
+    private static boolean holdsRetiredCode(Tuple t, StringDictionary[] dicts, StringDictionary dict) {
+        for (int i = 0; i < dicts.length; i++){
+            if (dicts[i] == dict && t.getField(i) != null
+                    && dict.newCodeOf(((IntField) t.getField(i)).getValue()) != null){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete the tuples of a batch and insert them again with the new codes,
+     * and empty the batch
+     */
+    private void rewriteBatch(TransactionId tid, int tableid, StringDictionary[] dicts,
+            StringDictionary dict, ArrayList<Tuple> batch)
+            throws DbException, IOException, TransactionAbortedException {
+        for (Tuple old : batch){
+            Tuple t = new Tuple(getTupleDesc(tableid));
+            for (int i = 0; i < dicts.length; i++){
+                Field f = old.getField(i);
+                if (dicts[i] == dict && f != null){
+                    Integer code = dict.newCodeOf(((IntField) f).getValue());
+                    if (code != null){
+                        f = new IntField(code);
+                    }
+                }
+                t.setField(i, f);
+            }
+            Database.getBufferPool().deleteTuple(tid, old);
+            Database.getBufferPool().insertTuple(tid, tableid, t);
+        }
+        batch.clear();
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -159,8 +540,60 @@ public class Catalog {
         namesTable.clear();
         keysTable.clear();
         IDsTable.clear();
+        indexesTable.clear();
+        buildsTable.clear();
+        dictionariesTable.clear();
+        namedDictionariesTable.clear();
+        tablespacesTable.clear();
+        tableTablespacesTable.clear();
     }
     
+    /**
+     * Add a tablespace, replacing any tablespace of the same name. The files
+     * of tables and indexes are placed in it through
+     * {@link Tablespace#fileFor} or {@link Tablespace#openHeapFile}; CREATE
+     * INDEX places an index in the tablespace it names, or else in that of
+     * its table (see {@link #setTablespace}).
+     * @param space the tablespace
+     */
+    public void addTablespace(Tablespace space) {
+        tablespacesTable.put(space.getName(), space);
+    }
+
+    /**
+     * @param name the name of a tablespace
+     * @return the tablespace
+     * @throws NoSuchElementException if there is no tablespace of that name
+     */
+    public Tablespace getTablespace(String name) throws NoSuchElementException {
+        if (!tablespacesTable.containsKey(name)){
+            throw new NoSuchElementException("Tablespace does not exist");
+        }
+        return tablespacesTable.get(name);
+    }
+
+    /**
+     * Record the tablespace the file of a table is placed in, which is where
+     * the indexes over the table go unless they are given one of their own.
+     * @param tableid The id of the table
+     * @param space the tablespace of the table
+     */
+    public void setTablespace(int tableid, Tablespace space) {
+        if (!filesTable.containsKey(tableid)){
+            throw new NoSuchElementException("Table does not exist");
+        }
+        tableTablespacesTable.put(tableid, space);
+    }
+
+    /**
+     * @param tableid The id of the table
+     * @return the tablespace the table is placed in, or null if the table is
+     *     not in a tablespace
+     */
+    public Tablespace getTablespaceOf(int tableid) {
+        return tableTablespacesTable.get(tableid);
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
@@ -172,7 +605,25 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //a line tablespace name dir [dir ...] defines a tablespace, whose
+                //directories are relative to the catalog file unless absolute
+                if (line.startsWith("tablespace ")) {
+                    String[] words = line.trim().split("\\s+");
+                    File[] dirs = new File[words.length - 2];
+                    for (int i = 0; i < dirs.length; i++) {
+                        File dir = new File(words[i + 2]);
+                        dirs[i] = dir.isAbsolute() ? dir : new File(baseFolder, words[i + 2]);
+                    }
+                    addTablespace(new Tablespace(words[1], dirs));
+                    continue;
+                }
+                //otherwise assume line is of the format name (field type, field type, ...) [layout]
+                //where layout is one of fixed (the default), slotted, pax or columnar,
+                //optionally followed by compressed and by pagesize=<bytes> for heap
+                //files, and by tablespace=<name> to place the table in a tablespace,
+                //and a field of type dict is an int column of codes of strings, in
+                //a dictionary of its own or, for dict=<name>, in a dictionary shared
+                //with the other columns of that type
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -180,6 +631,8 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> encoded = new ArrayList<Integer>();
+                ArrayList<String> dictNames = new ArrayList<String>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -187,6 +640,13 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().toLowerCase().equals("dict")
+                            || els2[1].trim().toLowerCase().startsWith("dict=")) {
+                        encoded.add(types.size());
+                        String[] dict = els2[1].trim().split("=", 2);
+                        dictNames.add(dict.length == 2 ? dict[1] : null);
+                        types.add(Type.INT_TYPE);
+                    }
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -203,8 +663,64 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String layoutName = line.substring(line.indexOf(")") + 1).trim();
+                Tablespace space = null;
+                if (layoutName.matches("(.*\\s)?tablespace=\\S+")) {
+                    int eq = layoutName.lastIndexOf('=');
+                    String spaceName = layoutName.substring(eq + 1);
+                    if (!tablespacesTable.containsKey(spaceName)) {
+                        System.out.println("Unknown tablespace " + spaceName);
+                        System.exit(0);
+                    }
+                    space = tablespacesTable.get(spaceName);
+                    layoutName = layoutName.substring(0, eq - "tablespace".length()).trim();
+                }
+                if (layoutName.toLowerCase().equals("columnar")) {
+                    File dir = space == null ? new File(baseFolder+"/"+name + ".col") : space.fileFor(name + ".col");
+                    ColumnarFile tabCf = new ColumnarFile(dir, t);
+                    addTable(tabCf,name,primaryKey);
+                    if (space != null)
+                        setTablespace(tabCf.getId(), space);
+                    loadDictionaries(tabCf.getId(), baseFolder, name, namesAr, encoded, dictNames);
+                    System.out.println("Added table : " + name + " with schema " + t);
+                    continue;
+                }
+                int pageSize = 0;
+                if (layoutName.toLowerCase().matches("(.*\\s)?pagesize=\\d+")) {
+                    int eq = layoutName.lastIndexOf('=');
+                    pageSize = Integer.parseInt(layoutName.substring(eq + 1));
+                    layoutName = layoutName.substring(0, eq - "pagesize".length()).trim();
+                }
+                boolean compressed = false;
+                if (layoutName.toLowerCase().endsWith("compressed")) {
+                    compressed = true;
+                    layoutName = layoutName.substring(0, layoutName.length() - "compressed".length()).trim();
+                }
+                HeapFile.Layout layout = HeapFile.Layout.FIXED;
+                if (layoutName.length() > 0) {
+                    try {
+                        layout = HeapFile.Layout.valueOf(layoutName.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Unknown layout " + layoutName);
+                        System.exit(0);
+                    }
+                }
+                //compressed files place their frames anywhere in the file, so they
+                //go into one directory of their tablespace rather than being striped
+                File dataFile = space == null ? new File(baseFolder+"/"+name + ".dat")
+                        : space.fileFor(name + ".dat");
+                HeapFile tabHf;
+                if (compressed)
+                    tabHf = new CompressedHeapFile(dataFile, t, layout, pageSize,
+                            CompressedHeapFile.DEFAULT_FRAME_CACHE_PAGES);
+                else if (space != null)
+                    tabHf = space.openHeapFile(name + ".dat", t, layout, pageSize);
+                else
+                    tabHf = new HeapFile(dataFile, t, layout, pageSize);
                 addTable(tabHf,name,primaryKey);
+                if (space != null)
+                    setTablespace(tabHf.getId(), space);
+                loadDictionaries(tabHf.getId(), baseFolder, name, namesAr, encoded, dictNames);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
@@ -215,5 +731,26 @@ public class Catalog {
             System.exit(0);
         }
     }
-}
 
+    /**
+     * Open the dictionaries of the dictionary-encoded columns of a table
+     * loaded from the catalog file, stored next to its data as
+     * name.field.dict, or as dictName.dict for a shared dictionary, which is
+     * opened once
+     */
+    private void loadDictionaries(int tableid, String baseFolder, String name,
+            String[] names, List<Integer> encoded, List<String> dictNames) throws IOException {
+        for (int i = 0; i < encoded.size(); i++) {
+            int field = encoded.get(i);
+            String dictName = dictNames.get(i);
+            if (dictName == null) {
+                File f = new File(baseFolder+"/"+name + "." + names[field] + ".dict");
+                setDictionary(tableid, field, new StringDictionary(f));
+                continue;
+            }
+            if (!namedDictionariesTable.containsKey(dictName))
+                addDictionary(dictName, new StringDictionary(new File(baseFolder+"/"+dictName + ".dict")));
+            setDictionary(tableid, field, namedDictionariesTable.get(dictName));
+        }
+    }
+}
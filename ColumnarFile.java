@@ -0,0 +1,800 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * ColumnarFile is an implementation of a DbFile that stores each column of a
+ * table in its own file, for tables which are scanned far more often than they
+ * are updated and whose queries read few of their columns. Tuples are appended
+ * to a tail held in memory; once the tail holds blockRows tuples, each column
+ * of the tail is compressed into a block and appended to the file of its
+ * column. Blocks are never updated in place, and none goes through the
+ * BufferPool.
+ * <p>
+ * Each block is compressed with whichever of its encodings is smallest: run
+ * length encoding, a dictionary of the distinct values with bit-packed codes,
+ * frame-of-reference encoding of IntFields as bit-packed offsets from the
+ * smallest value, or the plain values. A block also records the smallest and
+ * largest value of its column, so that a scan with a predicate skips the
+ * blocks which cannot hold a matching value without reading them, and a scan
+ * of some of the columns only reads and decompresses the blocks of those
+ * columns.
+ * <p>
+ * Tuples are identified by their row number. Deleting a tuple marks its row
+ * deleted; the deleted rows are appended to a file of deletes when the tail is
+ * written. The tail and the deletes are not logged; call flush (or
+ * BufferPool.flushAllPages) to make the tuples inserted so far durable.
+ *
+ * @see ColumnBlock
+ */
+public class ColumnarFile implements DbFile {
+
+	/** Default number of tuples of a block */
+	public static final int DEFAULT_BLOCK_ROWS = 4096;
+	static final String COLUMN_PREFIX = "column-";
+	static final String COLUMN_SUFFIX = ".col";
+	static final String DELETES_FILE = "deletes.del";
+
+	private final File dir;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int blockRows;
+	private final FileChannel[] columns;
+
+	// guarded by this
+	private final ArrayList<ColumnBlock[]> blocks; // one block of each column
+	private int numStoredRows; // rows of the blocks on disk
+	private ArrayList<Tuple> tail;
+	private final BitSet deleted;
+	private final ArrayList<Integer> pendingDeletes; // not yet in the deletes file
+
+	/**
+	 * Constructs a columnar file backed by the specified directory, which is
+	 * created if it does not exist. The columns already in the directory are
+	 * opened.
+	 *
+	 * @param dir - the directory that stores the columns of this file
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public ColumnarFile(File dir, TupleDesc td) throws IOException {
+		this(dir, td, DEFAULT_BLOCK_ROWS);
+	}
+
+	/**
+	 * Constructs a columnar file backed by the specified directory.
+	 *
+	 * @param dir - the directory that stores the columns of this file
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param blockRows - the number of tuples of a block
+	 */
+	public ColumnarFile(File dir, TupleDesc td, int blockRows) throws IOException {
+		this.dir = dir;
+		this.tableid = dir.getAbsoluteFile().hashCode();
+		this.td = td;
+		this.blockRows = blockRows;
+		this.columns = new FileChannel[td.numFields()];
+		this.blocks = new ArrayList<ColumnBlock[]>();
+		this.tail = new ArrayList<Tuple>();
+		this.deleted = new BitSet();
+		this.pendingDeletes = new ArrayList<Integer>();
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create directory " + dir);
+		}
+		ArrayList<List<ColumnBlock>> found = new ArrayList<List<ColumnBlock>>();
+		int n = Integer.MAX_VALUE;
+		for (int i = 0; i < columns.length; i++) {
+			File f = new File(dir, COLUMN_PREFIX + i + COLUMN_SUFFIX);
+			columns[i] = new RandomAccessFile(f, "rw").getChannel();
+			List<ColumnBlock> col = ColumnBlock.readAll(columns[i], td, i);
+			found.add(col);
+			n = Math.min(n, col.size());
+		}
+		// a block whose write did not complete in every column is dropped
+		for (int b = 0; b < n; b++) {
+			ColumnBlock[] block = new ColumnBlock[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				block[i] = found.get(i).get(b);
+			}
+			blocks.add(block);
+			numStoredRows += block[0].numRows;
+		}
+		for (int i = 0; i < columns.length; i++) {
+			columns[i].truncate(n == 0 ? 0 : found.get(i).get(n - 1).end());
+		}
+
+		File deletes = new File(dir, DELETES_FILE);
+		if (deletes.exists()) {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(deletes)));
+			try {
+				while (dis.available() >= Type.INT_TYPE.getLen()) {
+					int row = dis.readInt();
+					if (row < numStoredRows)
+						deleted.set(row);
+				}
+			} finally {
+				dis.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory backing this ColumnarFile on disk.
+	 */
+	public File getFile() {
+		return dir;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this ColumnarFile, the hash code of
+	 * the absolute name of its directory.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * The blocks of a ColumnarFile are read directly, not through the BufferPool.
+	 * @throws IllegalArgumentException always, as no page is in this file
+	 */
+	public Page readPage(PageId pid) {
+		throw new IllegalArgumentException("ColumnarFile has no buffer pool pages");
+	}
+
+	/**
+	 * The blocks of a ColumnarFile are appended, not written through the BufferPool.
+	 * @throws IllegalArgumentException always, as no page is in this file
+	 */
+	public void writePage(Page page) throws IOException {
+		throw new IllegalArgumentException("ColumnarFile has no buffer pool pages");
+	}
+
+	/**
+	 * Append a tuple to the tail, writing the tail as a block once it is full.
+	 * A copy of the tuple is stored; the record id of the tuple holds its row
+	 * number.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return an empty list, since no page is dirtied
+	 */
+	public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in insertTuple");
+		}
+		Tuple copy = new Tuple(td);
+		for (int i = 0; i < td.numFields(); i++) {
+			copy.setField(i, t.getField(i));
+		}
+		RecordId rid = getRecordId(numStoredRows + tail.size());
+		copy.setRecordId(rid);
+		t.setRecordId(rid);
+		tail.add(copy);
+		if (tail.size() >= blockRows) {
+			writeTail();
+		}
+		return new ArrayList<Page>();
+	}
+
+	/**
+	 * Mark the row of a tuple deleted.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return an empty list, since no page is dirtied
+	 */
+	public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tuple is not a member of this file");
+		}
+		int row = rid.tupleno();
+		if (row < 0 || row >= numStoredRows + tail.size() || deleted.get(row)) {
+			throw new DbException("tuple is already deleted");
+		}
+		deleted.set(row);
+		pendingDeletes.add(row);
+		t.setRecordId(null);
+		return new ArrayList<Page>();
+	}
+
+	/**
+	 * Get an iterator over all tuples of this file, in row order
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new ColumnarFileIterator(this, null, null);
+	}
+
+	/**
+	 * Get an iterator over the tuples of this file which satisfy a predicate,
+	 * with only some of their fields set; the others are null. Only the blocks
+	 * of the predicate's column and of the fields are read, and a block is
+	 * skipped when the smallest and largest values of the predicate's column
+	 * show that none of its tuples satisfies the predicate.
+	 *
+	 * @param tid - the transaction id
+	 * @param pred - the predicate, or null to return all the tuples
+	 * @param fields - the fields to set, or null for all of them
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate pred, int[] fields) {
+		return new ColumnarFileIterator(this, pred, fields);
+	}
+
+	/**
+	 * Write the tail as a block, even if it is not full, and the deleted rows
+	 * to the file of deletes.
+	 */
+	public synchronized void flush() throws IOException {
+		writeTail();
+		writeDeletes();
+	}
+
+	/**
+	 * @return the number of blocks of each column on disk
+	 */
+	public synchronized int numBlocks() {
+		return blocks.size();
+	}
+
+	/**
+	 * Record id of the tuple of a row. The page number is not meaningful.
+	 */
+	RecordId getRecordId(int row) {
+		return new RecordId(new HeapPageId(tableid, 0), row);
+	}
+
+	/**
+	 * Compress each column of the tail into a block and append it to the file
+	 * of the column. Must be called holding the lock of this file.
+	 */
+	private void writeTail() throws IOException {
+		if (tail.isEmpty())
+			return;
+		ColumnBlock[] block = new ColumnBlock[columns.length];
+		Field[] values = new Field[tail.size()];
+		for (int i = 0; i < columns.length; i++) {
+			for (int r = 0; r < values.length; r++) {
+				values[r] = tail.get(r).getField(i);
+			}
+			block[i] = ColumnBlock.write(columns[i], td, i, values);
+		}
+		for (FileChannel c : columns) {
+			c.force(false);
+		}
+		blocks.add(block);
+		numStoredRows += tail.size();
+		// iterators may still hold the old tail
+		tail = new ArrayList<Tuple>();
+		writeDeletes();
+	}
+
+	/**
+	 * Append the rows deleted since the last call to the file of deletes. The
+	 * rows of the tail are written once the tail is, so that a row number is
+	 * never recorded deleted before its tuple is on disk. Must be called
+	 * holding the lock of this file.
+	 */
+	private void writeDeletes() throws IOException {
+		if (pendingDeletes.isEmpty())
+			return;
+		FileOutputStream fos = new FileOutputStream(new File(dir, DELETES_FILE), true);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			Iterator<Integer> it = pendingDeletes.iterator();
+			while (it.hasNext()) {
+				int row = it.next();
+				if (row < numStoredRows) {
+					dos.writeInt(row);
+					it.remove();
+				}
+			}
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Take a consistent snapshot of the blocks, the tail and the deleted rows
+	 * of this file.
+	 *
+	 * @param blocksOut - filled with the blocks
+	 * @param tailOut - filled with the tuples of the tail
+	 * @return a copy of the deleted rows
+	 */
+	synchronized BitSet snapshot(List<ColumnBlock[]> blocksOut, List<Tuple> tailOut) {
+		blocksOut.addAll(blocks);
+		tailOut.addAll(tail);
+		return (BitSet) deleted.clone();
+	}
+}
+
+/**
+ * A compressed block of one column of a ColumnarFile. A block is stored as a
+ * header followed by the encoded values:
+ * <pre>
+ * | encoding (1) | number of rows (4) | length of values (4) | min | max | values |
+ * </pre>
+ * where min and max are serialized like the fields of a HeapPage. Strings in
+ * the values take a 2-byte length and their characters.
+ */
+class ColumnBlock {
+	static final byte PLAIN = 0;
+	static final byte RUN_LENGTH = 1;
+	static final byte DICTIONARY = 2;
+	static final byte FRAME_OF_REFERENCE = 3;
+
+	final FileChannel channel;
+	final TupleDesc td;
+	final int col;
+	final long offset;
+	final byte encoding;
+	final int numRows;
+	final int length;
+	final Field min;
+	final Field max;
+
+	private ColumnBlock(FileChannel channel, TupleDesc td, int col, long offset, byte encoding,
+			int numRows, int length, Field min, Field max) {
+		this.channel = channel;
+		this.td = td;
+		this.col = col;
+		this.offset = offset;
+		this.encoding = encoding;
+		this.numRows = numRows;
+		this.length = length;
+		this.min = min;
+		this.max = max;
+	}
+
+	static int getHeaderSize(TupleDesc td, int col) {
+		return 1 + 2 * Type.INT_TYPE.getLen() + 2 * td.getFieldType(col).getLen();
+	}
+
+	/**
+	 * @return the offset in the file of the column just past this block
+	 */
+	long end() {
+		return offset + getHeaderSize(td, col) + length;
+	}
+
+	/**
+	 * @return false if no value of this block satisfies (value op operand)
+	 */
+	boolean mightMatch(Predicate.Op op, Field operand) {
+		return PageZoneMaps.mightMatch(min, max, op, operand);
+	}
+
+	/**
+	 * Read the headers of the blocks of a column, stopping at a block which is
+	 * not completely written.
+	 */
+	static List<ColumnBlock> readAll(FileChannel channel, TupleDesc td, int col) throws IOException {
+		ArrayList<ColumnBlock> blocks = new ArrayList<ColumnBlock>();
+		int headerSize = getHeaderSize(td, col);
+		long size = channel.size();
+		long pos = 0;
+		while (pos + headerSize <= size) {
+			ByteBuffer buf = read(channel, pos, headerSize);
+			byte encoding = buf.get();
+			int numRows = buf.getInt();
+			int length = buf.getInt();
+			Field min = td.parseField(col, buf);
+			Field max = td.parseField(col, buf);
+			if (pos + headerSize + length > size)
+				break;
+			ColumnBlock b = new ColumnBlock(channel, td, col, pos, encoding, numRows, length, min, max);
+			blocks.add(b);
+			pos = b.end();
+		}
+		return blocks;
+	}
+
+	/**
+	 * Compress the values of a column with the encoding which takes the
+	 * fewest bytes, and append them as a block to the file of the column.
+	 *
+	 * @param channel - the file of the column
+	 * @param td - the tuple descriptor of the file
+	 * @param col - the column
+	 * @param values - the values of the block, at least one
+	 * @return the block
+	 */
+	static ColumnBlock write(FileChannel channel, TupleDesc td, int col, Field[] values)
+			throws IOException {
+		Field min = values[0];
+		Field max = values[0];
+		for (Field f : values) {
+			if (f.compare(Predicate.Op.LESS_THAN, min))
+				min = f;
+			if (f.compare(Predicate.Op.GREATER_THAN, max))
+				max = f;
+		}
+		byte encoding = PLAIN;
+		byte[] best = encodePlain(values);
+		byte[] rle = encodeRunLength(values);
+		if (rle.length < best.length) {
+			encoding = RUN_LENGTH;
+			best = rle;
+		}
+		byte[] dict = encodeDictionary(values);
+		if (dict.length < best.length) {
+			encoding = DICTIONARY;
+			best = dict;
+		}
+		if (td.getFieldType(col) == Type.INT_TYPE) {
+			byte[] fr = encodeFrameOfReference(values, (IntField) min, (IntField) max);
+			if (fr.length < best.length) {
+				encoding = FRAME_OF_REFERENCE;
+				best = fr;
+			}
+		}
+
+		int headerSize = getHeaderSize(td, col);
+		ByteBuffer buf = ByteBuffer.allocate(headerSize + best.length);
+		buf.put(encoding);
+		buf.putInt(values.length);
+		buf.putInt(best.length);
+		min.serialize(buf);
+		max.serialize(buf);
+		buf.put(best);
+		buf.flip();
+		long offset = channel.size();
+		while (buf.hasRemaining()) {
+			channel.write(buf, offset + buf.position());
+		}
+		return new ColumnBlock(channel, td, col, offset, encoding, values.length, best.length, min, max);
+	}
+
+	/**
+	 * Read and decompress the values of this block
+	 */
+	Field[] read() throws IOException {
+		ByteBuffer buf = read(channel, offset + getHeaderSize(td, col), length);
+		Field[] values = new Field[numRows];
+		switch (encoding) {
+		case PLAIN:
+			for (int i = 0; i < numRows; i++) {
+				values[i] = readValue(buf);
+			}
+			break;
+		case RUN_LENGTH:
+			for (int i = 0; i < numRows;) {
+				Field f = readValue(buf);
+				int run = buf.getInt();
+				Arrays.fill(values, i, i + run, f);
+				i += run;
+			}
+			break;
+		case DICTIONARY: {
+			Field[] dict = new Field[buf.getInt()];
+			for (int i = 0; i < dict.length; i++) {
+				dict[i] = readValue(buf);
+			}
+			long[] codes = unpack(buf, buf.get(), numRows);
+			for (int i = 0; i < numRows; i++) {
+				values[i] = dict[(int) codes[i]];
+			}
+			break;
+		}
+		case FRAME_OF_REFERENCE: {
+			int base = buf.getInt();
+			long[] deltas = unpack(buf, buf.get(), numRows);
+			for (int i = 0; i < numRows; i++) {
+				values[i] = new IntField((int) (base + deltas[i]));
+			}
+			break;
+		}
+		default:
+			throw new IOException("unknown encoding " + encoding + " of column " + col);
+		}
+		return values;
+	}
+
+	private static byte[] encodePlain(Field[] values) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		for (Field f : values) {
+			writeValue(dos, f);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Each run of equal values is stored as the value and the length of the run
+	 */
+	private static byte[] encodeRunLength(Field[] values) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		int start = 0;
+		for (int i = 1; i <= values.length; i++) {
+			if (i == values.length || !values[i].equals(values[start])) {
+				writeValue(dos, values[start]);
+				dos.writeInt(i - start);
+				start = i;
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * The distinct values are stored once, in order of appearance, followed by
+	 * the index of the value of each row in as few bits as hold every index
+	 */
+	private static byte[] encodeDictionary(Field[] values) throws IOException {
+		LinkedHashMap<Field, Integer> dict = new LinkedHashMap<Field, Integer>();
+		long[] codes = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			Integer code = dict.get(values[i]);
+			if (code == null) {
+				code = dict.size();
+				dict.put(values[i], code);
+			}
+			codes[i] = code;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(dict.size());
+		for (Field f : dict.keySet()) {
+			writeValue(dos, f);
+		}
+		int width = bitWidth(dict.size() - 1);
+		dos.writeByte(width);
+		dos.write(pack(codes, width));
+		return baos.toByteArray();
+	}
+
+	/**
+	 * The smallest value is stored, followed by the offset of the value of
+	 * each row from it in as few bits as hold the largest offset
+	 */
+	private static byte[] encodeFrameOfReference(Field[] values, IntField min, IntField max)
+			throws IOException {
+		long[] deltas = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			deltas[i] = (long) ((IntField) values[i]).getValue() - min.getValue();
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(min.getValue());
+		int width = bitWidth((long) max.getValue() - min.getValue());
+		dos.writeByte(width);
+		dos.write(pack(deltas, width));
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the number of bits needed to hold the non-negative value v
+	 */
+	static int bitWidth(long v) {
+		return 64 - Long.numberOfLeadingZeros(v);
+	}
+
+	/**
+	 * Pack values of at most 32 bits into width bits each, from the low bits
+	 * of the first byte on.
+	 */
+	static byte[] pack(long[] values, int width) {
+		byte[] out = new byte[(int) (((long) values.length * width + 7) >>> 3)];
+		long mask = (1L << width) - 1;
+		long acc = 0;
+		int bits = 0;
+		int o = 0;
+		for (long v : values) {
+			acc |= (v & mask) << bits;
+			bits += width;
+			while (bits >= 8) {
+				out[o++] = (byte) acc;
+				acc >>>= 8;
+				bits -= 8;
+			}
+		}
+		if (bits > 0)
+			out[o] = (byte) acc;
+		return out;
+	}
+
+	/**
+	 * Unpack n values of width bits packed by pack from the position of a buffer
+	 */
+	static long[] unpack(ByteBuffer buf, int width, int n) {
+		long[] values = new long[n];
+		long mask = (1L << width) - 1;
+		long acc = 0;
+		int bits = 0;
+		for (int i = 0; i < n; i++) {
+			while (bits < width) {
+				acc |= (buf.get() & 0xFFL) << bits;
+				bits += 8;
+			}
+			values[i] = acc & mask;
+			acc >>>= width;
+			bits -= width;
+		}
+		return values;
+	}
+
+	private static void writeValue(DataOutputStream dos, Field f) throws IOException {
+		if (f.getType() == Type.INT_TYPE) {
+			dos.writeInt(((IntField) f).getValue());
+		} else {
+			byte[] s = ((StringField) f).getValue().getBytes();
+			dos.writeShort(s.length);
+			dos.write(s);
+		}
+	}
+
+	private Field readValue(ByteBuffer buf) {
+		if (td.getFieldType(col) == Type.INT_TYPE)
+			return new IntField(buf.getInt());
+		byte[] bs = new byte[buf.getShort() & 0xFFFF];
+		buf.get(bs);
+		return new StringField(new String(bs), Type.STRING_LEN);
+	}
+
+	private static ByteBuffer read(FileChannel channel, long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, pos + buf.position()) < 0)
+				throw new EOFException("unexpected end of column block");
+		}
+		buf.flip();
+		return buf;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator of a ColumnarFile over a
+ * snapshot of its blocks and tail taken when the iterator is opened. The
+ * blocks of a column are only read once a tuple of the block needs them.
+ */
+class ColumnarFileIterator extends AbstractDbFileIterator {
+
+	final ColumnarFile f;
+	final Predicate pred;
+	final boolean[] wanted;
+	ArrayList<ColumnBlock[]> blocks = null;
+	ArrayList<Tuple> tail = null;
+	BitSet deleted = null;
+	int nextBlock;
+	int tailPos;
+	// the current block
+	ColumnBlock[] block;
+	Field[][] values; // decoded columns of the block, by field
+	int firstRow;
+	int numRows;
+	int pos;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the ColumnarFile containing the tuples
+	 * @param pred - the predicate, or null to return all tuples
+	 * @param fields - the fields to set, or null for all of them
+	 */
+	public ColumnarFileIterator(ColumnarFile f, Predicate pred, int[] fields) {
+		this.f = f;
+		this.pred = pred;
+		int n = f.getTupleDesc().numFields();
+		this.wanted = new boolean[n];
+		if (fields == null) {
+			Arrays.fill(wanted, true);
+		} else {
+			for (int i : fields) {
+				wanted[i] = true;
+			}
+		}
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		blocks = new ArrayList<ColumnBlock[]>();
+		tail = new ArrayList<Tuple>();
+		deleted = f.snapshot(blocks, tail);
+		nextBlock = 0;
+		tailPos = 0;
+		block = null;
+		firstRow = 0;
+		numRows = 0;
+		pos = 0;
+	}
+
+	/**
+	 * Make the next block of the snapshot current, reading the column of the
+	 * predicate unless the block cannot hold a matching tuple.
+	 */
+	private void nextBlock() throws IOException {
+		firstRow += numRows;
+		block = blocks.get(nextBlock++);
+		numRows = block[0].numRows;
+		pos = 0;
+		values = new Field[block.length][];
+		if (pred != null) {
+			ColumnBlock c = block[pred.getField()];
+			if (!c.mightMatch(pred.getOp(), pred.getOperand()))
+				pos = numRows;
+			else
+				values[pred.getField()] = c.read();
+		}
+	}
+
+	/**
+	 * Read the next tuple satisfying the predicate
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (blocks == null)
+			return null;
+		try {
+			while (true) {
+				while (block != null && pos < numRows) {
+					int i = pos++;
+					if (deleted.get(firstRow + i))
+						continue;
+					if (pred != null && !values[pred.getField()][i].compare(pred.getOp(), pred.getOperand()))
+						continue;
+					Tuple t = new Tuple(f.getTupleDesc());
+					t.setRecordId(f.getRecordId(firstRow + i));
+					for (int j = 0; j < block.length; j++) {
+						if (wanted[j] && values[j] == null)
+							values[j] = block[j].read();
+						t.setField(j, wanted[j] ? values[j][i] : null);
+					}
+					return t;
+				}
+				if (nextBlock == blocks.size())
+					break;
+				nextBlock();
+			}
+		} catch (IOException e) {
+			throw new DbException("unable to read column block: " + e.getMessage());
+		}
+		while (tailPos < tail.size()) {
+			Tuple t = tail.get(tailPos++);
+			if (deleted.get(t.getRecordId().tupleno()))
+				continue;
+			if (pred != null && !pred.filter(t))
+				continue;
+			// the tuples of the tail stay owned by the file
+			Tuple copy = new Tuple(f.getTupleDesc());
+			copy.setRecordId(t.getRecordId());
+			for (int j = 0; j < wanted.length; j++) {
+				copy.setField(j, wanted[j] ? t.getField(j) : null);
+			}
+			return copy;
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		blocks = null;
+		tail = null;
+		block = null;
+		values = null;
+	}
+}
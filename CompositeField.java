@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Instance of Field that stores an ordered list of fields. It is used as the
+ * key of a B+ tree keyed on more than one field.
+ * <p>
+ * Composite fields are compared lexicographically over the components they
+ * have in common, so a composite field holding a prefix of a key compares
+ * equal to that key. This lets a prefix of a composite key be used to
+ * position a range scan. equals, by contrast, requires all the components to
+ * be equal.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The components of this field, in key order.
+     */
+    public CompositeField(Field[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one component");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fields The components of this field, in key order.
+     */
+    public CompositeField(List<Field> fields) {
+        this(fields.toArray(new Field[fields.size()]));
+    }
+
+    /**
+     * Build the key of a tuple.
+     *
+     * @param t the tuple
+     * @param keyFields the fields of the tuple making up the key, in key order
+     * @return the field itself if the key has a single field, otherwise a
+     *         CompositeField holding the key fields
+     */
+    public static Field keyOf(Tuple t, int[] keyFields) {
+        if (keyFields.length == 1)
+            return t.getField(keyFields[0]);
+        Field[] key = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            key[i] = t.getField(keyFields[i]);
+        return new CompositeField(key);
+    }
+
+    /**
+     * @return the number of components of this field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th component of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return a CompositeField holding the first n components of this field
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    /**
+     * Unlike compare, which matches a prefix of a key with the key, equals
+     * holds only for composite fields with the same components, so that it
+     * agrees with hashCode when composite fields are used as map keys.
+     */
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField))
+            return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    public void serialize(ByteBuffer buf) {
+        for (Field f : fields)
+            f.serialize(buf);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field.
+     * Return semantics are as specified by Field.compare. Only the components
+     * both fields have are compared.
+     *
+     * @throws IllegalCastException if val is not a CompositeField
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+
+        CompositeField cVal = (CompositeField) val;
+
+        int cmp = 0;
+        int n = Math.min(fields.length, cVal.fields.length);
+        for (int i = 0; i < n && cmp == 0; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, cVal.fields[i]))
+                cmp = -1;
+            else if (fields[i].compare(Predicate.Op.GREATER_THAN, cVal.fields[i]))
+                cmp = 1;
+        }
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of this field, which is the type of its first component.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
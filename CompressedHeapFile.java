@@ -0,0 +1,357 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are compressed on disk with
+ * LZ4Codec, trading a little CPU for the disk bandwidth of scans. Compressed
+ * pages vary in size, so the pages are stored as frames at arbitrary offsets
+ * of the file, and a page map in a side file next to it holds the offset,
+ * length and capacity of the frame of each page:
+ * <pre>
+ * | offset (8) | length (4) | capacity (4) |   one entry per page
+ * </pre>
+ * A frame is rewritten in place while the page still fits into its capacity,
+ * which is rounded up to leave room for the page to grow. A page which
+ * outgrows its frame grows in place if the frame is the last one of the file
+ * or is followed by free space; otherwise it moves to the first free extent
+ * large enough to hold it, or to the end of the file, and the old frame
+ * becomes free. The free extents are not recorded: they are the gaps between
+ * the frames of the page map, found again when the file is opened. A page
+ * which does not compress is stored as it is, with a length of a full page.
+ * <p>
+ * Pages in memory are decompressed: the BufferPool caches HeapPages as usual,
+ * and the file keeps the bytes of the pages it recently read or wrote in a
+ * frame cache, so that a page evicted from the BufferPool is read again
+ * without reading and decompressing its frame. The checksum of a page is
+ * that of its decompressed bytes.
+ *
+ * @see LZ4Codec
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    /** Default number of decompressed pages kept in the frame cache */
+    public static final int DEFAULT_FRAME_CACHE_PAGES = 256;
+    private static final int ENTRY_SIZE = 16; // offset, length, capacity
+    private static final int FRAME_ALIGN = 256;
+
+    private final File mapFile;
+    // guarded by this
+    private long[] offsets;
+    private int[] lengths;
+    private int[] capacities;
+    private int numPages;
+    private long end; // the end of the last frame
+    private final TreeMap<Long, Integer> free = new TreeMap<Long, Integer>(); // offset -> length
+    private final LinkedHashMap<Integer, byte[]> frames;
+
+    /**
+     * Constructs a compressed heap file backed by the specified file and its
+     * page map.
+     *
+     * @param f
+     *            the file that stores the compressed pages
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     * @param layout
+     *            the format of the pages
+     */
+    public CompressedHeapFile(File f, TupleDesc td, Layout layout) throws IOException {
+        this(f, td, layout, DEFAULT_FRAME_CACHE_PAGES);
+    }
+
+    /**
+     * Constructs a compressed heap file backed by the specified file and its
+     * page map.
+     *
+     * @param f
+     *            the file that stores the compressed pages
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     * @param layout
+     *            the format of the pages
+     * @param cachePages
+     *            the number of decompressed pages kept in the frame cache
+     */
+    public CompressedHeapFile(File f, TupleDesc td, Layout layout, final int cachePages)
+            throws IOException {
+        this(f, td, layout, 0, cachePages);
+    }
+
+    /**
+     * Constructs a compressed heap file backed by the specified file and its
+     * page map, with pages of the given size.
+     *
+     * @param f
+     *            the file that stores the compressed pages
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     * @param layout
+     *            the format of the pages
+     * @param pageSize
+     *            the number of bytes of a decompressed page, or 0 for
+     *            BufferPool.getPageSize()
+     * @param cachePages
+     *            the number of decompressed pages kept in the frame cache
+     */
+    public CompressedHeapFile(File f, TupleDesc td, Layout layout, int pageSize,
+            final int cachePages) throws IOException {
+        super(f, td, layout, pageSize);
+        this.mapFile = new File(f.getPath() + ".map");
+        this.frames = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cachePages;
+            }
+        };
+
+        int n = (int) (mapFile.length() / ENTRY_SIZE);
+        offsets = new long[Math.max(n, 16)];
+        lengths = new int[offsets.length];
+        capacities = new int[offsets.length];
+        if (n > 0) {
+            DataInputStream dis = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mapFile)));
+            try {
+                for (int i = 0; i < n; i++) {
+                    offsets[i] = dis.readLong();
+                    lengths[i] = dis.readInt();
+                    capacities[i] = dis.readInt();
+                    end = Math.max(end, offsets[i] + capacities[i]);
+                }
+            } finally {
+                dis.close();
+            }
+        }
+        numPages = n;
+        findFreeExtents();
+    }
+
+    /**
+     * Fill the free list with the gaps between the frames of the page map.
+     */
+    private void findFreeExtents() {
+        Integer[] byOffset = new Integer[numPages];
+        for (int i = 0; i < numPages; i++)
+            byOffset[i] = i;
+        Arrays.sort(byOffset, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(offsets[a], offsets[b]);
+            }
+        });
+        long prev = 0;
+        for (int i : byOffset) {
+            if (capacities[i] == 0)
+                continue;
+            if (offsets[i] > prev)
+                free.put(prev, (int) (offsets[i] - prev));
+            prev = Math.max(prev, offsets[i] + capacities[i]);
+        }
+    }
+
+    /**
+     * @return the offset of a new frame of the given capacity, taken from the
+     *         first free extent large enough or else from the end of the file
+     */
+    private long allocate(int capacity) {
+        for (Map.Entry<Long, Integer> e : free.entrySet()) {
+            if (e.getValue() >= capacity) {
+                long offset = e.getKey();
+                free.remove(offset);
+                if (e.getValue() > capacity)
+                    free.put(offset + capacity, e.getValue() - capacity);
+                return offset;
+            }
+        }
+        long offset = end;
+        end += capacity;
+        return offset;
+    }
+
+    /**
+     * Return the space of a frame to the free list, merging it with the free
+     * extents next to it; space at the end of the file shortens the file.
+     */
+    private void release(long offset, int length) {
+        Map.Entry<Long, Integer> before = free.lowerEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            free.remove(before.getKey());
+            offset = before.getKey();
+            length += before.getValue();
+        }
+        Integer after = free.remove(offset + length);
+        if (after != null)
+            length += after;
+        if (offset + length == end)
+            end = offset;
+        else
+            free.put(offset, length);
+    }
+
+    /**
+     * Returns the number of pages in this file, as recorded by the page map.
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of bytes the frames of the pages take on disk
+     */
+    public long getCompressedSize() {
+        return getFile().length();
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            return newPage((HeapPageId) pid, readFrame(pid.pageNumber()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to read page " + pid.pageNumber(), e);
+        }
+    }
+
+    /**
+     * @return the decompressed bytes of a page, from the frame cache if they
+     *         are there; a page past the end of the file is empty
+     */
+    private synchronized byte[] readFrame(int pageNo) throws IOException {
+        byte[] data = frames.get(pageNo);
+        if (data != null)
+            return data;
+        data = readFrameData(pageNo);
+        if (!getChecksums().matches(pageNo, data))
+            throw new IOException("checksum mismatch on page " + pageNo + " of " + getFile());
+        frames.put(pageNo, data);
+        return data;
+    }
+
+    /**
+     * @return the decompressed bytes of a page on disk
+     */
+    private synchronized byte[] readFrameData(int pageNo) throws IOException {
+        if (pageNo >= numPages || lengths[pageNo] == 0)
+            return HeapPage.createEmptyPageData(getPageSize());
+        int pageSize = getPageSize();
+        byte[] frame = new byte[lengths[pageNo]];
+        RandomAccessFile rfile = new RandomAccessFile(getFile(), "r");
+        try {
+            rfile.seek(offsets[pageNo]);
+            rfile.readFully(frame);
+        } finally {
+            rfile.close();
+        }
+        return lengths[pageNo] == pageSize ? frame : LZ4Codec.decompress(frame, frame.length, pageSize);
+    }
+
+    /**
+     * Check the decompressed bytes of a page on disk against their checksum,
+     * bypassing the frame cache; a frame which does not decompress fails.
+     */
+    public boolean verifyPage(int pageNo) throws IOException {
+        byte[] data;
+        try {
+            data = readFrameData(pageNo);
+        } catch (IOException e) {
+            return false;
+        }
+        return getChecksums().matches(pageNo, data);
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized void writePage(Page page) throws IOException {
+        int pageNo = page.getId().pageNumber();
+        int pageSize = getPageSize();
+        byte[] data = page.getPageData();
+        byte[] frame = LZ4Codec.compress(data);
+        if (frame.length >= pageSize)
+            frame = data;
+
+        if (pageNo >= numPages) {
+            growMap(pageNo + 1);
+            // pages skipped over are empty, without a frame
+            numPages = pageNo + 1;
+        }
+        long oldOffset = offsets[pageNo];
+        int oldCapacity = capacities[pageNo];
+        boolean moved = false;
+        if (frame.length > oldCapacity) {
+            int capacity = Math.min(pageSize,
+                    (frame.length + FRAME_ALIGN - 1) / FRAME_ALIGN * FRAME_ALIGN);
+            long frameEnd = oldOffset + oldCapacity;
+            Integer next = free.get(frameEnd);
+            if (oldCapacity > 0 && frameEnd == end) {
+                end = oldOffset + capacity;
+            } else if (oldCapacity > 0 && next != null && oldCapacity + next >= capacity) {
+                free.remove(frameEnd);
+                if (oldCapacity + next > capacity)
+                    free.put(oldOffset + capacity, oldCapacity + next - capacity);
+            } else {
+                offsets[pageNo] = allocate(capacity);
+                moved = oldCapacity > 0;
+            }
+            capacities[pageNo] = capacity;
+        }
+        lengths[pageNo] = frame.length;
+
+        getChecksums().beforeWrite(pageNo);
+        RandomAccessFile randFile = new RandomAccessFile(getFile(), "rw");
+        try {
+            randFile.seek(offsets[pageNo]);
+            randFile.write(frame);
+            randFile.getFD().sync();
+        } finally {
+            randFile.close();
+        }
+        // the entry is written once the frame it points to is on disk
+        RandomAccessFile mapRandFile = new RandomAccessFile(mapFile, "rw");
+        try {
+            if (mapRandFile.length() < (long) pageNo * ENTRY_SIZE)
+                writeEntries(mapRandFile, (int) (mapRandFile.length() / ENTRY_SIZE), pageNo);
+            writeEntries(mapRandFile, pageNo, pageNo + 1);
+            // the new checksum may only be recorded once the page is on disk
+            mapRandFile.getFD().sync();
+        } finally {
+            mapRandFile.close();
+        }
+        // and the old frame is only reused once no entry points to it
+        if (moved)
+            release(oldOffset, oldCapacity);
+        getChecksums().afterWrite(pageNo, data);
+        frames.put(pageNo, data);
+    }
+
+    /**
+     * Write the map entries of pages [from, to) to the page map
+     */
+    private void writeEntries(RandomAccessFile mapRandFile, int from, int to) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = from; i < to; i++) {
+            dos.writeLong(offsets[i]);
+            dos.writeInt(lengths[i]);
+            dos.writeInt(capacities[i]);
+        }
+        mapRandFile.seek((long) from * ENTRY_SIZE);
+        mapRandFile.write(baos.toByteArray());
+    }
+
+    private void growMap(int n) {
+        if (n <= offsets.length)
+            return;
+        int len = Math.max(n, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, len);
+        lengths = Arrays.copyOf(lengths, len);
+        capacities = Arrays.copyOf(capacities, len);
+    }
+
+    /**
+     * A new page is written through writePage, which adds its frame and its
+     * entry of the page map.
+     */
+    protected void writeNewPage(HeapPage page) throws IOException {
+        writePage(page);
+    }
+}
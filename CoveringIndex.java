@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CoveringIndex is a secondary B+ tree index over a base table. Each leaf tuple
+ * of the index holds the key field of the base table followed by a list of
+ * included (non-key) fields, so a query that only touches the key and the
+ * included fields can be answered from the index leaves without visiting the
+ * base table at all.
+ * <p>
+ * The index is stored in its own BTreeFile whose TupleDesc is the projection of
+ * the base table's TupleDesc onto the indexed fields (key first). The index is
+ * kept up to date by the BufferPool, which calls {@link #insertTuple} and
+ * {@link #deleteTuple} whenever tuples are added to or removed from the base table.
+ *
+ * @see IndexOnlyScan
+ * @see Catalog#addIndex
+ */
+public class CoveringIndex {
+
+	private final int baseTableId;
+	private final int[] baseFields; // baseFields[0] is the key field
+	private final BTreeFile file;
+
+	/**
+	 * Constructs a covering index backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this index
+	 * @param baseTableId - the id of the table being indexed
+	 * @param keyField - the field of the base table which the index is keyed on
+	 * @param includedFields - the fields of the base table stored alongside the key
+	 *            in the index leaves
+	 */
+	public CoveringIndex(File f, int baseTableId, int keyField, int[] includedFields) {
+		this.baseTableId = baseTableId;
+		this.baseFields = new int[includedFields.length + 1];
+		this.baseFields[0] = keyField;
+		for(int i = 0; i < includedFields.length; i++) {
+			if(includedFields[i] == keyField) {
+				throw new IllegalArgumentException("the key field must not be listed as an included field");
+			}
+			this.baseFields[i + 1] = includedFields[i];
+		}
+
+		TupleDesc baseTd = Database.getCatalog().getTupleDesc(baseTableId);
+		Type[] types = new Type[baseFields.length];
+		String[] names = new String[baseFields.length];
+		for(int i = 0; i < baseFields.length; i++) {
+			types[i] = baseTd.getFieldType(baseFields[i]);
+			names[i] = baseTd.getFieldName(baseFields[i]);
+		}
+		this.file = new BTreeFile(f, 0, new TupleDesc(types, names));
+	}
+
+	/**
+	 * @return the BTreeFile storing the leaves of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the id of the table this index is built over
+	 */
+	public int getBaseTableId() {
+		return baseTableId;
+	}
+
+	/**
+	 * @return the field of the base table which this index is keyed on
+	 */
+	public int getKeyField() {
+		return baseFields[0];
+	}
+
+	/**
+	 * @return the number of base table fields stored in this index, including the key
+	 */
+	public int numFields() {
+		return baseFields.length;
+	}
+
+	/**
+	 * Returns the position of a base table field within the index tuples
+	 * @param baseField - the field of the base table
+	 * @return the index of the field within the index tuples, or -1 if the field
+	 * is not covered by this index
+	 */
+	public int indexFieldOf(int baseField) {
+		for(int i = 0; i < baseFields.length; i++) {
+			if(baseFields[i] == baseField) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param fields - fields of the base table
+	 * @return true if every one of the given fields is stored in this index
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for(Integer f : fields) {
+			if(indexFieldOf(f) == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Project a tuple of the base table onto the fields stored in this index
+	 * @param t - a tuple of the base table
+	 * @return the corresponding index tuple
+	 */
+	public Tuple toIndexTuple(Tuple t) {
+		Tuple it = new Tuple(file.getTupleDesc());
+		for(int i = 0; i < baseFields.length; i++) {
+			it.setField(i, t.getField(baseFields[i]));
+		}
+		return it;
+	}
+
+	/**
+	 * Expand an index tuple into a tuple with the given (base table shaped) TupleDesc.
+	 * Only the covered fields are set; all other fields are left null.
+	 * @param it - a tuple read from the index leaves
+	 * @param td - the TupleDesc of the returned tuple
+	 * @return a base-table shaped tuple holding the covered fields
+	 */
+	public Tuple toBaseTuple(Tuple it, TupleDesc td) {
+		Tuple t = new Tuple(td);
+		// set fields in increasing order of their position in the base tuple
+		for(int f = 0; f < td.numFields(); f++) {
+			int i = indexFieldOf(f);
+			if(i != -1) {
+				t.setField(f, it.getField(i));
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Add the index tuple corresponding to a newly inserted base tuple
+	 * @param tid - the transaction id
+	 * @param t - the tuple inserted into the base table
+	 */
+	public void insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), toIndexTuple(t));
+	}
+
+	/**
+	 * Remove the index tuple corresponding to a deleted base tuple
+	 * @param tid - the transaction id
+	 * @param t - the tuple deleted from the base table
+	 * @throws DbException if no matching index tuple exists
+	 */
+	public void deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		deleteIndexTuple(tid, toIndexTuple(t));
+	}
+
+	/**
+	 * Remove an index tuple. The index tuple is located with an equality search
+	 * on the key, and the first leaf tuple whose fields all match is removed.
+	 * @param tid - the transaction id
+	 * @param entry - the index tuple to remove, as returned by toIndexTuple
+	 * @throws DbException if no matching index tuple exists
+	 */
+	public void deleteIndexTuple(TransactionId tid, Tuple entry)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = file.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.EQUALS, entry.getField(0)));
+		Tuple match = null;
+		it.open();
+		while(match == null && it.hasNext()) {
+			Tuple candidate = it.next();
+			boolean equal = true;
+			for(int i = 1; i < baseFields.length && equal; i++) {
+				equal = candidate.getField(i).equals(entry.getField(i));
+			}
+			if(equal) {
+				match = candidate;
+			}
+		}
+		it.close();
+
+		if(match == null) {
+			throw new DbException("covering index is missing an entry for a deleted tuple");
+		}
+		Database.getBufferPool().deleteTuple(tid, match);
+	}
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * DictionaryDecode is an operator that turns the int codes of
+ * dictionary-encoded columns back into the strings they encode.
+ *
+ * @see StringDictionary
+ */
+public class DictionaryDecode extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final StringDictionary[] dicts;
+    private final TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     * @param dicts
+     *            the dictionary of each field of the child's tuples, or null
+     *            for the fields which are returned as they are
+     */
+    public DictionaryDecode(DbIterator child, StringDictionary[] dicts) {
+        this.child = child;
+        this.dicts = dicts;
+        TupleDesc childtd = child.getTupleDesc();
+        Type[] types = new Type[childtd.numFields()];
+        String[] names = new String[childtd.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = dicts[i] == null ? childtd.getFieldType(i) : Type.STRING_TYPE;
+            names[i] = childtd.getFieldName(i);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the dictionary of each field of the child's tuples, null for
+     *         the fields which are returned as they are
+     */
+    public StringDictionary[] getDictionaries() {
+        return dicts.clone();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Decodes the encoded fields of the
+     * next tuple of the child; fields the child leaves null stay null.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!child.hasNext())
+            return null;
+        Tuple t = child.next();
+        Tuple newTuple = new Tuple(td);
+        newTuple.setRecordId(t.getRecordId());
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (dicts[i] != null && f != null)
+                f = new StringField(dicts[i].decode(((IntField) f).getValue()), Type.STRING_LEN);
+            newTuple.setField(i, f);
+        }
+        return newTuple;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (this.child != children[0]) {
+            this.child = children[0];
+        }
+    }
+}
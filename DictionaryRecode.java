@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * DictionaryRecode is an operator that replaces the retired codes of
+ * dictionaries being rebalanced with the new codes of their strings, so
+ * that all the codes it returns compare like their strings.
+ *
+ * @see StringDictionary#rebalance()
+ */
+public class DictionaryRecode extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final StringDictionary[] dicts;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     * @param dicts
+     *            the dictionary of each field of the child's tuples, or null
+     *            for the fields which are returned as they are
+     */
+    public DictionaryRecode(DbIterator child, StringDictionary[] dicts) {
+        this.child = child;
+        this.dicts = dicts;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Replaces the retired codes of the
+     * next tuple of the child; fields the child leaves null stay null.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!child.hasNext())
+            return null;
+        Tuple t = child.next();
+        Tuple newTuple = new Tuple(t.getTupleDesc());
+        newTuple.setRecordId(t.getRecordId());
+        for (int i = 0; i < dicts.length; i++) {
+            Field f = t.getField(i);
+            if (dicts[i] != null && f != null) {
+                Integer code = dicts[i].newCodeOf(((IntField) f).getValue());
+                if (code != null)
+                    f = new IntField(code);
+            }
+            newTuple.setField(i, f);
+        }
+        return newTuple;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (this.child != children[0]) {
+            this.child = children[0];
+        }
+    }
+}
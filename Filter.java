@@ -31,6 +31,13 @@ public class Filter extends Operator {
         return this.pr;
     }
 
+    /**
+     * Replace the predicate by an equivalent one, e.g. on dictionary codes
+     */
+    public void setPredicate(Predicate p) {
+        this.pr = p;
+    }
+
     public TupleDesc getTupleDesc() {
         TupleDesc result = this.chOp.getTupleDesc();
         return result;
@@ -0,0 +1,374 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one bucket (or one
+ * overflow page of a bucket) of a HashIndexFile and implements the Page
+ * interface that is used by BufferPool.
+ *
+ * @see HashIndexFile
+ * @see BufferPool
+ *
+ */
+public class HashBucketPage implements Page {
+	public final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte header[];
+	private final Tuple tuples[];
+	private final int numSlots;
+
+	private int localDepth; // number of hash bits shared by the keys in this bucket
+	private int nextOverflow; // overflow page or 0
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the local depth of the bucket and the
+	 * page number of its next overflow page, followed by a set of header bytes
+	 * indicating the slots of the page that are in use and some number of
+	 * tuple slots. Specifically, the number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 * <p> where tuple size is the size of tuples in this
+	 * database table, which can be determined via {@link Catalog#getTupleDesc}.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		this.localDepth = dis.readInt();
+		this.nextOverflow = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i=0; i<header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try{
+			// allocate and read the actual records of this page
+			for (int i=0; i<tuples.length; i++)
+				tuples[i] = readNextTuple(dis,i);
+		}catch(NoSuchElementException e){
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: local depth, overflow pointer
+		int extraBits = 2 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a bucket page
+	 */
+	private int getHeaderSize() {
+		int tuplesPerPage = getMaxTuples();
+		int hb = (tuplesPerPage / 8);
+		if (hb * 8 < tuplesPerPage) hb++;
+
+		return hb;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Read tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			for (int i=0; i<td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			for (int j=0; j<td.numFields(); j++) {
+				Field f = td.getFieldType(j).parse(dis);
+				t.setField(j, f);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashBucketPage constructor and
+	 * have it produce an identical HashBucketPage object.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(nextOverflow);
+			dos.write(header);
+
+			for (int i=0; i<tuples.length; i++) {
+				// empty slot
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				// non-empty slot
+				for (int j=0; j<td.numFields(); j++) {
+					tuples[i].getField(j).serialize(dos);
+				}
+			}
+
+			// padding
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the tuple should be updated to reflect
+	 *   that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if(rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if(!pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.tupleno()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.tupleno(), false);
+		tuples[rid.tupleno()] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple should be updated to reflect
+	 *  that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				Debug.log(1, "HashBucketPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), i);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * @return the number of hash bits shared by all keys in this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	/**
+	 * Set the number of hash bits shared by all keys in this bucket
+	 */
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * Get the id of the next overflow page of this bucket
+	 * @return the id of the next overflow page, or null if this is the last page
+	 */
+	public HashPageId getOverflowId() {
+		if(nextOverflow == 0) {
+			return null;
+		}
+		return new HashPageId(pid.getTableId(), nextOverflow, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the id of the next overflow page of this bucket
+	 * @param id - the id of the next overflow page, or null
+	 * @throws DbException if the id is not valid
+	 */
+	public void setOverflowId(HashPageId id) throws DbException {
+		if(id == null) {
+			nextOverflow = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setOverflowId");
+			}
+			if(id.pgcateg() != HashPageId.BUCKET) {
+				throw new DbException("overflow page must be a bucket page");
+			}
+			nextOverflow = id.pageNumber();
+		}
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for(int i=0; i<numSlots; i++)
+			if(!isSlotUsed(i))
+				cnt++;
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		return (header[headerbyte] & (1 << headerbit)) != 0;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+
+		if(value)
+			header[headerbyte] |= 1 << headerbit;
+		else
+			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 * The iterator works on a snapshot of the page, so tuples may be moved
+	 * off the page while it is in use.
+	 */
+	public Iterator<Tuple> iterator() {
+		ArrayList<Tuple> used = new ArrayList<Tuple>();
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used.add(tuples[i]);
+		}
+		return Collections.unmodifiableList(used).iterator();
+	}
+}
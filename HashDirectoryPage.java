@@ -0,0 +1,316 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage stores the directory of a HashIndexFile: the global depth
+ * of the index and, for each of the 2^depth values of the low bits of a hash,
+ * the page number of the bucket holding the keys with that hash. Several
+ * directory entries share a bucket whenever the local depth of the bucket is
+ * less than the global depth.
+ * <p>
+ * Page 0 of the file is the root of the directory. While the entries fit on
+ * it, the root holds them itself. A larger directory is spread over leaf
+ * pages of 2^getLeafDepth() entries each: the high bits of the index of an
+ * entry select its leaf, whose page number the root holds, and the low bits
+ * select the entry in the leaf.
+ *
+ * @see HashIndexFile
+ * @see BufferPool
+ *
+ */
+public class HashDirectoryPage implements Page {
+	public final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final HashPageId pid;
+	private int globalDepth; // of the root only
+	private int entries[]; // bucket page numbers, or leaf page numbers on a root with leaves
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of the root is the global depth followed by 2^globalDepth
+	 * bucket page numbers or, once the directory has leaves, by the page
+	 * numbers of its leaves. The format of a leaf is 2^getLeafDepth() bucket
+	 * page numbers.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		if(isRoot()) {
+			globalDepth = dis.readInt();
+			entries = new int[hasLeaves() ? getNumLeaves(globalDepth) : 1 << globalDepth];
+		}
+		else {
+			entries = new int[1 << getLeafDepth()];
+		}
+		for (int i=0; i<entries.length; i++)
+			entries[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the largest global depth whose entries fit on the root
+	 */
+	public static int getRootDepth() {
+		int entries = BufferPool.getPageSize() / INDEX_SIZE - 1;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	/**
+	 * @return the number of hash bits indexing the entries of a leaf
+	 */
+	public static int getLeafDepth() {
+		int entries = BufferPool.getPageSize() / INDEX_SIZE;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	/**
+	 * @return the largest global depth, whose leaves are as many as the root
+	 *         holds entries
+	 */
+	public static int getMaxDepth() {
+		return getRootDepth() + getLeafDepth();
+	}
+
+	/**
+	 * @return the number of leaves of a directory of the given depth which
+	 *         does not fit on the root
+	 */
+	public static int getNumLeaves(int globalDepth) {
+		return 1 << Math.max(0, globalDepth - getLeafDepth());
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			if(isRoot())
+				dos.writeInt(globalDepth);
+			for (int i=0; i<entries.length; i++)
+				dos.writeInt(entries[i]);
+			dos.write(new byte[len - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to the directory
+	 * of an empty index, with a single bucket.
+	 *
+	 * @param bucket - the page number of the only bucket
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(int bucket) {
+		int len = BufferPool.getPageSize();
+		byte[] data = new byte[len];
+		// global depth 0, then the only directory entry
+		data[INDEX_SIZE] = (byte) (bucket >>> 24);
+		data[INDEX_SIZE + 1] = (byte) (bucket >>> 16);
+		data[INDEX_SIZE + 2] = (byte) (bucket >>> 8);
+		data[INDEX_SIZE + 3] = (byte) bucket;
+		return data;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty leaf.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyLeafData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * @return true if this page is the root of the directory
+	 */
+	public boolean isRoot() {
+		return pid.pageNumber() == 0;
+	}
+
+	/**
+	 * @return true if this page is the root of a directory which is spread
+	 *         over leaves
+	 */
+	public boolean hasLeaves() {
+		return isRoot() && globalDepth > getRootDepth();
+	}
+
+	/**
+	 * @return the number of hash bits used to index the directory
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * @return the number of entries in the directory
+	 */
+	public int getNumEntries() {
+		return 1 << globalDepth;
+	}
+
+	/**
+	 * @param i - the index of an entry of this page; on the root, the index
+	 *            of a directory entry, which the root must hold itself
+	 * @return the id of the bucket of the i-th entry of this page
+	 */
+	public HashPageId getEntry(int i) {
+		return new HashPageId(pid.getTableId(), entries[i], HashPageId.BUCKET);
+	}
+
+	/**
+	 * Point the i-th entry of this page to another bucket
+	 * @param i - the index of an entry of this page
+	 * @param id - the id of the bucket
+	 * @throws DbException if the id is not valid
+	 */
+	public void setEntry(int i, HashPageId id) throws DbException {
+		if(id.getTableId() != pid.getTableId()) {
+			throw new DbException("table id mismatch in setEntry");
+		}
+		if(id.pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("directory entries must point to bucket pages");
+		}
+		entries[i] = id.pageNumber();
+	}
+
+	/**
+	 * @param k - the index of a leaf, the high bits of the index of a
+	 *            directory entry
+	 * @return the id of the k-th leaf of the root
+	 */
+	public HashPageId getLeafId(int k) {
+		return new HashPageId(pid.getTableId(), entries[k], HashPageId.DIRECTORY);
+	}
+
+	/**
+	 * Double the size of a directory held by the root. Each new entry points
+	 * to the same bucket as the entry which differs from it in the highest
+	 * hash bit.
+	 * @throws DbException if the entries would no longer fit on the root
+	 */
+	public void doubleDirectory() throws DbException {
+		if(!isRoot() || globalDepth >= getRootDepth()) {
+			throw new DbException("hash directory does not fit on the root");
+		}
+		int n = entries.length;
+		int[] doubled = new int[2 * n];
+		System.arraycopy(entries, 0, doubled, 0, n);
+		System.arraycopy(entries, 0, doubled, n, n);
+		entries = doubled;
+		globalDepth++;
+	}
+
+	/**
+	 * Double the entries of a leaf of a directory which has a single leaf,
+	 * the first n of which are in use.
+	 */
+	public void doubleLeaf(int n) throws DbException {
+		if(isRoot() || 2 * n > entries.length) {
+			throw new DbException("hash directory leaf is full");
+		}
+		System.arraycopy(entries, 0, entries, n, n);
+	}
+
+	/**
+	 * Move the directory of the root to leaves, or add leaves to it, and
+	 * set its global depth.
+	 * @param depth - the new global depth, beyond getRootDepth()
+	 * @param leaves - the page numbers of all leaves, in order
+	 */
+	public void setLeaves(int depth, int[] leaves) throws DbException {
+		if(!isRoot() || depth <= getRootDepth() || leaves.length != getNumLeaves(depth)) {
+			throw new DbException("bad leaves for a hash directory of depth " + depth);
+		}
+		globalDepth = depth;
+		entries = leaves.clone();
+	}
+
+	/**
+	 * @return the page numbers held by this page
+	 */
+	public int[] getEntries() {
+		return entries.clone();
+	}
+
+	/**
+	 * Fill the entries of a leaf with bucket page numbers, starting at the
+	 * given index of an array of them.
+	 */
+	public void setEntries(int[] buckets, int from) {
+		System.arraycopy(buckets, from, entries, 0, Math.min(entries.length, buckets.length - from));
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+}
@@ -192,6 +192,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(DbIterator[] children) {
         this.ch1 = children[0];
         this.ch2 = children[1];
+        this.joinedTup = TupleDesc.merge(ch1.getTupleDesc(), ch2.getTupleDesc());
     }
 
 }
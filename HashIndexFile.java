@@ -0,0 +1,655 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashIndexFile is an implementation of a DbFile that stores its tuples in the
+ * buckets of an extendible hash table on one of their fields. Page 0 of the file
+ * is the root of the directory mapping the low bits of the hash of a key to a
+ * bucket, which spreads the directory over leaf pages once it no longer fits on
+ * the root; every other page is a bucket page or a directory leaf. An equality
+ * lookup reads the directory pages of the key, which stay in the buffer pool,
+ * and then the bucket page of the key, so it costs one page read whatever the
+ * size of the table.
+ * <p>
+ * A full bucket is split in two, doubling the directory if the bucket was
+ * already indexed by all bits of the directory. A bucket is not split when the
+ * split would leave every key on its page in the bucket of the new key, or when
+ * the keys with the hash of the new key already fill half of its page, as those
+ * of a heavily duplicated key do, nor once the directory has reached its
+ * largest size; it grows a chain of overflow pages instead. Buckets are not
+ * merged when tuples are deleted.
+ *
+ * @see simpledb.HashDirectoryPage#HashDirectoryPage
+ * @see simpledb.HashBucketPage#HashBucketPage
+ */
+public class HashIndexFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash index file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            index file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashIndexFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashIndexFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashIndexFile, the hash code of
+	 * the absolute file name of the underlying file.
+	 *
+	 * @return an ID uniquely identifying this HashIndexFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this hash index is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		RandomAccessFile rf = null;
+
+		try {
+			rf = new RandomAccessFile(f, "r");
+			byte pageBuf[] = new byte[BufferPool.getPageSize()];
+			if ((long) (id.pageNumber() + 1) * BufferPool.getPageSize() > rf.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			rf.seek((long) id.pageNumber() * BufferPool.getPageSize());
+			rf.readFully(pageBuf);
+			Debug.log(1, "HashIndexFile.readPage: read page %d", id.pageNumber());
+			if(id.pgcateg() == HashPageId.DIRECTORY) {
+				return new HashDirectoryPage(id, pageBuf);
+			}
+			else {
+				return new HashBucketPage(id, pageBuf);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			// Close the file on success or error
+			try {
+				if (rf != null)
+					rf.close();
+			} catch (IOException ioe) {
+				// Ignore failures closing the file
+			}
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		byte[] data = page.getPageData();
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		rf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+		rf.write(data);
+		rf.close();
+	}
+
+	/**
+	 * Returns the number of pages in this HashIndexFile, including the
+	 * directory page.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Hash a key. The hash codes of the fields are stable across runs, and are
+	 * mixed so that the low bits used by the directory are well distributed
+	 * even for sequential integer keys.
+	 *
+	 * @param key - the key to hash
+	 * @return the hash of the key
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 *
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		else {
+			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			if(perm == Permissions.READ_WRITE) {
+				dirtypages.put(pid, p);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Get the directory page of this file, creating the directory and the
+	 * first bucket if the file is empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the requested permissions on the directory page
+	 * @return the directory page
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	HashDirectoryPage getDirectoryPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			if(f.length() == 0) {
+				// create the directory and the first bucket
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
+				bw.write(HashDirectoryPage.createEmptyPageData(1));
+				bw.write(HashBucketPage.createEmptyPageData());
+				bw.close();
+			}
+		}
+		return (HashDirectoryPage) getPage(tid, dirtypages, HashPageId.getDirectoryId(tableid), perm);
+	}
+
+	/**
+	 * Create a new bucket page or directory leaf at the end of the file. It
+	 * wipes the page in the cache and returns a clean copy locked with
+	 * read-write permission
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgcateg - the HashPageId category of the new page
+	 * @return the new empty page
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		int emptyPageNo;
+		synchronized(this) {
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			bw.write(pgcateg == HashPageId.DIRECTORY ? HashDirectoryPage.createEmptyLeafData()
+					: HashBucketPage.createEmptyPageData());
+			bw.close();
+			emptyPageNo = numPages() - 1;
+		}
+		HashPageId newPageId = new HashPageId(tableid, emptyPageNo, pgcateg);
+
+		// make sure the page is not in the buffer pool	or in the local cache
+		Database.getBufferPool().discardPage(newPageId);
+		dirtypages.remove(newPageId);
+
+		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Get the bucket of a hash value, reading the directory leaf which holds
+	 * its entry if the directory does not fit on the root
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param dir - the root of the directory
+	 * @param hash - the hash of a key
+	 * @return the id of the first page of the bucket which holds the key
+	 */
+	HashPageId getBucketId(TransactionId tid, HashMap<PageId, Page> dirtypages, HashDirectoryPage dir, int hash)
+			throws DbException, TransactionAbortedException {
+		int i = hash & (dir.getNumEntries() - 1);
+		if(!dir.hasLeaves()) {
+			return dir.getEntry(i);
+		}
+		int leafDepth = HashDirectoryPage.getLeafDepth();
+		HashDirectoryPage leaf = (HashDirectoryPage) getPage(tid, dirtypages, dir.getLeafId(i >>> leafDepth), Permissions.READ_ONLY);
+		return leaf.getEntry(i & ((1 << leafDepth) - 1));
+	}
+
+	/**
+	 * Point a directory entry to another bucket
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param dir - the root of the directory, locked with read-write permission
+	 * @param i - the index of the directory entry
+	 * @param id - the id of the bucket
+	 */
+	private void setBucketId(TransactionId tid, HashMap<PageId, Page> dirtypages, HashDirectoryPage dir,
+			int i, HashPageId id) throws DbException, TransactionAbortedException {
+		if(!dir.hasLeaves()) {
+			dir.setEntry(i, id);
+			return;
+		}
+		int leafDepth = HashDirectoryPage.getLeafDepth();
+		HashDirectoryPage leaf = (HashDirectoryPage) getPage(tid, dirtypages, dir.getLeafId(i >>> leafDepth), Permissions.READ_WRITE);
+		leaf.setEntry(i & ((1 << leafDepth) - 1), id);
+	}
+
+	/**
+	 * Double the size of the directory. Each new entry points to the same
+	 * bucket as the entry which differs from it in the highest hash bit. A
+	 * directory which outgrows the root moves to a leaf, and the leaves of a
+	 * directory which outgrows its leaves are copied into as many new leaves.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param dir - the root of the directory, locked with read-write permission
+	 * @throws DbException if the directory has reached its largest size
+	 */
+	private void doubleDirectory(TransactionId tid, HashMap<PageId, Page> dirtypages, HashDirectoryPage dir)
+			throws DbException, IOException, TransactionAbortedException {
+		int depth = dir.getGlobalDepth();
+		int leafDepth = HashDirectoryPage.getLeafDepth();
+		if(depth >= HashDirectoryPage.getMaxDepth()) {
+			throw new DbException("hash directory is full");
+		}
+		if(depth < HashDirectoryPage.getRootDepth()) {
+			dir.doubleDirectory();
+		}
+		else if(!dir.hasLeaves()) {
+			int n = dir.getNumEntries();
+			int[] buckets = new int[2 * n];
+			System.arraycopy(dir.getEntries(), 0, buckets, 0, n);
+			System.arraycopy(buckets, 0, buckets, n, n);
+			int[] leaves = new int[HashDirectoryPage.getNumLeaves(depth + 1)];
+			for(int k = 0; k < leaves.length; k++) {
+				HashDirectoryPage leaf = (HashDirectoryPage) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY);
+				leaf.setEntries(buckets, k << leafDepth);
+				leaves[k] = leaf.getId().pageNumber();
+			}
+			dir.setLeaves(depth + 1, leaves);
+		}
+		else if(depth < leafDepth) {
+			HashDirectoryPage leaf = (HashDirectoryPage) getPage(tid, dirtypages, dir.getLeafId(0), Permissions.READ_WRITE);
+			leaf.doubleLeaf(dir.getNumEntries());
+			dir.setLeaves(depth + 1, dir.getEntries());
+		}
+		else {
+			int[] leaves = dir.getEntries();
+			int n = leaves.length;
+			leaves = Arrays.copyOf(leaves, 2 * n);
+			for(int k = 0; k < n; k++) {
+				HashDirectoryPage leaf = (HashDirectoryPage) getPage(tid, dirtypages, dir.getLeafId(k), Permissions.READ_ONLY);
+				HashDirectoryPage copy = (HashDirectoryPage) getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY);
+				copy.setEntries(leaf.getEntries(), 0);
+				leaves[n + k] = copy.getId().pageNumber();
+			}
+			dir.setLeaves(depth + 1, leaves);
+		}
+	}
+
+	/**
+	 * Insert a tuple into the bucket of its key. If the bucket is full, it is
+	 * split until the bucket of the key has room, or is chained to an overflow
+	 * page once splitting it would not make room for the key.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation. Could include
+	 * many pages since buckets may split.
+	 * @see #splitBucket(TransactionId, HashMap, HashDirectoryPage, HashBucketPage, int)
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int hash = hash(t.getField(keyField));
+
+		HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, Permissions.READ_ONLY);
+		HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages, getBucketId(tid, dirtypages, dir, hash), Permissions.READ_WRITE);
+		while(bucket.getNumEmptySlots() == 0 && bucket.getLocalDepth() < HashDirectoryPage.getMaxDepth()
+				&& worthSplitting(bucket, hash)) {
+			dir = getDirectoryPage(tid, dirtypages, Permissions.READ_WRITE);
+			splitBucket(tid, dirtypages, dir, bucket, hash);
+			bucket = (HashBucketPage) getPage(tid, dirtypages, getBucketId(tid, dirtypages, dir, hash), Permissions.READ_WRITE);
+		}
+
+		insertIntoChain(tid, dirtypages, bucket, t);
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * @return true if splitting a full bucket would make room for a key of the
+	 *         given hash: some key on its page must move out of the bucket of
+	 *         the hash, and the keys with the hash must not fill half of the
+	 *         page, or the split would mostly grow the directory for a few slots
+	 */
+	private boolean worthSplitting(HashBucketPage bucket, int hash) {
+		int depth = bucket.getLocalDepth();
+		boolean moves = false;
+		int same = 0;
+		Iterator<Tuple> it = bucket.iterator();
+		while(it.hasNext()) {
+			int h = hash(it.next().getField(keyField));
+			if(h == hash) {
+				same++;
+			}
+			else if(((h ^ hash) >>> depth & 1) == 1) {
+				moves = true;
+			}
+		}
+		return moves && 2 * same < bucket.getNumTuples();
+	}
+
+	/**
+	 * Insert a tuple into the first page of a bucket chain which has room,
+	 * adding an overflow page at the end of the chain if none has.
+	 */
+	private void insertIntoChain(TransactionId tid, HashMap<PageId, Page> dirtypages, HashBucketPage bucket, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		while(bucket.getNumEmptySlots() == 0) {
+			HashPageId next = bucket.getOverflowId();
+			if(next == null) {
+				HashBucketPage overflow = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+				overflow.setLocalDepth(bucket.getLocalDepth());
+				bucket.setOverflowId(overflow.getId());
+				bucket = overflow;
+			}
+			else {
+				bucket = (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+			}
+		}
+		bucket.insertTuple(t);
+	}
+
+	/**
+	 * Split a bucket into two buckets which differ in the next bit of the hash
+	 * of their keys, doubling the directory first if the bucket is indexed by all
+	 * of its bits. A new bucket takes the directory entries of one value of that
+	 * bit, and the tuples of the bucket and of its overflow pages with that value
+	 * move there. The new bucket takes the value of the fewer tuples, so that a
+	 * chain of equal keys stays in place.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param dir - the root of the directory, locked with read-write permission
+	 * @param bucket - the full bucket to split
+	 * @param hash - the hash of a key of the bucket
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashDirectoryPage dir, HashBucketPage bucket, int hash)
+			throws DbException, IOException, TransactionAbortedException {
+		int depth = bucket.getLocalDepth();
+		if(depth == dir.getGlobalDepth()) {
+			doubleDirectory(tid, dirtypages, dir);
+		}
+
+		ArrayList<Tuple> clear = new ArrayList<Tuple>();
+		ArrayList<Tuple> set = new ArrayList<Tuple>();
+		for(HashBucketPage p = bucket; p != null; ) {
+			p.setLocalDepth(depth + 1);
+			Iterator<Tuple> it = p.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(((hash(t.getField(keyField)) >>> depth) & 1) == 1) {
+					set.add(t);
+				}
+				else {
+					clear.add(t);
+				}
+			}
+			HashPageId next = p.getOverflowId();
+			p = next == null ? null : (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+		}
+
+		HashBucketPage sibling = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+		sibling.setLocalDepth(depth + 1);
+		boolean moveSet = set.size() <= clear.size();
+		int first = (hash & ((1 << depth) - 1)) | (moveSet ? 1 << depth : 0);
+		for(int i = first; i < dir.getNumEntries(); i += 1 << (depth + 1)) {
+			setBucketId(tid, dirtypages, dir, i, sibling.getId());
+		}
+
+		for(Tuple t : moveSet ? set : clear) {
+			HashBucketPage p = (HashBucketPage) getPage(tid, dirtypages, (HashPageId) t.getRecordId().getPageId(), Permissions.READ_WRITE);
+			p.deleteTuple(t);
+			insertIntoChain(tid, dirtypages, sibling, t);
+		}
+	}
+
+	/**
+	 * Delete a tuple from this HashIndexFile. The bucket is not merged with its
+	 * buddy when it becomes empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation.
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if(rid == null || !(rid.getPageId() instanceof HashPageId)
+				|| rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tuple is not a member of this file");
+		}
+		HashPageId pid = (HashPageId) rid.getPageId();
+		if(pid.pgcateg() != HashPageId.BUCKET) {
+			throw new DbException("tuple is not a member of this file");
+		}
+		HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		ArrayList<Page> dirtied = new ArrayList<Page>();
+		dirtied.add(page);
+		return dirtied;
+	}
+
+	/**
+	 * Get a read lock on the directory page. Create the directory and the first
+	 * bucket if necessary
+	 *
+	 * @param tid - the transaction id
+	 * @return the directory page
+	 */
+	HashDirectoryPage getDirectoryPage(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		return getDirectoryPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Get an iterator over all tuples of this file, in bucket page order
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator over all tuples of this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+
+	/**
+	 * Get an iterator over the tuples satisfying an index predicate. An EQUALS
+	 * predicate on the key reads the bucket of the key only; any other predicate
+	 * is answered by scanning all buckets, since a hash index keeps no order.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key field
+	 * @return an iterator over the tuples satisfying the predicate
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashFileIterator(this, tid, ipred);
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a HashIndexFile. With an
+ * EQUALS index predicate it walks the bucket of the key and its overflow pages;
+ * otherwise it walks all bucket pages in file order, skipping the directory
+ * leaves. The tuples are filtered on
+ * the predicate, if any.
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashPageId nextp = null;
+	boolean probe;
+	int numPages;
+	HashSet<Integer> leaves;
+
+	TransactionId tid;
+	HashIndexFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashIndexFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null to return all tuples
+	 */
+	public HashFileIterator(HashIndexFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by locating the first bucket page to read
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		HashDirectoryPage dir;
+		try {
+			dir = f.getDirectoryPage(tid);
+		} catch (IOException e) {
+			throw new DbException("unable to read hash directory: " + e.getMessage());
+		}
+		probe = ipred != null && ipred.getOp() == Predicate.Op.EQUALS;
+		if(probe) {
+			nextp = f.getBucketId(tid, new HashMap<PageId, Page>(), dir, HashIndexFile.hash(ipred.getField()));
+		}
+		else {
+			numPages = f.numPages();
+			leaves = new HashSet<Integer>();
+			if(dir.hasLeaves()) {
+				for(int pageNo : dir.getEntries()) {
+					leaves.add(pageNo);
+				}
+			}
+			nextp = bucketAfter(0);
+		}
+	}
+
+	/**
+	 * @return the id of the first bucket page after the given page, skipping
+	 *         the directory leaves, or null if there is none
+	 */
+	private HashPageId bucketAfter(int pageNo) {
+		int next = pageNo + 1;
+		while(leaves.contains(next)) {
+			next++;
+		}
+		return next < numPages ? new HashPageId(f.getId(), next, HashPageId.BUCKET) : null;
+	}
+
+	/**
+	 * Read the next tuple matching the predicate, moving on to the next page
+	 * of the bucket chain (or of the file) when the current page is exhausted.
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			while (it != null && it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+					return t;
+			}
+			if (nextp == null)
+				return null;
+
+			HashBucketPage p = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					nextp, Permissions.READ_ONLY);
+			it = p.iterator();
+			if (probe) {
+				nextp = p.getOverflowId();
+			}
+			else {
+				nextp = bucketAfter(nextp.pageNumber());
+			}
+		}
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		nextp = null;
+	}
+}
@@ -18,6 +18,31 @@ public class HeapFile implements DbFile {
     // additional fields
     private File file;
     private TupleDesc tupleD;
+    // bloom filters over one field of each range of pages, if enabled
+    private PageBloomFilters pageFilters = null;
+    private int filterField = -1;
+    private boolean filtersBuilt = false;
+    // the smallest and largest values of each page, if enabled
+    private PageZoneMaps zoneMaps = null;
+    private boolean zonesBuilt = false;
+    // the format of the pages
+    private final Layout layout;
+    // bytes per page, or 0 for BufferPool.getPageSize()
+    private final int pageSize;
+    // the CRC32C of each page, in a side file
+    private final PageChecksums checksums;
+
+    /**
+     * The formats a HeapFile can store its pages in
+     */
+    public enum Layout {
+        /** fixed-size slots, one tuple after the other (HeapPage) */
+        FIXED,
+        /** variable-length records behind a slot directory (SlottedHeapPage) */
+        SLOTTED,
+        /** fixed-size slots, one column after the other (PaxHeapPage) */
+        PAX
+    }
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -27,8 +52,98 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, Layout.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, in the given page
+     * format.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param slotted
+     *            true if the pages store variable-length records behind a
+     *            slot directory (see SlottedHeapPage), false for fixed-size
+     *            slots
+     */
+    public HeapFile(File f, TupleDesc td, boolean slotted) {
+        this(f, td, slotted ? Layout.SLOTTED : Layout.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, in the given page
+     * format.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param layout
+     *            the format of the pages
+     */
+    public HeapFile(File f, TupleDesc td, Layout layout) {
+        this(f, td, layout, 0);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, in the given page
+     * format and with pages of the given size. Tables which are mostly
+     * scanned read fewer, larger pages with a large page size, while the
+     * other files keep the BufferPool's page size.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param layout
+     *            the format of the pages
+     * @param pageSize
+     *            the number of bytes of a page, or 0 for
+     *            BufferPool.getPageSize()
+     */
+    public HeapFile(File f, TupleDesc td, Layout layout, int pageSize) {
+        if (pageSize < 0 || (pageSize > 0 && pageSize < td.getSize() + 1))
+            throw new IllegalArgumentException("a page of " + pageSize
+                    + " bytes cannot hold a tuple of " + td.getSize() + " bytes");
         file = f;
         tupleD = td;
+        this.layout = layout;
+        this.pageSize = pageSize;
+        this.checksums = new PageChecksums(f);
+    }
+
+    /**
+     * @return true if the pages of this file are SlottedHeapPages
+     */
+    public boolean isSlotted() {
+        return layout == Layout.SLOTTED;
+    }
+
+    /**
+     * @return the format of the pages of this file
+     */
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the number of bytes of a page of this file
+     */
+    public int getPageSize() {
+        return pageSize > 0 ? pageSize : BufferPool.getPageSize();
+    }
+
+    /**
+     * Create a page of this file's format from its bytes on disk
+     */
+    HeapPage newPage(HeapPageId pid, byte[] data) throws IOException {
+        switch (layout) {
+        case SLOTTED:
+            return new SlottedHeapPage(pid, data, getPageSize());
+        case PAX:
+            return new PaxHeapPage(pid, data, getPageSize());
+        default:
+            return new HeapPage(pid, data, getPageSize());
+        }
     }
 
     /**
@@ -64,47 +179,106 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
+        try {
+            byte[] bytes = readPageData(pid.pageNumber());
+            if (!checksums.matches(pid.pageNumber(), bytes)) {
+                throw new IllegalArgumentException("checksum mismatch on page "
+                        + pid.pageNumber() + " of " + file);
+            }
+            return newPage((HeapPageId) pid, bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to read page " + pid.pageNumber(), e);
+        }
+    }
 
-        int bpsize = BufferPool.getPageSize();
-        RandomAccessFile rfile = null;
-
+    /**
+     * @return the bytes of a page on disk; a page past the end of the file
+     *         is empty
+     * @throws IOException if only part of the page is in the file
+     */
+    private byte[] readPageData(int pageNo) throws IOException {
+        int bpsize = getPageSize();
+        byte[] bytes = new byte[bpsize];
+        RandomAccessFile rfile = new RandomAccessFile(fileOf(pageNo), "r");
         try {
-            rfile = new RandomAccessFile(file, "r");
-            byte[] bytes = new byte[bpsize];
-            rfile.seek((long) pid.pageNumber()* bpsize);
-            rfile.read(bytes, 0, bpsize);
+            long offset = offsetOf(pageNo);
+            if (offset >= rfile.length())
+                return HeapPage.createEmptyPageData(bpsize);
+            rfile.seek(offset);
+            rfile.readFully(bytes);
+        } finally {
             rfile.close();
+        }
+        return bytes;
+    }
 
-            return new HeapPage((HeapPageId) pid, bytes);
-        } catch (IOException e) {
-            // consulted: https://www.educative.io/edpresso/what-is-the-printstacktrace-method-in-java
-            e.printStackTrace();
-        }throw new IllegalArgumentException();
+    /**
+     * Check the bytes of a page on disk against their checksum, without
+     * going through the BufferPool.
+     *
+     * @return false if the page has a checksum which its bytes do not match
+     */
+    public boolean verifyPage(int pageNo) throws IOException {
+        return checksums.matches(pageNo, readPageData(pageNo));
     }
 
+    /**
+     * @return the checksums of the pages of this file
+     */
+    PageChecksums getChecksums() {
+        return checksums;
+    }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        PageId pid = page.getId();
-        HeapPageId hid = (HeapPageId) pid;
+        writePageData(page.getId().pageNumber(), page.getPageData());
+    }
 
-        RandomAccessFile randFile = new RandomAccessFile(file, "rw");
-        int pageSize = BufferPool.DEFAULT_PAGES;
-        int pageNum = pid.pageNumber();
-        int padding = pageSize * pageNum;
-        byte[] byteArray = new byte[pageSize];
+    /**
+     * @return the file on disk which holds a page
+     */
+    protected File fileOf(int pageNo) {
+        return file;
+    }
 
-        byteArray = page.getPageData();
-        randFile.seek(padding);
-        randFile.write(byteArray, 0, pageSize);
-        randFile.close();
+    /**
+     * @return the offset of a page in the file which holds it
+     */
+    protected long offsetOf(int pageNo) {
+        return (long) pageNo * getPageSize();
+    }
+
+    /**
+     * @return the time the pages on disk were last written, against which
+     *         the side files are checked to be up to date
+     */
+    protected long lastModified() {
+        return file.lastModified();
+    }
+
+    /**
+     * Write the bytes of a page at its place in the file, with its checksum
+     */
+    private void writePageData(int pageNo, byte[] data) throws IOException {
+        int pageSize = getPageSize();
+        checksums.beforeWrite(pageNo);
+        RandomAccessFile randFile = new RandomAccessFile(fileOf(pageNo), "rw");
+        try {
+            randFile.seek(offsetOf(pageNo));
+            randFile.write(data, 0, pageSize);
+            // the new checksum may only be recorded once the page is on disk
+            randFile.getFD().sync();
+        } finally {
+            randFile.close();
+        }
+        checksums.afterWrite(pageNo, data);
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        int size = BufferPool.getPageSize();
+        int size = getPageSize();
         int pages= (int) Math.ceil(file.length()/size);
         return pages;
     }
@@ -119,7 +293,7 @@ public class HeapFile implements DbFile {
         for (int i = 0; i < this.numPages(); i++) {
             PageId pid = new HeapPageId(this.getId(), i);
             HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (hpage.getNumEmptySlots() <= 0) {
+            if (!hpage.hasRoomFor(t)) {
                 hpage = null;
             }
             else {
@@ -129,23 +303,29 @@ public class HeapFile implements DbFile {
 
         if (hPage != null) {
             hPage.insertTuple(t);
+            addToPageFilters(hPage, t);
+            addToZoneMaps(hPage, t);
             return new ArrayList<Page> (Arrays.asList(hPage));
         }
 
         HeapPageId hpid = new HeapPageId(this.getId(), intNum);
-        HeapPage hPage2 = new HeapPage(hpid, HeapPage.createEmptyPageData());
+        HeapPage hPage2 = newPage(hpid, HeapPage.createEmptyPageData(getPageSize()));
         hPage2.insertTuple(t);
-
-        RandomAccessFile randFile = new RandomAccessFile(this.file, "rw");
-        int padding = BufferPool.PAGE_SIZE * intNum;
-        randFile.seek(padding);
-        byte[] newHeapPageData = hPage2.getPageData();
-        randFile.write(newHeapPageData, 0, BufferPool.PAGE_SIZE);
-        randFile.close();
+        addToPageFilters(hPage2, t);
+        addToZoneMaps(hPage2, t);
+        writeNewPage(hPage2);
 
         return new ArrayList<Page> (Arrays.asList(hPage2));
     }
 
+    /**
+     * Write a page added at the end of the file by insertTuple, so that the
+     * file counts it among its pages.
+     */
+    protected void writeNewPage(HeapPage page) throws IOException {
+        writePageData(page.getId().pageNumber(), page.getPageData());
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -157,10 +337,318 @@ public class HeapFile implements DbFile {
             throw new DbException("Tuple doesn't exist!");
         }
         HeapPage hPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        boolean bound = zoneMaps != null && zoneMaps.isBound(pid.pageNumber(), t);
         hPage.deleteTuple(t);
+        if (bound) {
+            // the zone may be narrower without the tuple
+            zoneMaps.rebuild(pid.pageNumber(), hPage.iterator());
+        }
         return new ArrayList<>(Collections.singleton(hPage));
     }
 
+    /**
+     * Keep a bloom filter over the given field for each range of pagesPerFilter
+     * pages, so that scans for one value of the field skip the ranges which
+     * cannot hold it. The filters are read from the side file written by
+     * savePageFilters if it is up to date, and otherwise built by a scan of the
+     * file at the first such scan. They are kept up to date on insert.
+     *
+     * @param field
+     *            the field to filter on
+     * @param pagesPerFilter
+     *            the number of consecutive pages covered by one filter
+     * @see #iterator(TransactionId, Predicate)
+     */
+    public synchronized void setPageFilters(int field, int pagesPerFilter) {
+        this.filterField = field;
+        this.pageFilters = new PageBloomFilters(pagesPerFilter);
+        this.filtersBuilt = false;
+
+        File side = getPageFilterFile();
+        if (side.exists() && side.lastModified() >= lastModified()) {
+            try {
+                DataInputStream dis = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(side)));
+                try {
+                    if (dis.readInt() == field && dis.readInt() == numPages()) {
+                        PageBloomFilters saved = PageBloomFilters.deserialize(dis);
+                        if (saved.getPagesPerFilter() == pagesPerFilter) {
+                            this.pageFilters = saved;
+                            this.filtersBuilt = true;
+                        }
+                    }
+                } finally {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                // a stale or damaged side file is rebuilt
+            }
+        }
+    }
+
+    /**
+     * @return the page filters of this file, or null if they are not enabled
+     */
+    public PageBloomFilters getPageFilters() {
+        return pageFilters;
+    }
+
+    /**
+     * @return the field the page filters are on, or -1 if they are not enabled
+     */
+    public int getPageFilterField() {
+        return filterField;
+    }
+
+    /**
+     * Write the page filters to a side file next to this file, so that they do
+     * not need to be rebuilt when the file is opened again. Should be called
+     * after the pages of this file have been flushed.
+     */
+    public synchronized void savePageFilters() throws IOException {
+        if (pageFilters == null || !filtersBuilt)
+            return;
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(getPageFilterFile())));
+        try {
+            dos.writeInt(filterField);
+            dos.writeInt(numPages());
+            pageFilters.serialize(dos);
+        } finally {
+            dos.close();
+        }
+    }
+
+    private File getPageFilterFile() {
+        return new File(file.getPath() + ".bloom");
+    }
+
+    /**
+     * Add the key of a newly inserted tuple to the filter of its page range,
+     * starting a filter for a new range when the page is the first of it.
+     */
+    private synchronized void addToPageFilters(HeapPage page, Tuple t) {
+        if (pageFilters == null || !filtersBuilt)
+            return;
+        int pageNo = page.getId().pageNumber();
+        if (!pageFilters.hasFilter(pageNo) && pageNo % pageFilters.getPagesPerFilter() == 0)
+            pageFilters.create(pageNo, page.numSlots * pageFilters.getPagesPerFilter());
+        pageFilters.add(pageNo, t.getField(filterField));
+    }
+
+    /**
+     * Build the page filters by scanning the whole file
+     */
+    private synchronized void buildPageFilters(TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        if (pageFilters == null || filtersBuilt)
+            return;
+        pageFilters.clear();
+        int ppf = pageFilters.getPagesPerFilter();
+        for (int i = 0; i < numPages(); i++) {
+            HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(getId(), i), Permissions.READ_ONLY);
+            if (i % ppf == 0)
+                pageFilters.create(i, pg.numSlots * ppf);
+            Iterator<Tuple> it = pg.iterator();
+            while (it.hasNext())
+                pageFilters.add(i, it.next().getField(filterField));
+        }
+        filtersBuilt = true;
+    }
+
+    /**
+     * Keep the smallest and largest value of each field over the tuples of
+     * each page, so that scans with an equality or range predicate skip the
+     * pages whose values cannot satisfy it. The zones are read from the side
+     * file written by saveZoneMaps if it is up to date, and otherwise built by
+     * a scan of the file at the first such scan. They are kept up to date on
+     * insert and delete.
+     *
+     * @see #iterator(TransactionId, Predicate)
+     */
+    public synchronized void setZoneMaps() {
+        this.zoneMaps = new PageZoneMaps(tupleD);
+        this.zonesBuilt = false;
+
+        File side = getZoneMapFile();
+        if (side.exists() && side.lastModified() >= lastModified()) {
+            try {
+                DataInputStream dis = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(side)));
+                try {
+                    if (dis.readInt() == numPages()) {
+                        this.zoneMaps = PageZoneMaps.deserialize(dis, tupleD);
+                        this.zonesBuilt = true;
+                    }
+                } finally {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                // a stale or damaged side file is rebuilt
+            }
+        }
+    }
+
+    /**
+     * @return the zone maps of this file, or null if they are not enabled
+     */
+    public PageZoneMaps getZoneMaps() {
+        return zoneMaps;
+    }
+
+    /**
+     * Write the zone maps to a side file next to this file, so that they do
+     * not need to be rebuilt when the file is opened again. Should be called
+     * after the pages of this file have been flushed.
+     */
+    public synchronized void saveZoneMaps() throws IOException {
+        if (zoneMaps == null || !zonesBuilt)
+            return;
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(getZoneMapFile())));
+        try {
+            dos.writeInt(numPages());
+            zoneMaps.serialize(dos);
+        } finally {
+            dos.close();
+        }
+    }
+
+    private File getZoneMapFile() {
+        return new File(file.getPath() + ".zones");
+    }
+
+    /**
+     * Widen the zone of the page of a newly inserted tuple, building the
+     * zone from the whole page if the page is new.
+     */
+    private synchronized void addToZoneMaps(HeapPage page, Tuple t) {
+        if (zoneMaps == null || !zonesBuilt)
+            return;
+        int pageNo = page.getId().pageNumber();
+        if (zoneMaps.hasZone(pageNo))
+            zoneMaps.add(pageNo, t);
+        else
+            zoneMaps.rebuild(pageNo, page.iterator());
+    }
+
+    /**
+     * Build the zone maps by scanning the whole file
+     */
+    private synchronized void buildZoneMaps(TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        if (zoneMaps == null || zonesBuilt)
+            return;
+        zoneMaps.clear();
+        for (int i = 0; i < numPages(); i++) {
+            HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(getId(), i), Permissions.READ_ONLY);
+            zoneMaps.rebuild(i, pg.iterator());
+        }
+        zonesBuilt = true;
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file which satisfy a
+     * predicate. If the predicate is an equality on the field of the page
+     * filters, the page ranges whose filter excludes the value are not read;
+     * with zone maps, the pages whose range of values of the predicate's field
+     * cannot satisfy it are not read either.
+     *
+     * @param tid
+     *            The transaction the scan runs in
+     * @param pred
+     *            The predicate the returned tuples satisfy
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate pred) {
+        return new PredicateIterator(tid, pred, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file which satisfy a
+     * predicate, with only some of their fields set; the others are null
+     * unless the page had already decoded the whole tuple.
+     * Pages only decode the fields asked for, and a PAX page only reads the
+     * columns of those fields.
+     *
+     * @param tid
+     *            The transaction the scan runs in
+     * @param pred
+     *            The predicate the returned tuples satisfy, or null
+     * @param fields
+     *            The fields to set in the returned tuples, or null for all
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate pred, int[] fields) {
+        return new PredicateIterator(tid, pred, fields);
+    }
+
+    public class PredicateIterator extends AbstractDbFileIterator {
+
+        private final TransactionId tid;
+        private final Predicate pred;
+        private final int[] fields;
+        // whether page ranges may be skipped with the page filters
+        private boolean probe;
+        // whether pages may be skipped with the zone maps
+        private boolean zones;
+        private int pos;
+        private int numPages;
+        private Iterator<Tuple> tIter;
+
+        public PredicateIterator(TransactionId tid, Predicate pred, int[] fields) {
+            this.tid = tid;
+            this.pred = pred;
+            this.fields = fields;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            probe = pageFilters != null && pred != null && pred.getOp() == Predicate.Op.EQUALS
+                    && pred.getField() == filterField;
+            if (probe)
+                buildPageFilters(tid);
+            zones = zoneMaps != null && pred != null && PageZoneMaps.canSkip(pred.getOp());
+            if (zones)
+                buildZoneMaps(tid);
+            pos = 0;
+            numPages = numPages();
+            tIter = null;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                // the page only decodes the tuples which satisfy the predicate
+                if (tIter != null && tIter.hasNext())
+                    return tIter.next();
+                if (pos >= numPages)
+                    return null;
+                if (probe && !pageFilters.mightContain(pos, pred.getOperand())) {
+                    // skip the rest of the page range
+                    int ppf = pageFilters.getPagesPerFilter();
+                    pos = (pos / ppf + 1) * ppf;
+                    continue;
+                }
+                if (zones && !zoneMaps.mightMatch(pos, pred)) {
+                    pos++;
+                    continue;
+                }
+                HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(getId(), pos++), Permissions.READ_ONLY);
+                tIter = pg.iterator(pred, fields);
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            tIter = null;
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // iterator class implemented below...
@@ -106,6 +106,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // the checksums of an older file of the same name no longer apply
+    PageChecksums.discard(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
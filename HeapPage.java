@@ -1,7 +1,7 @@
 package simpledb;
-import java.math.*;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,13 +15,20 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
+    final SlotBitmap slots; // the header of the page
+    final int headerSize;
     final Tuple tuples[];
     final int numSlots;
+    final int pageSize; // bytes per page of the page's file
     TransactionId tid;
+    // the page as it is on disk, kept up to date by insertTuple and deleteTuple;
+    // shared with oldData until the page is first modified
+    private byte[] data;
+    // offset of each field within a tuple
+    final int[] fieldOffsets;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -40,27 +47,53 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, BufferPool.getPageSize());
+    }
+
+    /**
+     * Create a HeapPage from a set of bytes of data read from a file whose
+     * pages are pageSize bytes long, which takes the place of
+     * BufferPool.getPageSize() in the format above.
+     *
+     * @see HeapFile#getPageSize()
+     */
+    public HeapPage(HeapPageId id, byte[] data, int pageSize) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = pageSize;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        // the tuples are decoded from the raw bytes on first access, and the
+        // bytes are only copied when the page is first modified
+        if (data.length != pageSize)
+            data = Arrays.copyOf(data, pageSize);
+        this.data = data;
+        headerSize = getHeaderSize();
+        slots = new SlotBitmap(this.data, 0, numSlots);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        synchronized(oldDataLock)
+        {
+        oldData = data;
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    /**
+     * Create an empty HeapPage for a subclass which stores its tuples in a
+     * different format, and overrides the methods which read or write them.
+     */
+    protected HeapPage(HeapPageId id, int pageSize) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = pageSize;
+        this.numSlots = 0;
+        this.slots = new SlotBitmap(0);
+        this.headerSize = 0;
+        this.tuples = new Tuple[0];
+        this.data = new byte[0];
+        this.fieldOffsets = new int[0];
     }
 
     /** Retrieve the number of tuples on this page.
@@ -70,7 +103,7 @@ public class HeapPage implements Page {
         // get td size
         int size = td.getSize();
         // from comment above...
-        int result = (int)Math.floor((BufferPool.getPageSize()*8) / (size * 8 + 1));
+        int result = (int)Math.floor((pageSize*8) / (size * 8 + 1));
         return result;
     }
 
@@ -79,8 +112,7 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {        
-        int result = (int) Math.ceil(numSlots/8.0);
-        return result;
+        return SlotBitmap.getNumBytes(numSlots);
     }
     
     /** Return a view of this page before it was modified
@@ -92,7 +124,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,oldDataRef,pageSize);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -104,7 +136,20 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // shared until the next modification copies the page
+        oldData = data;
+        }
+    }
+
+    /**
+     * Give the page its own copy of the raw bytes if they are still shared
+     * with the before-image, before modifying them.
+     */
+    private void copyOnWrite() {
+        synchronized(oldDataLock)
+        {
+        if (data == oldData)
+            data = data.clone();
         }
     }
 
@@ -117,109 +162,76 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of a field of a slot within the page. The fields of
+     *         a slot follow each other.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    int fieldOffset(int slotId, int field) {
+        return headerSize + slotId * td.getSize() + fieldOffsets[field];
+    }
+
+    /**
+     * Decode one field of a used slot, without decoding the rest of its tuple.
+     */
+    Field getField(int slotId, int field) {
+        if (tuples[slotId] != null)
+            return tuples[slotId].getField(field);
+        return td.parseField(field, ByteBuffer.wrap(data, fieldOffset(slotId, field),
+                td.getFieldType(field).getLen()));
+    }
+
+    /**
+     * Return the tuple of a used slot, decoding it on first access.
+     */
+    private Tuple getTuple(int slotId) {
+        if (tuples[slotId] != null)
+            return tuples[slotId];
+        Tuple t = getTuple(slotId, null);
+        tuples[slotId] = t;
+        return t;
+    }
+
+    /**
+     * Decode some of the fields of a used slot, leaving the others null, or
+     * return the tuple decoded before.
+     * @param fields which fields to decode, or null for all of them
+     */
+    private Tuple getTuple(int slotId, boolean[] fields) {
+        if (tuples[slotId] != null)
+            return tuples[slotId];
 
-        // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
+        for (int j=0; j<td.numFields(); j++)
+            t.setField(j, fields == null || fields[j] ? getField(slotId, j) : null);
         return t;
     }
 
+    /**
+     * Write the fields of a tuple into its slot of the raw page.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        copyOnWrite();
+        for (int j=0; j<td.numFields(); j++)
+            t.getField(j).serialize(ByteBuffer.wrap(data, fieldOffset(slotId, j),
+                    td.getFieldType(j).getLen()));
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
      * <p>
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
+     * have it produce an identical HeapPage object. The raw bytes are kept
+     * up to date as tuples are added and removed, so no tuple is
+     * re-serialized here.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -232,8 +244,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * @return the bytes of an empty page of a file whose pages are pageSize
+     *         bytes long
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -255,6 +274,10 @@ public class HeapPage implements Page {
         }
         tuples[num] = null;
         markSlotUsed(num, false);
+        for (int j=0; j<td.numFields(); j++) {
+            int off = fieldOffset(num, j);
+            Arrays.fill(data, off, off + td.getFieldType(j).getLen(), (byte) 0);
+        }
     }
 
     /**
@@ -272,20 +295,14 @@ public class HeapPage implements Page {
             throw new DbException("Not equal");
         }
 
-        int nextEmpty = -1;
-
-        // iterate through the slots
-        for (int i = 0; i < this.numSlots; i++){
-            if (!this.isSlotUsed(i)){
-                nextEmpty = i;
-            }
-        }
+        int nextEmpty = slots.nextFree(0);
         // if nextEmpty is still -1, then no empty slots are left to insert tuple
         if (nextEmpty == -1){
             throw new DbException("No empty slots left to insert tuple!");
         }
 
         tuples[nextEmpty] = t;
+        writeTuple(nextEmpty, t);
         markSlotUsed(nextEmpty, true);
         RecordId rid = new RecordId(pid, nextEmpty);
         t.setRecordId(rid);
@@ -314,73 +331,97 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int counter = 0;
-        for(int i = 0; i<numSlots; i++){
-            if (!isSlotUsed(i)) { // implemented below...
-                counter += 1;
-            }
-        }
-        return counter;
+        return slots.getNumFree();
+    }
+
+    /**
+     * Returns true if the specified tuple can be added to this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        // error checking -- does slot exist?
-        if(i<0 || i>getNumTuples()){
-            throw new IllegalArgumentException("Slot doesn't exist");
-        }
-        // consulted: https://www.educative.io/edpresso/what-are-bit-shift-operations
-        // find byte where indicator bit is stored
-        int bite = i/8;
-        // find bit within the byte where indicator is stores
-        int bit = i%8;
-        // get byte
-//        if(bite >= getHeaderSize()){
-//            System.out.println("bite = " + bite + " out of " + getHeaderSize());
-//            System.out.println(" i = " + i);
-//            System.out.println("tuples " + getNumTuples());
-//            System.out.println("numSlots = "+ numSlots);
-//        }
-        byte biteE = header[bite];
-        int result = (biteE >> bit) & 1;
-        boolean finalResult = (result == 1);
-        return finalResult;
+        return slots.isUsed(i);
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        // implement in PA 1.3
-        int bite = i/8;
-        int bit = i%8;
-        byte[] byteArray = new byte[] {header[bite]};
-        BigInteger bigInt = new BigInteger(byteArray);
-
-        if(value == true){
-            bigInt = bigInt.setBit(bit);
-        } else if (value == false){
-            bigInt = bigInt.clearBit(bit);
-        }
-
-        byte[] byteArray2 = bigInt.toByteArray();
-        byte bite2 = byteArray2[byteArray2.length -1];
-        header[bite] = bite2;
+        copyOnWrite();
+        if (slots.setUsed(i, value))
+            data[i/8] ^= (byte) (1 << (i%8));
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * The tuples are decoded as the iterator reaches them.
      */
     public Iterator<Tuple> iterator() {
-        ArrayList<Tuple> allTuples = new ArrayList<Tuple>();
-        for(int i = 0; i<numSlots; i++){
-            if(isSlotUsed(i)){ // iterator shouldn't return tuples in empty slots!
-                allTuples.add(tuples[i]);
-            }
+        return iterator(null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this page which satisfy a
+     * predicate. Only the field the predicate reads is decoded for the tuples
+     * which do not satisfy it.
+     * @param pred the predicate, or null to return all the tuples
+     */
+    public Iterator<Tuple> iterator(Predicate pred) {
+        return iterator(pred, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this page which satisfy a
+     * predicate, with only some of their fields decoded; the others are null
+     * unless the whole tuple was already decoded.
+     * @param pred the predicate, or null to return all the tuples
+     * @param fields the fields to decode, or null for all of them
+     */
+    public Iterator<Tuple> iterator(final Predicate pred, int[] fields) {
+        final boolean[] wanted;
+        if (fields == null) {
+            wanted = null;
+        } else {
+            wanted = new boolean[td.numFields()];
+            for (int f : fields)
+                wanted[f] = true;
         }
-        return allTuples.iterator();
+        // the tuples added while iterating are not returned
+        final SlotBitmap used = slots.copy();
+        return new Iterator<Tuple>() {
+            private int pos = 0;
+            private Tuple next = null;
+
+            public boolean hasNext() {
+                while (next == null && pos != -1 && (pos = used.nextUsed(pos)) != -1) {
+                    int slot = pos++;
+                    if (!isSlotUsed(slot))
+                        continue; // deleted since
+                    if (pred != null && !getField(slot, pred.getField())
+                            .compare(pred.getOp(), pred.getOperand()))
+                        continue;
+                    next = wanted == null ? getTuple(slot) : getTuple(slot, wanted);
+                }
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
-}
\ No newline at end of file
+}
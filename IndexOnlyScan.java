@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which answers a scan of a table entirely from
+ * the leaves of a {@link CoveringIndex}, without reading any pages of the base
+ * table. It may only be used when every field the query reads from the table is
+ * stored in the index.
+ * <p>
+ * The returned tuples have the same TupleDesc as a SeqScan over the base table,
+ * so the operator can be dropped in underneath existing Filter, OrderBy and
+ * Project operators. Only the covered fields of the returned tuples are set;
+ * fields that are not stored in the index are null.
+ */
+public class IndexOnlyScan implements DbIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private CoveringIndex index;
+	private IndexPredicate ipred;
+	private TupleDesc myTd;
+	private transient DbFileIterator it;
+	private String alias;
+
+	/**
+	 * Creates an index-only scan over the specified covering index as a part of
+	 * the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the covering index to scan.
+	 * @param tableAlias
+	 *            the alias of the base table; the returned tupleDesc has fields
+	 *            named tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match on the key of the index. If null,
+	 *            the scan will return all tuples in key order
+	 * @param fields
+	 *            the fields of the base table read by the query
+	 * @throws IllegalArgumentException
+	 *            if one of the fields is not covered by the index
+	 */
+	public IndexOnlyScan(TransactionId tid, CoveringIndex index, String tableAlias,
+			IndexPredicate ipred, Collection<Integer> fields) {
+		if(!index.covers(fields)) {
+			throw new IllegalArgumentException("index does not cover all the fields read by the scan");
+		}
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		if(ipred == null) {
+			this.it = index.getFile().iterator(tid);
+		}
+		else {
+			this.it = index.getFile().indexIterator(tid, ipred);
+		}
+
+		TupleDesc baseTd = Database.getCatalog().getTupleDesc(index.getBaseTableId());
+		String[] newNames = new String[baseTd.numFields()];
+		Type[] newTypes = new Type[baseTd.numFields()];
+		for (int i = 0; i < baseTd.numFields(); i++) {
+			newNames[i] = tableAlias + "." + baseTd.getFieldName(i);
+			newTypes[i] = baseTd.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the actual name of the base table in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getBaseTableId());
+	}
+
+	/**
+	 * @return the alias of the base table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the covering index this operator reads
+	 */
+	public CoveringIndex getIndex() {
+		return index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one DbIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return index.toBaseTuple(it.next(), myTd);
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -3,7 +3,10 @@ package simpledb;
 import java.io.Serializable;
 
 /**
- * IndexPredicate compares a field which has index on it against a given value
+ * IndexPredicate compares a field which has index on it against a given value.
+ * For an index on a composite key the value may be a {@link CompositeField}
+ * holding a prefix of the key: all but its last component must match exactly,
+ * and the operation is applied to the last component.
  * @see simpledb.IndexDbIterator
  */
 public class IndexPredicate implements Serializable {
@@ -0,0 +1,1001 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSMFile is an implementation of a DbFile that stores a log-structured merge
+ * tree keyed on one field, for tables which are written far more often than
+ * they are read. Inserts and deletes go to an in-memory memtable, a concurrent
+ * skiplist sorted on the key. A full memtable is frozen and written by a
+ * background thread as an immutable sorted run, a file in the directory backing
+ * the LSMFile which is written sequentially and never updated in place. No page
+ * of an LSMFile is ever written randomly, and none goes through the BufferPool.
+ * <p>
+ * Each tuple gets a sequence number when it is inserted, which together with its
+ * key identifies it; a delete adds a tombstone for that key and sequence number.
+ * Sequence numbers are longs, so they never wrap over the life of a file; the
+ * record id of a tuple holds the high bits of its sequence number as the page
+ * number and the low 31 bits as the tuple number.
+ * Readers merge the memtables and the runs from newest to oldest, so a tombstone
+ * hides the tuple it deletes. Each run has a fence index holding the first key of
+ * each of its blocks, used to start a range scan at the right block, and a bloom
+ * filter on its keys, used to skip the run for equality lookups.
+ * <p>
+ * Runs are compacted in tiers: a run written from a memtable is in tier 0, and
+ * once a tier holds COMPACTION_FANIN runs they are merged in the background into
+ * one run of the next tier. Tombstones are dropped when the merge includes the
+ * oldest run.
+ * <p>
+ * The memtables are not logged; call flush (or BufferPool.flushAllPages) to
+ * make the tuples inserted so far durable.
+ *
+ * @see LSMRun
+ * @see BloomFilter
+ */
+public class LSMFile implements DbFile {
+
+	/** Default size of the memtable before it is written as a run, in bytes */
+	public static final int DEFAULT_MEMTABLE_BYTES = 4 * 1024 * 1024;
+	/** Number of runs of a tier which are merged into one run of the next tier */
+	public static final int COMPACTION_FANIN = 4;
+	/** Number of frozen memtables waiting to be written before inserts block */
+	static final int MAX_FROZEN_MEMTABLES = 2;
+
+	private final File dir;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final int memtableBytes;
+	private final int entrySize;
+
+	private final AtomicLong nextSeq;
+	private final AtomicInteger memtableEntries = new AtomicInteger(0);
+	private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();
+	private volatile ConcurrentSkipListMap<LSMEntry, LSMEntry> memtable;
+
+	// guarded by this
+	private int nextRunNo;
+	private final LinkedList<ConcurrentSkipListMap<LSMEntry, LSMEntry>> frozen; // newest first
+	private final ArrayList<LSMRun> runs; // newest first
+	private ExecutorService background;
+
+	/**
+	 * Constructs an LSM file backed by the specified directory, which is created
+	 * if it does not exist. The runs already in the directory are opened.
+	 *
+	 * @param dir - the directory that stores the runs of this file
+	 * @param key - the field which the file is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public LSMFile(File dir, int key, TupleDesc td) throws IOException {
+		this(dir, key, td, DEFAULT_MEMTABLE_BYTES);
+	}
+
+	/**
+	 * Constructs an LSM file backed by the specified directory.
+	 *
+	 * @param dir - the directory that stores the runs of this file
+	 * @param key - the field which the file is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param memtableBytes - the size of the memtable before it is written as a run
+	 */
+	public LSMFile(File dir, int key, TupleDesc td, int memtableBytes) throws IOException {
+		this.dir = dir;
+		this.tableid = dir.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		this.memtableBytes = memtableBytes;
+		this.entrySize = LSMRun.getEntrySize(td);
+		this.memtable = new ConcurrentSkipListMap<LSMEntry, LSMEntry>(LSMEntry.ORDER);
+		this.frozen = new LinkedList<ConcurrentSkipListMap<LSMEntry, LSMEntry>>();
+		this.runs = new ArrayList<LSMRun>();
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create directory " + dir);
+		}
+		long maxSeq = -1;
+		for (File run : dir.listFiles()) {
+			int runNo = LSMRun.parseRunNo(run.getName());
+			if (run.getName().endsWith(LSMRun.TMP_SUFFIX)) {
+				// a run whose write did not complete
+				run.delete();
+			}
+			else if (runNo >= 0) {
+				LSMRun r = new LSMRun(run, runNo, this);
+				runs.add(r);
+				maxSeq = Math.max(maxSeq, r.getMaxSeq());
+				nextRunNo = Math.max(nextRunNo, runNo + 1);
+			}
+		}
+		Collections.sort(runs, LSMRun.NEWEST_FIRST);
+		this.nextSeq = new AtomicLong(maxSeq + 1);
+	}
+
+	/**
+	 * Returns the directory backing this LSMFile on disk.
+	 */
+	public File getFile() {
+		return dir;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this LSMFile, the hash code of the
+	 * absolute name of its directory.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this file is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * The runs of an LSMFile are read directly, not through the BufferPool.
+	 * @throws IllegalArgumentException always, as no page is in this file
+	 */
+	public Page readPage(PageId pid) {
+		throw new IllegalArgumentException("LSMFile has no buffer pool pages");
+	}
+
+	/**
+	 * The runs of an LSMFile are written sequentially, not through the BufferPool.
+	 * @throws IllegalArgumentException always, as no page is in this file
+	 */
+	public void writePage(Page page) throws IOException {
+		throw new IllegalArgumentException("LSMFile has no buffer pool pages");
+	}
+
+	/**
+	 * Insert a tuple into the memtable. A copy of the tuple is stored; the
+	 * record id of the tuple holds its sequence number.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return an empty list, since no page is dirtied
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in insertTuple");
+		}
+		long seq = nextSeq.getAndIncrement();
+		Tuple copy = copyOf(t);
+		RecordId rid = getRecordId(seq);
+		copy.setRecordId(rid);
+		t.setRecordId(rid);
+		put(new LSMEntry(copy.getField(keyField), seq, false, copy));
+		return new ArrayList<Page>();
+	}
+
+	/**
+	 * Delete a tuple by adding a tombstone for its key and sequence number to
+	 * the memtable.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return an empty list, since no page is dirtied
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tuple is not a member of this file");
+		}
+		put(new LSMEntry(t.getField(keyField), getSeq(rid), true, copyOf(t)));
+		t.setRecordId(null);
+		return new ArrayList<Page>();
+	}
+
+	/**
+	 * Get an iterator over all tuples of this file, in key order
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new LSMFileIterator(this, null);
+	}
+
+	/**
+	 * Get an iterator over the tuples satisfying an index predicate on the key,
+	 * in key order. Range predicates start at the block of the lower bound in
+	 * each run; runs whose bloom filter excludes the key are skipped by equality
+	 * lookups.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the key field
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new LSMFileIterator(this, ipred);
+	}
+
+	/**
+	 * Write the memtable as a run and wait until all pending runs and
+	 * compactions are written.
+	 */
+	public void flush() throws IOException {
+		rotateMemtable(true);
+		await(background().submit(new Runnable() {
+			public void run() {
+			}
+		}));
+	}
+
+	/**
+	 * @return the number of runs of this file on disk
+	 */
+	public synchronized int numRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Record id of the tuple with the given sequence number. Tuples move
+	 * between runs, so the page number does not name a page: it holds the high
+	 * bits of the sequence number, and the tuple number the low 31 bits.
+	 */
+	private RecordId getRecordId(long seq) {
+		return new RecordId(new HeapPageId(tableid, (int) (seq >>> 31)), (int) (seq & Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @return the sequence number held by a record id of this file
+	 */
+	private static long getSeq(RecordId rid) {
+		return ((long) rid.getPageId().pageNumber() << 31) | rid.tupleno();
+	}
+
+	private Tuple copyOf(Tuple t) {
+		Tuple copy = new Tuple(td);
+		for (int i = 0; i < td.numFields(); i++) {
+			copy.setField(i, t.getField(i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Parse the tuple stored by an entry of a run
+	 */
+	Tuple readTuple(DataInputStream dis, long seq) throws IOException {
+		Tuple t = new Tuple(td);
+		t.setRecordId(getRecordId(seq));
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error: " + e.getMessage());
+		}
+		return t;
+	}
+
+	/**
+	 * Add an entry to the memtable, freezing the memtable if it is full
+	 */
+	private void put(LSMEntry e) throws IOException {
+		int entries;
+		memtableLock.readLock().lock();
+		try {
+			memtable.put(e, e);
+			entries = memtableEntries.incrementAndGet();
+		} finally {
+			memtableLock.readLock().unlock();
+		}
+		if ((long) entries * entrySize >= memtableBytes) {
+			rotateMemtable(false);
+		}
+	}
+
+	/**
+	 * Freeze the memtable and schedule it to be written as a run. Blocks while
+	 * too many frozen memtables are waiting to be written.
+	 * @param force - whether to freeze the memtable even if it is not full
+	 */
+	private void rotateMemtable(boolean force) throws IOException {
+		final ConcurrentSkipListMap<LSMEntry, LSMEntry> old;
+		int waiting;
+		memtableLock.writeLock().lock();
+		try {
+			if (memtable.isEmpty() || (!force && (long) memtableEntries.get() * entrySize < memtableBytes)) {
+				return;
+			}
+			old = memtable;
+			memtable = new ConcurrentSkipListMap<LSMEntry, LSMEntry>(LSMEntry.ORDER);
+			memtableEntries.set(0);
+			synchronized (this) {
+				frozen.addFirst(old);
+				waiting = frozen.size();
+			}
+		} finally {
+			memtableLock.writeLock().unlock();
+		}
+
+		Future<?> written = background().submit(new Runnable() {
+			public void run() {
+				try {
+					writeMemtable(old);
+					compact();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		if (waiting > MAX_FROZEN_MEMTABLES) {
+			await(written);
+		}
+	}
+
+	private synchronized ExecutorService background() {
+		if (background == null) {
+			background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "lsm-" + dir.getName());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return background;
+	}
+
+	private static void await(Future<?> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for LSM background work");
+		} catch (ExecutionException e) {
+			throw new IOException("LSM background work failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Write a frozen memtable as a run of tier 0. Runs in the background thread.
+	 */
+	private void writeMemtable(ConcurrentSkipListMap<LSMEntry, LSMEntry> mem) throws IOException {
+		int runNo;
+		synchronized (this) {
+			runNo = nextRunNo++;
+		}
+		LSMRun run = LSMRun.write(dir, runNo, 0, mem.values().iterator(), mem.size(), this);
+		synchronized (this) {
+			if (run != null) {
+				addRun(run);
+			}
+			frozen.remove(mem);
+		}
+	}
+
+	/**
+	 * Merge the runs of the lowest tier which holds COMPACTION_FANIN runs into one
+	 * run of the next tier, until no tier is full. Runs in the background thread,
+	 * so only one compaction runs at a time and no other thread removes runs.
+	 */
+	private void compact() throws IOException {
+		while (true) {
+			ArrayList<LSMRun> inputs = new ArrayList<LSMRun>();
+			boolean oldest = true;
+			int tier;
+			int runNo;
+			synchronized (this) {
+				tier = -1;
+				for (int level = 0; tier < 0; level++) {
+					int count = 0;
+					boolean higher = false;
+					for (LSMRun r : runs) {
+						if (r.getLevel() == level)
+							count++;
+						else if (r.getLevel() > level)
+							higher = true;
+					}
+					if (count >= COMPACTION_FANIN)
+						tier = level;
+					else if (!higher)
+						return;
+				}
+				for (LSMRun r : runs) {
+					if (r.getLevel() == tier)
+						inputs.add(r);
+					else if (r.getLevel() > tier)
+						oldest = false;
+				}
+				runNo = nextRunNo++;
+			}
+
+			// the runs of a tier are newer than all runs of higher tiers, so
+			// tombstones can be dropped if there is no higher tier
+			ArrayList<Iterator<LSMEntry>> sources = new ArrayList<Iterator<LSMEntry>>();
+			int expected = 0;
+			for (LSMRun r : inputs) {
+				sources.add(r.iterator(null));
+				expected += r.getNumEntries();
+			}
+			LSMMergeIterator merged = new LSMMergeIterator(sources, !oldest);
+			LSMRun out = LSMRun.write(dir, runNo, tier + 1, merged, expected, this);
+
+			synchronized (this) {
+				runs.removeAll(inputs);
+				if (out != null) {
+					addRun(out);
+				}
+			}
+			// drop the reference of this file; open iterators may still hold the inputs
+			for (LSMRun r : inputs) {
+				r.release();
+			}
+		}
+	}
+
+	/**
+	 * Add a run to the list of runs, which is kept sorted newest first
+	 */
+	private void addRun(LSMRun run) {
+		int i = 0;
+		while (i < runs.size() && runs.get(i).getRunNo() > run.getRunNo())
+			i++;
+		runs.add(i, run);
+	}
+
+	/**
+	 * Take a consistent snapshot of the memtables and runs of this file. The runs
+	 * of the snapshot are acquired and must be released by the caller.
+	 *
+	 * @param memtables - filled with the memtables, newest first
+	 * @return the runs, newest first
+	 */
+	List<LSMRun> snapshot(List<NavigableMap<LSMEntry, LSMEntry>> memtables) {
+		memtableLock.readLock().lock();
+		try {
+			synchronized (this) {
+				memtables.add(memtable);
+				memtables.addAll(frozen);
+				ArrayList<LSMRun> snap = new ArrayList<LSMRun>(runs);
+				for (LSMRun r : snap) {
+					r.acquire();
+				}
+				return snap;
+			}
+		} finally {
+			memtableLock.readLock().unlock();
+		}
+	}
+}
+
+/**
+ * An entry of an LSMFile: a tuple or a tombstone, identified by the key of the
+ * tuple and its sequence number.
+ */
+class LSMEntry {
+	final Field key;
+	final long seq;
+	final boolean tombstone;
+	final Tuple tuple;
+
+	/** Orders entries on their key, then their sequence number */
+	static final Comparator<LSMEntry> ORDER = new Comparator<LSMEntry>() {
+		public int compare(LSMEntry a, LSMEntry b) {
+			int cmp = compareKeys(a.key, b.key);
+			if (cmp != 0)
+				return cmp;
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	LSMEntry(Field key, long seq, boolean tombstone, Tuple tuple) {
+		this.key = key;
+		this.seq = seq;
+		this.tombstone = tombstone;
+		this.tuple = tuple;
+	}
+
+	/**
+	 * @return the first entry with the given key, used to position a scan
+	 */
+	static LSMEntry first(Field key) {
+		return new LSMEntry(key, Long.MIN_VALUE, false, null);
+	}
+
+	static int compareKeys(Field a, Field b) {
+		if (a.compare(Predicate.Op.LESS_THAN, b))
+			return -1;
+		if (a.compare(Predicate.Op.GREATER_THAN, b))
+			return 1;
+		return 0;
+	}
+}
+
+/**
+ * An immutable sorted run of an LSMFile. The run file holds the entries in
+ * blocks of BufferPool.getPageSize() bytes, followed by the fence index (the
+ * first key of each block), the bloom filter on the keys and a fixed-size
+ * trailer. An entry is its sequence number, a tombstone flag and the tuple.
+ * Runs written before sequence numbers were longs hold 4-byte sequence numbers
+ * and a shorter trailer, told apart by their magic number; they are still
+ * read, and are rewritten in the current format when compacted.
+ * <p>
+ * A run is reference counted: the LSMFile holds one reference until the run is
+ * compacted away, and each open iterator holds one. The file is deleted when
+ * the last reference is released.
+ */
+class LSMRun {
+	static final String PREFIX = "run-";
+	static final String SUFFIX = ".lsm";
+	static final String TMP_SUFFIX = ".tmp";
+	private static final int MAGIC = 0x4c534d31;
+	private static final int TRAILER_SIZE = 5 * Type.INT_TYPE.getLen() + 16;
+	private static final int WRITE_BUFFER = 1 << 20;
+
+	/** Orders runs from newest to oldest */
+	static final Comparator<LSMRun> NEWEST_FIRST = new Comparator<LSMRun>() {
+		public int compare(LSMRun a, LSMRun b) {
+			return Integer.compare(b.runNo, a.runNo);
+		}
+	};
+
+	private final File file;
+	private final int runNo;
+	private final LSMFile lsm;
+	private final FileChannel channel;
+	private final int level;
+	private final int numEntries;
+	private final int numBlocks;
+	private final long maxSeq;
+	private final int blockSize;
+	private final int entrySize;
+	private final Field[] fences;
+	private final BloomFilter bloom;
+
+	private int refs = 1;
+
+	/**
+	 * Open a run file, reading its trailer, fence index and bloom filter
+	 */
+	LSMRun(File file, int runNo, LSMFile lsm) throws IOException {
+		this.file = file;
+		this.runNo = runNo;
+		this.lsm = lsm;
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+
+		long len = channel.size();
+		int magic = len < 4 ? 0 : ByteBuffer.wrap(read(len - 4, 4)).getInt();
+		if (magic != MAGIC) {
+			channel.close();
+			throw new IOException("not an LSM run: " + file);
+		}
+		this.entrySize = getEntrySize(lsm.getTupleDesc());
+		DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+				read(len - TRAILER_SIZE, TRAILER_SIZE)));
+		this.level = trailer.readInt();
+		this.numEntries = trailer.readInt();
+		this.numBlocks = trailer.readInt();
+		this.maxSeq = trailer.readLong();
+		this.blockSize = trailer.readInt();
+		long footer = trailer.readLong();
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+				read(footer, (int) (len - TRAILER_SIZE - footer))));
+		Type keyType = lsm.getTupleDesc().getFieldType(lsm.keyField());
+		this.fences = new Field[numBlocks];
+		try {
+			for (int i = 0; i < numBlocks; i++) {
+				fences[i] = keyType.parse(dis);
+			}
+		} catch (java.text.ParseException e) {
+			channel.close();
+			throw new IOException("parsing error: " + e.getMessage());
+		}
+		this.bloom = BloomFilter.deserialize(dis);
+	}
+
+	static int getEntrySize(TupleDesc td) {
+		return 8 + 1 + td.getSize();
+	}
+
+	/**
+	 * @return the run number encoded in a run file name, or -1
+	 */
+	static int parseRunNo(String name) {
+		if (!name.startsWith(PREFIX))
+			return -1;
+		int end = name.indexOf('.');
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), end));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Write a run sequentially from entries in key order. The run is written to
+	 * a temporary file which is renamed once complete.
+	 *
+	 * @param dir - the directory of the LSMFile
+	 * @param runNo - the number of the run; newer runs have higher numbers
+	 * @param level - the compaction tier of the run
+	 * @param entries - the entries, in key order
+	 * @param expected - an upper bound on the number of entries, to size the bloom filter
+	 * @param lsm - the LSMFile the run belongs to
+	 * @return the new run, or null if there were no entries
+	 */
+	static LSMRun write(File dir, int runNo, int level, Iterator<LSMEntry> entries,
+			int expected, LSMFile lsm) throws IOException {
+		TupleDesc td = lsm.getTupleDesc();
+		int blockSize = BufferPool.getPageSize();
+		int entrySize = getEntrySize(td);
+		int perBlock = blockSize / entrySize;
+		if (perBlock == 0) {
+			throw new IOException("tuples do not fit in an LSM block");
+		}
+
+		String name = String.format("%s%08d", PREFIX, runNo);
+		File tmp = new File(dir, name + TMP_SUFFIX);
+		File dst = new File(dir, name + SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, WRITE_BUFFER));
+		ArrayList<Field> fences = new ArrayList<Field>();
+		BloomFilter bloom = new BloomFilter(Math.max(1, expected), BloomFilter.DEFAULT_BITS_PER_ENTRY);
+		int count = 0;
+		long maxSeq = -1;
+		try {
+			while (entries.hasNext()) {
+				LSMEntry e = entries.next();
+				if (count % perBlock == 0) {
+					if (count > 0)
+						dos.write(new byte[blockSize - perBlock * entrySize]);
+					fences.add(e.key);
+				}
+				dos.writeLong(e.seq);
+				dos.writeByte(e.tombstone ? 1 : 0);
+				for (int j = 0; j < td.numFields(); j++) {
+					e.tuple.getField(j).serialize(dos);
+				}
+				bloom.add(e.key);
+				maxSeq = Math.max(maxSeq, e.seq);
+				count++;
+			}
+			if (count == 0) {
+				dos.close();
+				tmp.delete();
+				return null;
+			}
+			// pad the last block
+			dos.write(new byte[blockSize - (count - (fences.size() - 1) * perBlock) * entrySize]);
+
+			long footer = (long) fences.size() * blockSize;
+			for (Field f : fences) {
+				f.serialize(dos);
+			}
+			bloom.serialize(dos);
+			dos.writeInt(level);
+			dos.writeInt(count);
+			dos.writeInt(fences.size());
+			dos.writeLong(maxSeq);
+			dos.writeInt(blockSize);
+			dos.writeLong(footer);
+			dos.writeInt(MAGIC);
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			dos.close();
+		}
+		if (!tmp.renameTo(dst)) {
+			throw new IOException("unable to rename " + tmp + " to " + dst);
+		}
+		return new LSMRun(dst, runNo, lsm);
+	}
+
+	private byte[] read(long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, pos + buf.position()) < 0)
+				throw new EOFException("unexpected end of LSM run " + file);
+		}
+		return buf.array();
+	}
+
+	/**
+	 * Read the entries of a block
+	 */
+	List<LSMEntry> readBlock(int b) throws IOException {
+		int first = b * (blockSize / entrySize);
+		int n = Math.min(blockSize / entrySize, numEntries - first);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+				read((long) b * blockSize, n * entrySize)));
+		ArrayList<LSMEntry> entries = new ArrayList<LSMEntry>(n);
+		int keyField = lsm.keyField();
+		for (int i = 0; i < n; i++) {
+			long seq = dis.readLong();
+			boolean tombstone = dis.readByte() != 0;
+			Tuple t = lsm.readTuple(dis, seq);
+			entries.add(new LSMEntry(t.getField(keyField), seq, tombstone, t));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return an iterator over the entries of this run, starting at the block
+	 * which may hold the first entry with a key of at least low
+	 * @param low - the lower bound of the scan, or null to scan the whole run
+	 */
+	Iterator<LSMEntry> iterator(final Field low) {
+		// the last block whose first key is below low may still hold low
+		int lo = 0;
+		int hi = numBlocks;
+		while (low != null && lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (LSMEntry.compareKeys(fences[mid], low) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		final int start = Math.max(0, lo - 1);
+
+		return new Iterator<LSMEntry>() {
+			int block = start;
+			Iterator<LSMEntry> it = null;
+
+			public boolean hasNext() {
+				while ((it == null || !it.hasNext()) && block < numBlocks) {
+					try {
+						it = readBlock(block++).iterator();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				return it != null && it.hasNext();
+			}
+
+			public LSMEntry next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return it.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return false if no entry of this run has the given key
+	 */
+	boolean mightContain(Field key) {
+		return bloom.mightContain(key);
+	}
+
+	int getRunNo() {
+		return runNo;
+	}
+
+	int getLevel() {
+		return level;
+	}
+
+	int getNumEntries() {
+		return numEntries;
+	}
+
+	long getMaxSeq() {
+		return maxSeq;
+	}
+
+	synchronized void acquire() {
+		refs++;
+	}
+
+	/**
+	 * Release a reference to this run, deleting the run file with the last one
+	 */
+	synchronized void release() {
+		if (--refs == 0) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore failures closing the file
+			}
+			file.delete();
+		}
+	}
+}
+
+/**
+ * Merges iterators over entries in key order, from the newest to the oldest
+ * source. When several sources hold the entry of a key and sequence number,
+ * only the newest is returned, so a tombstone hides the tuple it deletes.
+ */
+class LSMMergeIterator implements Iterator<LSMEntry> {
+
+	private static class Source {
+		final Iterator<LSMEntry> it;
+		final int rank;
+		LSMEntry cur;
+
+		Source(Iterator<LSMEntry> it, int rank) {
+			this.it = it;
+			this.rank = rank;
+		}
+	}
+
+	private final PriorityQueue<Source> queue;
+	private final boolean keepTombstones;
+	private LSMEntry next = null;
+
+	/**
+	 * @param sources - the sources to merge, newest first
+	 * @param keepTombstones - whether to return tombstones
+	 */
+	LSMMergeIterator(List<Iterator<LSMEntry>> sources, boolean keepTombstones) {
+		this.keepTombstones = keepTombstones;
+		this.queue = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+			public int compare(Source a, Source b) {
+				int cmp = LSMEntry.ORDER.compare(a.cur, b.cur);
+				return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+			}
+		});
+		for (int i = 0; i < sources.size(); i++) {
+			Source s = new Source(sources.get(i), i);
+			if (s.it.hasNext()) {
+				s.cur = s.it.next();
+				queue.add(s);
+			}
+		}
+	}
+
+	private void advance(Source s) {
+		if (s.it.hasNext()) {
+			s.cur = s.it.next();
+			queue.add(s);
+		}
+	}
+
+	public boolean hasNext() {
+		while (next == null && !queue.isEmpty()) {
+			Source s = queue.poll();
+			LSMEntry e = s.cur;
+			advance(s);
+			// skip the older versions of the same entry
+			while (!queue.isEmpty() && LSMEntry.ORDER.compare(queue.peek().cur, e) == 0) {
+				advance(queue.poll());
+			}
+			if (!e.tombstone || keepTombstones)
+				next = e;
+		}
+		return next != null;
+	}
+
+	public LSMEntry next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		LSMEntry e = next;
+		next = null;
+		return e;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator of an LSMFile, merging a
+ * snapshot of its memtables and runs taken when the iterator is opened.
+ */
+class LSMFileIterator extends AbstractDbFileIterator {
+
+	final LSMFile f;
+	final IndexPredicate ipred;
+	List<LSMRun> held = null;
+	Iterator<LSMEntry> it = null;
+	Field low = null;
+	Field high = null;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the LSMFile containing the tuples
+	 * @param ipred - the predicate on the key, or null to return all tuples
+	 */
+	public LSMFileIterator(LSMFile f, IndexPredicate ipred) {
+		this.f = f;
+		this.ipred = ipred;
+		if (ipred != null) {
+			switch (ipred.getOp()) {
+			case EQUALS:
+				low = ipred.getField();
+				high = ipred.getField();
+				break;
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQ:
+				low = ipred.getField();
+				break;
+			case LESS_THAN:
+			case LESS_THAN_OR_EQ:
+				high = ipred.getField();
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Open this iterator by merging the memtables and the runs which may hold
+	 * matching keys, each positioned at the lower bound of the predicate
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		ArrayList<NavigableMap<LSMEntry, LSMEntry>> memtables = new ArrayList<NavigableMap<LSMEntry, LSMEntry>>();
+		held = f.snapshot(memtables);
+		ArrayList<Iterator<LSMEntry>> sources = new ArrayList<Iterator<LSMEntry>>();
+		for (NavigableMap<LSMEntry, LSMEntry> mem : memtables) {
+			NavigableMap<LSMEntry, LSMEntry> from = (low == null) ? mem : mem.tailMap(LSMEntry.first(low), true);
+			sources.add(from.values().iterator());
+		}
+		for (LSMRun r : held) {
+			if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS && !r.mightContain(low))
+				continue;
+			sources.add(r.iterator(low));
+		}
+		it = new LSMMergeIterator(sources, false);
+	}
+
+	/**
+	 * Read the next tuple satisfying the predicate, stopping at the upper bound
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (it == null)
+			return null;
+		try {
+			while (it.hasNext()) {
+				LSMEntry e = it.next();
+				if (high != null && LSMEntry.compareKeys(e.key, high) > 0)
+					return null;
+				if (ipred == null || e.key.compare(ipred.getOp(), ipred.getField()))
+					return e.tuple;
+			}
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof IOException)
+				throw new DbException("unable to read LSM run: " + e.getCause().getMessage());
+			throw e;
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator, releasing the runs of its snapshot
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		if (held != null) {
+			for (LSMRun r : held) {
+				r.release();
+			}
+			held = null;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * LZ4Codec compresses blocks of bytes in the LZ4 block format, implemented in
+ * Java. A compressed block is a series of sequences, each a token byte whose
+ * high 4 bits are a number of literal bytes and whose low 4 bits are the
+ * length of a match minus 4, followed by the literals, the 2-byte little-endian
+ * distance back to the match, and the extra bytes of lengths of 15 or more.
+ * The last sequence only has literals.
+ * <p>
+ * Matches are found through a hash table of the positions of 4-byte sequences,
+ * which favours speed over ratio: pages of a table, with their runs of zeroes
+ * and repeated values, compress well at a small cost in CPU.
+ */
+public class LZ4Codec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_DISTANCE = 0xFFFF;
+	// the last match must start at least 12 bytes and end at least 5 bytes before the end
+	private static final int MF_LIMIT = 12;
+	private static final int LAST_LITERALS = 5;
+	private static final int HASH_LOG = 12;
+
+	private LZ4Codec() {
+	}
+
+	/**
+	 * @return the largest size of a compressed block of len bytes
+	 */
+	public static int maxCompressedLength(int len) {
+		return len + len / 255 + 16;
+	}
+
+	/**
+	 * Compress a block of bytes
+	 * @param src - the bytes to compress
+	 * @return the compressed block
+	 */
+	public static byte[] compress(byte[] src) {
+		int len = src.length;
+		byte[] dst = new byte[maxCompressedLength(len)];
+		int[] table = new int[1 << HASH_LOG]; // position + 1 of a 4-byte sequence, by hash
+		int op = 0;
+		int anchor = 0;
+		int ip = 0;
+		int matchLimit = len - LAST_LITERALS;
+		while (ip < len - MF_LIMIT) {
+			int seq = readInt(src, ip);
+			int h = (seq * -1640531535) >>> (32 - HASH_LOG);
+			int ref = table[h] - 1;
+			table[h] = ip + 1;
+			if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+				ip++;
+				continue;
+			}
+			int mlen = MIN_MATCH;
+			while (ip + mlen < matchLimit && src[ref + mlen] == src[ip + mlen])
+				mlen++;
+			op = writeSequence(src, anchor, ip - anchor, ip - ref, mlen, dst, op);
+			ip += mlen;
+			anchor = ip;
+		}
+		op = writeSequence(src, anchor, len - anchor, 0, 0, dst, op);
+		byte[] out = new byte[op];
+		System.arraycopy(dst, 0, out, 0, op);
+		return out;
+	}
+
+	/**
+	 * Write the literals and the match of a sequence; a match length of 0
+	 * writes the last sequence of a block.
+	 * @return the position in dst after the sequence
+	 */
+	private static int writeSequence(byte[] src, int lit, int litLen, int distance, int mlen,
+			byte[] dst, int op) {
+		int mcode = mlen == 0 ? 0 : mlen - MIN_MATCH;
+		dst[op++] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(mcode, 15));
+		if (litLen >= 15)
+			op = writeLength(litLen - 15, dst, op);
+		System.arraycopy(src, lit, dst, op, litLen);
+		op += litLen;
+		if (mlen == 0)
+			return op;
+		dst[op++] = (byte) distance;
+		dst[op++] = (byte) (distance >>> 8);
+		if (mcode >= 15)
+			op = writeLength(mcode - 15, dst, op);
+		return op;
+	}
+
+	private static int writeLength(int n, byte[] dst, int op) {
+		while (n >= 255) {
+			dst[op++] = (byte) 255;
+			n -= 255;
+		}
+		dst[op++] = (byte) n;
+		return op;
+	}
+
+	/**
+	 * Decompress a block compressed by compress
+	 * @param src - the compressed bytes
+	 * @param srcLen - the number of compressed bytes in src
+	 * @param len - the number of bytes of the block before compression
+	 * @return the block
+	 * @throws IOException if the compressed bytes are corrupt
+	 */
+	public static byte[] decompress(byte[] src, int srcLen, int len) throws IOException {
+		byte[] dst = new byte[len];
+		int ip = 0;
+		int op = 0;
+		try {
+			while (ip < srcLen) {
+				int token = src[ip++] & 0xFF;
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						litLen += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, ip, dst, op, litLen);
+				ip += litLen;
+				op += litLen;
+				if (ip >= srcLen)
+					break; // the last sequence has no match
+				int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+				ip += 2;
+				int mlen = token & 15;
+				if (mlen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						mlen += b;
+					} while (b == 255);
+				}
+				mlen += MIN_MATCH;
+				if (distance == 0 || distance > op)
+					throw new IOException("corrupt LZ4 block: bad match distance");
+				// the match may overlap the bytes it produces
+				for (int ref = op - distance, end = op + mlen; op < end;)
+					dst[op++] = dst[ref++];
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("corrupt LZ4 block: overrun");
+		}
+		if (op != len)
+			throw new IOException("corrupt LZ4 block: " + op + " bytes instead of " + len);
+		return dst;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+	}
+}
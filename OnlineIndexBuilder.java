@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * OnlineIndexBuilder builds a CoveringIndex over a HeapFile while tuples keep
+ * being inserted into and deleted from the table through the BufferPool.
+ * <p>
+ * The build scans the heap page by page. A change to a page the scan has not
+ * reached yet needs no bookkeeping, since the scan will see the page as it is
+ * then. A change to a page behind the scan is appended to a side delta
+ * instead. The scan of a page and the changes to the table are serialized on
+ * the builder, so every change is seen either by the scan or by the delta,
+ * never by both. Once the scan is done the delta is applied to the index in
+ * batches while changes keep arriving; the last small batch is applied under
+ * the catalog's index lock, which also switches the index in so that the
+ * BufferPool maintains it from then on.
+ *
+ * @see Catalog#beginIndexBuild
+ * @see BufferPool#insertTuple
+ */
+public class OnlineIndexBuilder {
+
+	/** Size of the delta below which it is applied under the switch lock */
+	public static final int SWITCH_THRESHOLD = 64;
+
+	/** A change to the table made behind the scan */
+	private static class Change {
+		final boolean insert;
+		final Tuple entry; // the projected index tuple
+
+		Change(boolean insert, Tuple entry) {
+			this.insert = insert;
+			this.entry = entry;
+		}
+	}
+
+	private final CoveringIndex index;
+	private final String name;
+	private final HeapFile base;
+	private ArrayList<Change> delta;
+	private int scanPage; // pages before scanPage have been scanned, or all if MAX_VALUE
+	private boolean active;
+
+	/**
+	 * Prepare the build of an index. The build is started by build.
+	 * @param index - the index to build; its file must be empty
+	 * @param name - the name to register the index under
+	 * @throws DbException if the table of the index is not a HeapFile
+	 */
+	public OnlineIndexBuilder(CoveringIndex index, String name) throws DbException {
+		DbFile file = Database.getCatalog().getDatabaseFile(index.getBaseTableId());
+		if(!(file instanceof HeapFile)) {
+			throw new DbException("online index builds are only supported over heap files");
+		}
+		this.index = index;
+		this.name = name;
+		this.base = (HeapFile) file;
+		this.delta = new ArrayList<Change>();
+	}
+
+	/**
+	 * @return the index being built
+	 */
+	public CoveringIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the name the index is registered under
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Build the index and switch it into the catalog. Changes to the table may
+	 * continue throughout; they are only held up while the index is switched in.
+	 * @param tid - the transaction the build runs in
+	 * @return the index
+	 */
+	public CoveringIndex build(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getCatalog().beginIndexBuild(this);
+		boolean done = false;
+		try {
+			scan(tid);
+			// drain the delta while changes keep arriving
+			while(true) {
+				ArrayList<Change> batch;
+				synchronized(this) {
+					if(delta.size() <= SWITCH_THRESHOLD) {
+						break;
+					}
+					batch = delta;
+					delta = new ArrayList<Change>();
+				}
+				apply(tid, batch);
+			}
+			// no change is in flight while the write lock is held
+			Lock lock = Database.getCatalog().getIndexLock().writeLock();
+			lock.lock();
+			try {
+				synchronized(this) {
+					apply(tid, delta);
+					delta = new ArrayList<Change>();
+					active = false;
+				}
+				Database.getCatalog().finishIndexBuild(this);
+			} finally {
+				lock.unlock();
+			}
+			done = true;
+		} finally {
+			if(!done) {
+				synchronized(this) {
+					active = false;
+					delta = new ArrayList<Change>();
+				}
+				Database.getCatalog().abortIndexBuild(this);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Add the tuples of the table to the index, one page at a time. The
+	 * tuples of a page are collected while holding the builder, and added to
+	 * the index after releasing it so that changes to the table are not held
+	 * up by the index inserts.
+	 */
+	private void scan(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		while(true) {
+			ArrayList<Tuple> entries = new ArrayList<Tuple>();
+			synchronized(this) {
+				// the table may grow during the scan; pages added after it are
+				// behind it too
+				if(scanPage >= base.numPages()) {
+					scanPage = Integer.MAX_VALUE;
+					break;
+				}
+				HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+						new HeapPageId(base.getId(), scanPage), Permissions.READ_ONLY);
+				Iterator<Tuple> it = page.iterator();
+				while(it.hasNext()) {
+					entries.add(index.toIndexTuple(it.next()));
+				}
+				scanPage++;
+			}
+			for(Tuple entry : entries) {
+				Database.getBufferPool().insertTuple(tid, index.getFile().getId(), entry);
+			}
+		}
+	}
+
+	/**
+	 * Apply a batch of changes to the index, in the order they were made
+	 */
+	private void apply(TransactionId tid, List<Change> batch)
+			throws DbException, IOException, TransactionAbortedException {
+		for(Change c : batch) {
+			if(c.insert) {
+				Database.getBufferPool().insertTuple(tid, index.getFile().getId(), c.entry);
+			} else {
+				index.deleteIndexTuple(tid, c.entry);
+			}
+		}
+	}
+
+	/**
+	 * Called by the BufferPool, while holding the builder, after a tuple was
+	 * added to the table
+	 * @param t - the inserted tuple, with its record id set
+	 */
+	synchronized void recordInsert(Tuple t) {
+		record(true, t);
+	}
+
+	/**
+	 * Called by the BufferPool, while holding the builder, after a tuple was
+	 * removed from the table
+	 * @param t - the deleted tuple, with the record id it had
+	 */
+	synchronized void recordDelete(Tuple t) {
+		record(false, t);
+	}
+
+	private void record(boolean insert, Tuple t) {
+		if(active && t.getRecordId().getPageId().pageNumber() < scanPage) {
+			delta.add(new Change(insert, index.toIndexTuple(t)));
+		}
+	}
+
+	/**
+	 * Mark the build as started; changes behind the scan are recorded from now on
+	 */
+	synchronized void start() {
+		active = true;
+		scanPage = 0;
+	}
+}
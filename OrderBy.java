@@ -96,6 +96,7 @@ public class OrderBy extends Operator {
     @Override
     public void setChildren(DbIterator[] children) {
         this.child = children[0];
+        td = child.getTupleDesc();
     }
 
 }
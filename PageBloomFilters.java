@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageBloomFilters holds one BloomFilter over the key column of each group of
+ * pagesPerFilter consecutive pages of a DbFile: each leaf of a BTreeFile, or
+ * each range of pages of a HeapFile. An equality probe for a key which is not
+ * in a group's filter skips the pages of the group without reading them.
+ * <p>
+ * Filters only ever gain keys: deleting a tuple leaves its key in the filter,
+ * which at worst costs a page read. A group without a filter is unknown and is
+ * always read. The owner of the filters must invalidate a group when tuples
+ * move into it other than through add, e.g. when a B+ tree leaf is split or
+ * merged.
+ */
+public class PageBloomFilters {
+
+	private final int pagesPerFilter;
+	private final HashMap<Integer, BloomFilter> filters;
+
+	/**
+	 * Create an empty set of filters.
+	 * @param pagesPerFilter - the number of consecutive pages covered by one filter
+	 */
+	public PageBloomFilters(int pagesPerFilter) {
+		this.pagesPerFilter = pagesPerFilter;
+		this.filters = new HashMap<Integer, BloomFilter>();
+	}
+
+	/**
+	 * @return the number of consecutive pages covered by one filter
+	 */
+	public int getPagesPerFilter() {
+		return pagesPerFilter;
+	}
+
+	/**
+	 * @param pageNo - the number of a page
+	 * @return false if the page definitely holds no tuple with the given key
+	 */
+	public synchronized boolean mightContain(int pageNo, Field key) {
+		BloomFilter filter = filters.get(pageNo / pagesPerFilter);
+		return filter == null || filter.mightContain(key);
+	}
+
+	/**
+	 * @return true if the group of the given page has a filter
+	 */
+	public synchronized boolean hasFilter(int pageNo) {
+		return filters.containsKey(pageNo / pagesPerFilter);
+	}
+
+	/**
+	 * Start an empty filter for the group of the given page, replacing any
+	 * filter the group had. The keys of all the tuples of the group must then
+	 * be added.
+	 * @param pageNo - the number of a page of the group
+	 * @param expectedKeys - the number of keys the group may hold
+	 */
+	public synchronized void create(int pageNo, int expectedKeys) {
+		filters.put(pageNo / pagesPerFilter,
+				new BloomFilter(expectedKeys, BloomFilter.DEFAULT_BITS_PER_ENTRY));
+	}
+
+	/**
+	 * Record that a tuple with the given key is stored on a page. Does nothing
+	 * if the group of the page has no filter.
+	 */
+	public synchronized void add(int pageNo, Field key) {
+		BloomFilter filter = filters.get(pageNo / pagesPerFilter);
+		if (filter != null) {
+			filter.add(key);
+		}
+	}
+
+	/**
+	 * Drop the filter of the group of the given page
+	 */
+	public synchronized void invalidate(int pageNo) {
+		filters.remove(pageNo / pagesPerFilter);
+	}
+
+	/**
+	 * Drop all filters
+	 */
+	public synchronized void clear() {
+		filters.clear();
+	}
+
+	/**
+	 * @return the number of groups with a filter
+	 */
+	public synchronized int size() {
+		return filters.size();
+	}
+
+	/**
+	 * Write the filters to the specified DataOutputStream.
+	 * @param dos Where the data is written
+	 */
+	public synchronized void serialize(DataOutputStream dos) throws IOException {
+		dos.writeInt(pagesPerFilter);
+		dos.writeInt(filters.size());
+		for (Map.Entry<Integer, BloomFilter> e : filters.entrySet()) {
+			dos.writeInt(e.getKey());
+			e.getValue().serialize(dos);
+		}
+	}
+
+	/**
+	 * Read filters written by serialize.
+	 * @param dis Where the data is read from
+	 * @return the filters
+	 */
+	public static PageBloomFilters deserialize(DataInputStream dis) throws IOException {
+		PageBloomFilters pf = new PageBloomFilters(dis.readInt());
+		int n = dis.readInt();
+		for (int i = 0; i < n; i++) {
+			int group = dis.readInt();
+			pf.filters.put(group, BloomFilter.deserialize(dis));
+		}
+		return pf;
+	}
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * PageChecksums holds a CRC32C checksum of each page of a file, so that a
+ * page which was corrupted on disk is detected when it is read instead of
+ * being handed to the BufferPool. The checksums are kept in a side file next
+ * to the data file, as an 8-byte entry per page number:
+ * <pre>
+ * | 0 (31 bits) | known (1 bit) | CRC32C of the page (32 bits) |
+ * </pre>
+ * A page whose entry is not known, e.g. a page written before the file had
+ * checksums or by an encoder, is not verified.
+ * <p>
+ * Writing a page first clears its entry and forces the side file to disk,
+ * then writes the page, which the file of the page must force to disk before
+ * it records the new checksum. A crash in the middle of a write thus leaves
+ * the page unknown rather than failing its checksum. The entries are cached
+ * in memory, which makes the check on read a CRC32C over the page bytes, and
+ * the side file is kept open once it is first written.
+ *
+ * @see PageScrubber
+ */
+public class PageChecksums {
+
+	private static final int ENTRY_SIZE = 8;
+	private static final long KNOWN = 1L << 32;
+
+	private final File file;
+	private long[] entries = null; // loaded at first use
+	private int size;
+	private FileChannel channel = null; // opened at first write
+
+	/**
+	 * Create the checksums of the pages of a data file.
+	 * @param dataFile - the file whose pages are checked
+	 */
+	public PageChecksums(File dataFile) {
+		this.file = sideFile(dataFile);
+	}
+
+	private static File sideFile(File dataFile) {
+		return new File(dataFile.getPath() + ".crc");
+	}
+
+	/**
+	 * Drop the checksums of a data file, which must be done when the file is
+	 * written from scratch by something other than its DbFile.
+	 */
+	public static void discard(File dataFile) {
+		sideFile(dataFile).delete();
+	}
+
+	/**
+	 * @return the CRC32C of len bytes of data starting at off
+	 */
+	public static int checksum(byte[] data, int off, int len) {
+		CRC32C crc = new CRC32C();
+		crc.update(data, off, len);
+		return (int) crc.getValue();
+	}
+
+	private void load() throws IOException {
+		if (entries != null)
+			return;
+		int n = (int) (file.length() / ENTRY_SIZE);
+		entries = new long[Math.max(n, 16)];
+		if (n > 0) {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				for (int i = 0; i < n; i++)
+					entries[i] = dis.readLong();
+			} finally {
+				dis.close();
+			}
+		}
+		size = n;
+	}
+
+	/**
+	 * @return false if the page has a checksum and the bytes do not match it
+	 */
+	public synchronized boolean matches(int pageNo, byte[] data) throws IOException {
+		load();
+		if (pageNo >= size || (entries[pageNo] & KNOWN) == 0)
+			return true;
+		return (int) entries[pageNo] == checksum(data, 0, data.length);
+	}
+
+	/**
+	 * @return true if the page has a checksum
+	 */
+	public synchronized boolean isKnown(int pageNo) throws IOException {
+		load();
+		return pageNo < size && (entries[pageNo] & KNOWN) != 0;
+	}
+
+	/**
+	 * Clear the checksum of a page which is about to be written, and make
+	 * sure the cleared entry is on disk before the page is.
+	 */
+	public synchronized void beforeWrite(int pageNo) throws IOException {
+		load();
+		if (pageNo < size && entries[pageNo] != 0) {
+			writeEntry(pageNo, 0);
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Record the checksum of a page once its bytes are written and forced to
+	 * disk.
+	 */
+	public synchronized void afterWrite(int pageNo, byte[] data) throws IOException {
+		load();
+		writeEntry(pageNo, KNOWN | (checksum(data, 0, data.length) & 0xFFFFFFFFL));
+	}
+
+	private void writeEntry(int pageNo, long entry) throws IOException {
+		if (pageNo >= entries.length)
+			entries = Arrays.copyOf(entries, Math.max(pageNo + 1, entries.length * 2));
+		entries[pageNo] = entry;
+		// pages skipped over are unknown
+		int from = Math.min(pageNo, size);
+		size = Math.max(size, pageNo + 1);
+		ByteBuffer buf = ByteBuffer.allocate((pageNo + 1 - from) * ENTRY_SIZE);
+		for (int i = from; i <= pageNo; i++)
+			buf.putLong(entries[i]);
+		buf.flip();
+		if (channel == null)
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		long pos = (long) from * ENTRY_SIZE;
+		while (buf.hasRemaining())
+			pos += channel.write(buf, pos);
+	}
+}
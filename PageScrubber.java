@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageScrubber reads every page of the HeapFiles and BTreeFiles of the
+ * Catalog, and of their covering indexes, straight from disk and checks it
+ * against its checksum, so that a page corrupted on disk is found even if no
+ * query reads it. It can scrub once, or run in a background daemon thread
+ * which scrubs the database every interval, pausing after each run of pages
+ * so that it does not take the disk away from queries.
+ * <p>
+ * The pages are read without going through the BufferPool, and a page being
+ * written while it is checked may not match the checksum it is checked
+ * against; a page which does not match is checked again before it is
+ * reported.
+ *
+ * @see PageChecksums
+ */
+public class PageScrubber implements Runnable {
+
+	/** Default number of pages read between two pauses */
+	public static final int DEFAULT_PAGES_PER_PAUSE = 64;
+	/** Default length of a pause, in milliseconds */
+	public static final long DEFAULT_PAUSE_MILLIS = 10;
+	/** Default time between the start of two passes, in milliseconds */
+	public static final long DEFAULT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+	/** A page which does not match its checksum */
+	public static class CorruptPage {
+		public final File file;
+		public final int pageNo;
+
+		CorruptPage(File file, int pageNo) {
+			this.file = file;
+			this.pageNo = pageNo;
+		}
+
+		public String toString() {
+			return file + " page " + pageNo;
+		}
+	}
+
+	private final int pagesPerPause;
+	private final long pauseMillis;
+	private final long intervalMillis;
+	private Thread thread = null; // guarded by this
+	private final List<CorruptPage> corrupt = Collections.synchronizedList(new ArrayList<CorruptPage>());
+
+	/**
+	 * Create a scrubber.
+	 * @param pagesPerPause - the number of pages read between two pauses
+	 * @param pauseMillis - the length of a pause
+	 * @param intervalMillis - the time between the start of two passes of
+	 *        the background thread
+	 */
+	public PageScrubber(int pagesPerPause, long pauseMillis, long intervalMillis) {
+		if (pagesPerPause < 1)
+			throw new IllegalArgumentException("a scrubber must read at least one page between pauses");
+		this.pagesPerPause = pagesPerPause;
+		this.pauseMillis = pauseMillis;
+		this.intervalMillis = intervalMillis;
+	}
+
+	public PageScrubber() {
+		this(DEFAULT_PAGES_PER_PAUSE, DEFAULT_PAUSE_MILLIS, DEFAULT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Start scrubbing in a background daemon thread, if it is not running.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "page-scrubber");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the background thread and wait for it to finish.
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			t.join();
+		}
+	}
+
+	/**
+	 * @return the corrupt pages found by the background thread so far
+	 */
+	public List<CorruptPage> getCorruptPages() {
+		synchronized (corrupt) {
+			return new ArrayList<CorruptPage>(corrupt);
+		}
+	}
+
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long start = System.currentTimeMillis();
+				for (CorruptPage p : scrubOnce()) {
+					Debug.log(1, "PageScrubber.run: checksum mismatch on %s", p);
+					corrupt.add(p);
+				}
+				Thread.sleep(Math.max(0, start + intervalMillis - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Check every page of the database once.
+	 * @return the pages which do not match their checksum
+	 */
+	public List<CorruptPage> scrubOnce() throws InterruptedException {
+		ArrayList<DbFile> files = new ArrayList<DbFile>();
+		Catalog catalog = Database.getCatalog();
+		ArrayList<Integer> tableids = new ArrayList<Integer>();
+		for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext();)
+			tableids.add(it.next());
+		for (int tableid : tableids) {
+			try {
+				files.add(catalog.getDatabaseFile(tableid));
+				for (CoveringIndex index : catalog.getIndexes(tableid))
+					files.add(index.getFile());
+			} catch (NoSuchElementException e) {
+				// dropped since
+			}
+		}
+		ArrayList<CorruptPage> found = new ArrayList<CorruptPage>();
+		int read = 0;
+		for (DbFile file : files) {
+			int last;
+			if (file instanceof HeapFile) {
+				last = ((HeapFile) file).numPages() - 1;
+			} else if (file instanceof BTreeFile) {
+				// page 0 is the root pointer page, which an empty file lacks
+				BTreeFile bf = (BTreeFile) file;
+				last = bf.getFile().length() == 0 ? -1 : bf.numPages();
+			} else {
+				continue;
+			}
+			for (int pageNo = 0; pageNo <= last; pageNo++) {
+				if (!verify(file, pageNo) && !verify(file, pageNo))
+					found.add(new CorruptPage(fileOf(file), pageNo));
+				if (++read % pagesPerPause == 0)
+					Thread.sleep(pauseMillis);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return false if the page does not match its checksum, or cannot be
+	 *         read in full
+	 */
+	private static boolean verify(DbFile file, int pageNo) {
+		try {
+			if (file instanceof HeapFile)
+				return ((HeapFile) file).verifyPage(pageNo);
+			return ((BTreeFile) file).verifyPage(pageNo);
+		} catch (IOException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static File fileOf(DbFile file) {
+		if (file instanceof HeapFile)
+			return ((HeapFile) file).getFile();
+		return ((BTreeFile) file).getFile();
+	}
+}
@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageZoneMaps holds the smallest and largest value of each field over the
+ * tuples of each page of a HeapFile. A scan with an equality or range
+ * predicate skips the pages whose range of values of the predicate's field
+ * cannot satisfy it, without reading them; on a table clustered on the field,
+ * e.g. a time series on its timestamp, a range scan only reads the few pages
+ * which overlap the range.
+ * <p>
+ * Inserting a tuple widens the zone of its page. Deleting a tuple which holds
+ * the smallest or largest value of a field leaves the zone too wide; the owner
+ * of the zones should then rebuild the zone from the tuples left on the page.
+ * A page without a zone is unknown and is always read, while a zone of a page
+ * without tuples matches nothing.
+ */
+public class PageZoneMaps {
+
+	/** The smallest and largest value of each field, or null if the page is empty */
+	private static class Zone {
+		Field[] min;
+		Field[] max;
+	}
+
+	private final TupleDesc td;
+	private final HashMap<Integer, Zone> zones;
+
+	/**
+	 * Create an empty set of zones.
+	 * @param td - the tuple descriptor of the tuples of the pages
+	 */
+	public PageZoneMaps(TupleDesc td) {
+		this.td = td;
+		this.zones = new HashMap<Integer, Zone>();
+	}
+
+	/**
+	 * @return true if the given page has a zone
+	 */
+	public synchronized boolean hasZone(int pageNo) {
+		return zones.containsKey(pageNo);
+	}
+
+	/**
+	 * @param pageNo - the number of a page
+	 * @param pred - the predicate
+	 * @return false if no tuple of the page satisfies the predicate
+	 */
+	public synchronized boolean mightMatch(int pageNo, Predicate pred) {
+		Zone z = zones.get(pageNo);
+		if (z == null)
+			return true;
+		if (z.min == null)
+			return false;
+		int f = pred.getField();
+		return mightMatch(z.min[f], z.max[f], pred.getOp(), pred.getOperand());
+	}
+
+	/**
+	 * @return false if no value between min and max, inclusive, satisfies
+	 *         (value op operand)
+	 */
+	static boolean mightMatch(Field min, Field max, Predicate.Op op, Field operand) {
+		switch (op) {
+		case EQUALS:
+			return !min.compare(Predicate.Op.GREATER_THAN, operand)
+					&& !max.compare(Predicate.Op.LESS_THAN, operand);
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+			return max.compare(op, operand);
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			return min.compare(op, operand);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if a zone can skip pages for the operator of a predicate
+	 */
+	static boolean canSkip(Predicate.Op op) {
+		return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+	}
+
+	/**
+	 * Replace the zone of a page by the zone of the given tuples, the tuples
+	 * of the page.
+	 */
+	public synchronized void rebuild(int pageNo, Iterator<Tuple> tuples) {
+		zones.put(pageNo, new Zone());
+		while (tuples.hasNext())
+			add(pageNo, tuples.next());
+	}
+
+	/**
+	 * Widen the zone of a page to hold a tuple stored on it. Does nothing if
+	 * the page has no zone.
+	 */
+	public synchronized void add(int pageNo, Tuple t) {
+		Zone z = zones.get(pageNo);
+		if (z == null)
+			return;
+		if (z.min == null) {
+			z.min = new Field[td.numFields()];
+			z.max = new Field[td.numFields()];
+			for (int i = 0; i < td.numFields(); i++) {
+				z.min[i] = t.getField(i);
+				z.max[i] = t.getField(i);
+			}
+			return;
+		}
+		for (int i = 0; i < td.numFields(); i++) {
+			Field f = t.getField(i);
+			if (f.compare(Predicate.Op.LESS_THAN, z.min[i]))
+				z.min[i] = f;
+			if (f.compare(Predicate.Op.GREATER_THAN, z.max[i]))
+				z.max[i] = f;
+		}
+	}
+
+	/**
+	 * @return true if a tuple of a page holds the smallest or largest value of
+	 *         one of its fields, so that the zone of the page may be too wide
+	 *         once the tuple is deleted
+	 */
+	public synchronized boolean isBound(int pageNo, Tuple t) {
+		Zone z = zones.get(pageNo);
+		if (z == null || z.min == null)
+			return false;
+		for (int i = 0; i < td.numFields(); i++) {
+			if (t.getField(i).equals(z.min[i]) || t.getField(i).equals(z.max[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drop the zone of a page
+	 */
+	public synchronized void invalidate(int pageNo) {
+		zones.remove(pageNo);
+	}
+
+	/**
+	 * Drop all zones
+	 */
+	public synchronized void clear() {
+		zones.clear();
+	}
+
+	/**
+	 * @return the number of pages with a zone
+	 */
+	public synchronized int size() {
+		return zones.size();
+	}
+
+	/**
+	 * Write the zones to the specified DataOutputStream.
+	 * @param dos Where the data is written
+	 */
+	public synchronized void serialize(DataOutputStream dos) throws IOException {
+		dos.writeInt(zones.size());
+		for (Map.Entry<Integer, Zone> e : zones.entrySet()) {
+			Zone z = e.getValue();
+			dos.writeInt(e.getKey());
+			dos.writeBoolean(z.min != null);
+			if (z.min == null)
+				continue;
+			for (int i = 0; i < td.numFields(); i++) {
+				z.min[i].serialize(dos);
+				z.max[i].serialize(dos);
+			}
+		}
+	}
+
+	/**
+	 * Read zones written by serialize.
+	 * @param dis Where the data is read from
+	 * @param td the tuple descriptor of the tuples of the pages
+	 * @return the zones
+	 */
+	public static PageZoneMaps deserialize(DataInputStream dis, TupleDesc td) throws IOException {
+		PageZoneMaps zm = new PageZoneMaps(td);
+		int n = dis.readInt();
+		try {
+			for (int j = 0; j < n; j++) {
+				int pageNo = dis.readInt();
+				Zone z = new Zone();
+				if (dis.readBoolean()) {
+					z.min = new Field[td.numFields()];
+					z.max = new Field[td.numFields()];
+					for (int i = 0; i < td.numFields(); i++) {
+						z.min[i] = td.getFieldType(i).parse(dis);
+						z.max[i] = td.getFieldType(i).parse(dis);
+					}
+				}
+				zm.zones.put(pageNo, z);
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error: " + e.getMessage());
+		}
+		return zm;
+	}
+}
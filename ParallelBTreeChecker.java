@@ -0,0 +1,326 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ParallelBTreeChecker verifies the same invariants as BTreeChecker.checkRep,
+ * but checks the subtrees of every internal page as separate tasks of a
+ * fork-join pool, and reads the pages straight from the file with
+ * BTreeFile.readPage instead of through the BufferPool, so checking a large
+ * tree neither holds up nor evicts the pages of running queries.
+ * <p>
+ * Since pages are read from disk, the checker sees the tree as of the last
+ * flush; it should be run on a flushed tree which is not being modified.
+ * Violations are collected in the returned Report rather than asserted, along
+ * with statistics on the shape of the tree.
+ */
+public class ParallelBTreeChecker {
+
+    /**
+     * Page counts and slot usage of one level of the tree
+     */
+    public static class LevelStats {
+        private final AtomicLong pages = new AtomicLong();
+        private final AtomicLong entries = new AtomicLong();
+        private final AtomicLong capacity = new AtomicLong();
+
+        /** @return the number of pages on this level */
+        public long getPages() {
+            return pages.get();
+        }
+
+        /** @return the number of tuples (leaves) or entries (internal pages) on this level */
+        public long getEntries() {
+            return entries.get();
+        }
+
+        /** @return the fraction of the slots of this level which are in use */
+        public double getFillFactor() {
+            long cap = capacity.get();
+            return cap == 0 ? 0 : (double) entries.get() / cap;
+        }
+
+        void add(int used, int slots) {
+            pages.incrementAndGet();
+            entries.addAndGet(used);
+            capacity.addAndGet(slots);
+        }
+    }
+
+    /**
+     * The outcome of a check: the violations found and statistics on the tree
+     */
+    public static class Report {
+        private final Queue<String> errors = new ConcurrentLinkedQueue<String>();
+        private final ConcurrentHashMap<Integer, LevelStats> levels = new ConcurrentHashMap<Integer, LevelStats>();
+        private final AtomicLong leafJumps = new AtomicLong();
+        private long filePages;
+        private long headerPages;
+
+        /** @return true if no invariant was violated */
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        /** @return a description of each violation found */
+        public List<String> getErrors() {
+            return new ArrayList<String>(errors);
+        }
+
+        /** @return the number of levels of the tree; 0 if the tree is empty */
+        public int getDepth() {
+            return levels.size();
+        }
+
+        /**
+         * @param level - the level, 0 for the root
+         * @return the statistics of the given level
+         */
+        public LevelStats getLevel(int level) {
+            LevelStats stats = levels.get(level);
+            return stats == null ? new LevelStats() : stats;
+        }
+
+        /** @return the number of pages reachable from the root */
+        public long getTreePages() {
+            long n = 0;
+            for (LevelStats stats : levels.values())
+                n += stats.getPages();
+            return n;
+        }
+
+        /** @return the number of pages of the file which are neither in the tree nor header pages */
+        public long getUnusedPages() {
+            return filePages - getTreePages() - headerPages;
+        }
+
+        /**
+         * Leaf fragmentation: the fraction of the links between consecutive
+         * leaves which do not point at the next page of the file, i.e. which
+         * cost a seek in a full scan of the leaves.
+         */
+        public double getLeafFragmentation() {
+            long leaves = getLevel(getDepth() - 1).getPages();
+            return leaves <= 1 ? 0 : (double) leafJumps.get() / (leaves - 1);
+        }
+
+        void error(String msg) {
+            errors.add(msg);
+        }
+
+        LevelStats level(int level) {
+            LevelStats stats = levels.get(level);
+            if (stats == null) {
+                levels.putIfAbsent(level, new LevelStats());
+                stats = levels.get(level);
+            }
+            return stats;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(isValid() ? "valid" : errors.size() + " errors");
+            sb.append(", depth ").append(getDepth());
+            for (int i = 0; i < getDepth(); i++) {
+                LevelStats stats = getLevel(i);
+                sb.append(String.format("\n  level %d: %d pages, %d entries, fill %.1f%%",
+                        i, stats.getPages(), stats.getEntries(), 100 * stats.getFillFactor()));
+            }
+            sb.append(String.format("\n  leaf fragmentation %.1f%%, %d unused of %d pages",
+                    100 * getLeafFragmentation(), getUnusedPages(), filePages));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Check a B+ tree on the common fork-join pool
+     * @see #check(BTreeFile, boolean, ForkJoinPool)
+     */
+    public static Report check(BTreeFile bt, boolean checkOccupancy) {
+        return check(bt, checkOccupancy, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Check the integrity of a B+ tree, as BTreeChecker.checkRep does:
+     * parent pointers, sibling pointers, range invariants, record to page
+     * pointers and (if enabled) occupancy invariants.
+     * @param bt - the tree to check
+     * @param checkOccupancy - whether non-root pages must be at least half full
+     * @param pool - the pool to run the check on; reads are blocking, so a
+     *            pool with more threads than cores suits trees on slow disks
+     * @return the violations found and the statistics of the tree
+     */
+    public static Report check(BTreeFile bt, boolean checkOccupancy, ForkJoinPool pool) {
+        Report report = new Report();
+        if (bt.getFile().length() < BTreeRootPtrPage.getPageSize())
+            return report; // an empty file is a legal state
+        report.filePages = bt.numPages();
+
+        BTreeRootPtrPage rtptr = (BTreeRootPtrPage) bt.readPage(BTreeRootPtrPage.getId(bt.getId()));
+        BTreePageId headerId = rtptr.getHeaderId();
+        while (headerId != null) {
+            report.headerPages++;
+            headerId = ((BTreeHeaderPage) bt.readPage(headerId)).getNextPageId();
+        }
+
+        if (rtptr.getRootId() == null) // non existent root is a legal state.
+            return report;
+        SubtreeTask root = new SubtreeTask(bt, report, rtptr.getRootId(), null, null,
+                rtptr.getId(), checkOccupancy, 0);
+        BTreeChecker.SubtreeSummary res = pool.invoke(root);
+        if (res != null && (res.ptrLeft != null || res.ptrRight != null))
+            report.error("outermost leaves have sibling pointers");
+        return report;
+    }
+
+    /**
+     * Checks one subtree, forking a task for each child of an internal page
+     */
+    private static class SubtreeTask extends RecursiveTask<BTreeChecker.SubtreeSummary> {
+        private static final long serialVersionUID = 1L;
+
+        private final BTreeFile bt;
+        private final Report report;
+        private final BTreePageId pageId;
+        private final Field lowerBound;
+        private final Field upperBound;
+        private final BTreePageId parentId;
+        private final boolean checkOccupancy;
+        private final int depth;
+
+        SubtreeTask(BTreeFile bt, Report report, BTreePageId pageId, Field lowerBound,
+                    Field upperBound, BTreePageId parentId, boolean checkOccupancy, int depth) {
+            this.bt = bt;
+            this.report = report;
+            this.pageId = pageId;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.parentId = parentId;
+            this.checkOccupancy = checkOccupancy;
+            this.depth = depth;
+        }
+
+        /**
+         * @return the summary of the subtree, or null if it could not be
+         *         checked; the reason is recorded in the report
+         */
+        protected BTreeChecker.SubtreeSummary compute() {
+            BTreePage page;
+            try {
+                page = (BTreePage) bt.readPage(pageId);
+            } catch (RuntimeException e) {
+                report.error(pageId + ": unreadable: " + e.getMessage());
+                return null;
+            }
+            if (!page.getParentId().equals(parentId))
+                report.error(pageId + ": parent pointer is " + page.getParentId() + ", not " + parentId);
+
+            if (pageId.pgcateg() == BTreePageId.LEAF) {
+                BTreeLeafPage leaf = (BTreeLeafPage) page;
+                checkLeaf(leaf);
+                return new BTreeChecker.SubtreeSummary(leaf, depth);
+            } else if (pageId.pgcateg() == BTreePageId.INTERNAL) {
+                return checkInternal((BTreeInternalPage) page);
+            }
+            report.error(pageId + ": not a tree page");
+            return null;
+        }
+
+        private void checkLeaf(BTreeLeafPage leaf) {
+            int[] keyFields = bt.keyFields();
+            Field prev = lowerBound;
+            Iterator<Tuple> it = leaf.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                Field key = CompositeField.keyOf(t, keyFields);
+                if (prev != null && !prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+                    report.error(pageId + ": key " + key + " out of order after " + prev);
+                prev = key;
+                if (!t.getRecordId().getPageId().equals(pageId))
+                    report.error(pageId + ": tuple points at page " + t.getRecordId().getPageId());
+            }
+            if (upperBound != null && prev != null && !prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound))
+                report.error(pageId + ": key " + prev + " above the separator " + upperBound);
+            if (checkOccupancy && depth > 0 && leaf.getNumTuples() < leaf.getMaxTuples() / 2)
+                report.error(pageId + ": less than half full");
+
+            report.level(depth).add(leaf.getNumTuples(), leaf.getMaxTuples());
+            BTreePageId right = leaf.getRightSiblingId();
+            if (right != null && right.pageNumber() != pageId.pageNumber() + 1)
+                report.leafJumps.incrementAndGet();
+        }
+
+        private BTreeChecker.SubtreeSummary checkInternal(BTreeInternalPage ipage) {
+            ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+            Iterator<BTreeEntry> it = ipage.iterator();
+            while (it.hasNext())
+                entries.add(it.next());
+            if (entries.isEmpty()) {
+                report.error(pageId + ": internal page without entries");
+                return null;
+            }
+
+            Field prev = lowerBound;
+            for (BTreeEntry e : entries) {
+                if (prev != null && !prev.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+                    report.error(pageId + ": key " + e.getKey() + " out of order after " + prev);
+                prev = e.getKey();
+            }
+            if (upperBound != null && !prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound))
+                report.error(pageId + ": key " + prev + " above the separator " + upperBound);
+            if (checkOccupancy && depth > 0) {
+                int max = ipage.getMaxEntries();
+                if (ipage.isCompact() ? ipage.getNumEmptySlots() > max - max / 2
+                        : ipage.getNumEntries() < max / 2)
+                    report.error(pageId + ": less than half full");
+            }
+            report.level(depth).add(ipage.getNumEntries(), ipage.getMaxEntries());
+
+            // one task per child, each bounded by the keys on either side
+            ArrayList<SubtreeTask> children = new ArrayList<SubtreeTask>();
+            Field lower = lowerBound;
+            for (BTreeEntry e : entries) {
+                children.add(new SubtreeTask(bt, report, e.getLeftChild(), lower, e.getKey(),
+                        pageId, checkOccupancy, depth + 1));
+                lower = e.getKey();
+            }
+            children.add(new SubtreeTask(bt, report, entries.get(entries.size() - 1).getRightChild(),
+                    lower, upperBound, pageId, checkOccupancy, depth + 1));
+            invokeAll(children);
+
+            BTreeChecker.SubtreeSummary acc = null;
+            for (SubtreeTask child : children) {
+                BTreeChecker.SubtreeSummary res = child.join();
+                if (res == null)
+                    return null;
+                acc = acc == null ? res : merge(acc, res);
+            }
+            return acc;
+        }
+
+        /**
+         * Like SubtreeSummary.checkAndMerge, but records violations in the report
+         */
+        private BTreeChecker.SubtreeSummary merge(BTreeChecker.SubtreeSummary accleft,
+                                                  BTreeChecker.SubtreeSummary right) {
+            if (accleft.depth != right.depth)
+                report.error(pageId + ": leaves at depths " + accleft.depth + " and " + right.depth);
+            if (accleft.ptrRight == null || !accleft.ptrRight.equals(right.leftmostId))
+                report.error(accleft.rightmostId + ": right sibling is " + accleft.ptrRight
+                        + ", not " + right.leftmostId);
+            if (right.ptrLeft == null || !accleft.rightmostId.equals(right.ptrLeft))
+                report.error(right.leftmostId + ": left sibling is " + right.ptrLeft
+                        + ", not " + accleft.rightmostId);
+
+            BTreeChecker.SubtreeSummary ans = new BTreeChecker.SubtreeSummary();
+            ans.depth = accleft.depth;
+            ans.ptrLeft = accleft.ptrLeft;
+            ans.leftmostId = accleft.leftmostId;
+            ans.ptrRight = right.ptrRight;
+            ans.rightmostId = right.rightmostId;
+            return ans;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -279,8 +281,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
-        DbIterator physicalPlan = lp.physicalPlan(tId,
-                TableStats.getStatsMap(), explain);
+        DbIterator physicalPlan = PlanRewriter.rewrite(tId, lp.physicalPlan(tId,
+                TableStats.getStatsMap(), explain));
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
@@ -356,8 +358,11 @@ public class Parser {
                     throw new simpledb.ParsingException(
                             "Complex expressions not allowed in INSERT statements.");
                 ZConstant zc = (ZConstant) e;
+                // a dictionary-encoded column takes strings, which
+                // BufferPool.insertTuple stores as their codes
+                boolean encoded = Database.getCatalog().getDictionary(tableId, i) != null;
                 if (zc.getType() == ZConstant.NUMBER) {
-                    if (td.getFieldType(i) != Type.INT_TYPE) {
+                    if (td.getFieldType(i) != Type.INT_TYPE || encoded) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
                                 + " is not an integer, expected a string.");
@@ -365,7 +370,7 @@ public class Parser {
                     IntField f = new IntField(new Integer(zc.getValue()));
                     t.setField(i, f);
                 } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    if (td.getFieldType(i) != Type.STRING_TYPE && !encoded) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
                                 + " is a string, expected an integer.");
@@ -390,7 +395,7 @@ public class Parser {
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
-        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId));
+        insertQ.setPhysicalPlan(PlanRewriter.rewrite(tId, new Insert(tId, newTups, tableId)));
         return insertQ;
     }
 
@@ -419,8 +424,8 @@ public class Parser {
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
 
-        DbIterator op = new Delete(tid, lp.physicalPlan(tid,
-                TableStats.getStatsMap(), false));
+        DbIterator op = PlanRewriter.rewrite(tid, new Delete(tid, lp.physicalPlan(tid,
+                TableStats.getStatsMap(), false)));
         sdbq.setPhysicalPlan(op);
 
         return sdbq;
@@ -492,7 +497,92 @@ public class Parser {
         return curtrans;
     }
 
+    // CREATE INDEX name ON table (key[, included...]) [TABLESPACE space] -- not handled by Zql
+    static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(([^)]*)\\)"
+            + "(?:\\s+tablespace\\s+(\\w+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Build a covering index over a heap table, keyed on the first listed
+     * field and including the others. The index is built online: the table
+     * may be modified while the index is built. The index is stored as
+     * name.idx in the tablespace given by a trailing TABLESPACE clause, or
+     * else in the tablespace of the table, or else next to the file of the
+     * table.
+     */
+    public void handleCreateIndexStatement(String s)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (!m.matches())
+            throw new simpledb.ParsingException("Invalid CREATE INDEX statement");
+        String name = m.group(1);
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(m.group(2));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : "
+                    + m.group(2));
+        }
+        DbFile base = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(base instanceof HeapFile))
+            throw new simpledb.ParsingException(
+                    "Indexes can only be created over heap tables");
+
+        String[] cols = m.group(3).split(",");
+        int[] fields = new int[cols.length];
+        TupleDesc td = base.getTupleDesc();
+        for (int i = 0; i < cols.length; i++) {
+            try {
+                fields[i] = td.fieldNameToIndex(cols[i].trim());
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown field : "
+                        + cols[i].trim());
+            }
+        }
+        Tablespace space = Database.getCatalog().getTablespaceOf(tableId);
+        if (m.group(4) != null) {
+            try {
+                space = Database.getCatalog().getTablespace(m.group(4));
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown tablespace : "
+                        + m.group(4));
+            }
+        }
+        File f = space != null ? space.fileFor(name + ".idx")
+                : new File(((HeapFile) base).getFile().getAbsoluteFile()
+                        .getParentFile(), name + ".idx");
+        if (f.exists())
+            throw new simpledb.ParsingException("Index file " + f
+                    + " already exists");
+
+        CoveringIndex index = new CoveringIndex(f, tableId, fields[0],
+                Arrays.copyOfRange(fields, 1, fields.length));
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            new OnlineIndexBuilder(index, name).build(t.getId());
+        } catch (Exception e) {
+            t.abort();
+            throw e;
+        }
+        t.commit();
+        System.out.println("Index " + name + " created.");
+    }
+
     public void processNextStatement(String s) {
+        if (CREATE_INDEX.matcher(s).matches()) {
+            try {
+                handleCreateIndexStatement(s);
+            } catch (simpledb.ParsingException e) {
+                System.out.println("Invalid SQL expression: \n \t"
+                        + e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -581,7 +671,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -674,7 +764,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +772,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * PaxHeapPage is a HeapPage which stores its slots one column after the
+ * other (PAX, Partition Attributes Across) instead of one tuple after the
+ * other. It has the same header and the same number of slots as a HeapPage,
+ * but the values of a field for all the slots are contiguous:
+ * <pre>
+ * | header | field 0 of every slot | field 1 of every slot | ... |
+ * </pre>
+ * A scan which only decodes some of the fields, see
+ * {@link HeapPage#iterator(Predicate, int[])}, therefore only reads the bytes
+ * of those columns, one column after the other.
+ *
+ * @see HeapFile.Layout#PAX
+ */
+public class PaxHeapPage extends HeapPage {
+
+    /**
+     * Create a PaxHeapPage from a set of bytes of data read from disk.
+     * @see HeapPage#HeapPage(HeapPageId, byte[])
+     */
+    public PaxHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+    }
+
+    /**
+     * Create a PaxHeapPage from the bytes of a page of pageSize bytes.
+     * @see HeapPage#HeapPage(HeapPageId, byte[], int)
+     */
+    public PaxHeapPage(HeapPageId id, byte[] data, int pageSize) throws IOException {
+        super(id, data, pageSize);
+    }
+
+    /**
+     * @return the offset of a field of a slot within the page. The fields of
+     *         a column follow each other.
+     */
+    int fieldOffset(int slotId, int field) {
+        return headerSize + numSlots * fieldOffsets[field]
+                + slotId * td.getFieldType(field).getLen();
+    }
+
+    public HeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new PaxHeapPage(pid, oldDataRef, pageSize);
+        } catch (IOException e) {
+            //should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+}
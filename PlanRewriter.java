@@ -0,0 +1,533 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * PlanRewriter applies rule-based rewrites to the physical plan produced by
+ * LogicalPlan.physicalPlan. Each rule looks for a pattern of operators in the
+ * plan and replaces a generic access method with a cheaper one when the
+ * catalog has a suitable index.
+ */
+public class PlanRewriter {
+
+    /**
+     * Rewrite a physical plan.
+     *
+     * @param tid
+     *            the transaction the plan runs in
+     * @param plan
+     *            the root of the physical plan
+     * @return the root of the rewritten plan
+     */
+    public static DbIterator rewrite(TransactionId tid, DbIterator plan) {
+        if (plan == null)
+            return null;
+        StringDictionary[] dicts = useDictionaryCodes(plan);
+        useCoveringIndex(tid, plan);
+        plan = useBTreeIndex(tid, plan);
+        useHashIndex(tid, plan);
+        usePageFilters(plan);
+        useColumnSubset(plan);
+        return decodeDictionaryCodes(plan, dicts);
+    }
+
+    /**
+     * Walk down a single-table plan of the form
+     * <code>[Project] (Filter | OrderBy)* SeqScan</code>.
+     *
+     * @param plan
+     *            the root of the plan
+     * @param chain
+     *            filled with the operators above the scan, top-down
+     * @return the scan at the bottom of the plan, or null if the plan does not
+     *         have that shape
+     */
+    static SeqScan singleTableScan(DbIterator plan, ArrayList<Operator> chain) {
+        DbIterator cur = plan;
+        while (cur instanceof Filter || cur instanceof OrderBy
+                || (cur instanceof Project && cur == plan)) {
+            chain.add((Operator) cur);
+            cur = ((Operator) cur).getChildren()[0];
+        }
+        if (!(cur instanceof SeqScan) || chain.isEmpty())
+            return null;
+        return (SeqScan) cur;
+    }
+
+    /**
+     * Run a plan over dictionary-encoded columns on their int codes, wherever
+     * the columns are scanned: a Filter comparing an encoded column with a
+     * string is turned into the equivalent predicate on codes, which the
+     * other rules may then push into an index. Codes only go through the
+     * operators which treat them as they would the strings; an operator
+     * which needs the strings gets them from a DictionaryDecode put under it:
+     * <ul>
+     * <li>a Join of an encoded column with a column which is not encoded
+     * with the same dictionary decodes both join columns;</li>
+     * <li>an Aggregate other than COUNT, MIN or MAX of an encoded column
+     * decodes it;</li>
+     * <li>while a dictionary is being rebalanced, its retired codes do not
+     * compare like their strings, so an OrderBy, a Join, a grouping, a MIN or
+     * a MAX on its columns gets the new codes from a DictionaryRecode put
+     * under it;</li>
+     * <li>a Delete keeps the codes of the tuples it deletes;</li>
+     * <li>an Insert, or any other operator, decodes all the fields of its
+     * children; BufferPool encodes the strings an Insert inserts again for
+     * the table they go to.</li>
+     * </ul>
+     * The root of the plan is not replaced.
+     *
+     * @return the dictionary of each field the plan returns, null for the
+     *         fields which do not hold codes
+     */
+    private static StringDictionary[] useDictionaryCodes(DbIterator plan) {
+        if (!(plan instanceof Operator))
+            return scanDictionaries(plan);
+        Operator op = (Operator) plan;
+        DbIterator[] children = op.getChildren();
+        StringDictionary[][] in = new StringDictionary[children.length][];
+        for (int i = 0; i < children.length; i++)
+            in[i] = useDictionaryCodes(children[i]);
+
+        StringDictionary[] out;
+        if (op instanceof Filter) {
+            Predicate p = ((Filter) op).getPredicate();
+            StringDictionary dict = in[0][p.getField()];
+            if (dict != null && p.getOperand() instanceof StringField
+                    && !(p instanceof StringDictionary.StringPredicate))
+                ((Filter) op).setPredicate(dict.translate(p));
+            out = in[0];
+        } else if (op instanceof OrderBy) {
+            int field = ((OrderBy) op).getOrderByField();
+            children[0] = recode(children[0], in[0], field);
+            out = in[0];
+        } else if (op instanceof Project) {
+            ArrayList<Integer> ids = ((Project) op).getOutFieldIds();
+            out = new StringDictionary[ids.size()];
+            for (int i = 0; i < out.length; i++)
+                out[i] = in[0][ids.get(i)];
+        } else if (op instanceof Join || op instanceof HashEquiJoin) {
+            JoinPredicate p = op instanceof Join ? ((Join) op).getJoinPredicate()
+                    : ((HashEquiJoin) op).getJoinPredicate();
+            if (in[0][p.getField1()] != in[1][p.getField2()]) {
+                children[0] = decode(children[0], in[0], p.getField1());
+                children[1] = decode(children[1], in[1], p.getField2());
+            } else {
+                children[0] = recode(children[0], in[0], p.getField1());
+                children[1] = recode(children[1], in[1], p.getField2());
+            }
+            out = new StringDictionary[in[0].length + in[1].length];
+            System.arraycopy(in[0], 0, out, 0, in[0].length);
+            System.arraycopy(in[1], 0, out, in[0].length, in[1].length);
+        } else if (op instanceof Aggregate) {
+            Aggregate agg = (Aggregate) op;
+            Aggregator.Op aop = agg.aggregateOp();
+            // codes compare like their strings, so the smallest code is that
+            // of the smallest string
+            if (agg.groupField() != Aggregator.NO_GROUPING)
+                children[0] = recode(children[0], in[0], agg.groupField());
+            boolean codes = aop == Aggregator.Op.MIN || aop == Aggregator.Op.MAX;
+            if (codes)
+                children[0] = recode(children[0], in[0], agg.aggregateField());
+            else if (aop != Aggregator.Op.COUNT)
+                children[0] = decode(children[0], in[0], agg.aggregateField());
+            StringDictionary aggDict = codes ? in[0][agg.aggregateField()] : null;
+            if (agg.groupField() == Aggregator.NO_GROUPING)
+                out = new StringDictionary[] { aggDict };
+            else
+                out = new StringDictionary[] { in[0][agg.groupField()], aggDict };
+        } else if (op instanceof DictionaryDecode) {
+            StringDictionary[] decoded = ((DictionaryDecode) op).getDictionaries();
+            out = in[0];
+            for (int i = 0; i < out.length; i++) {
+                if (decoded[i] != null)
+                    out[i] = null;
+            }
+        } else if (op instanceof DictionaryRecode) {
+            out = in[0];
+        } else if (op instanceof Delete) {
+            out = new StringDictionary[op.getTupleDesc().numFields()];
+        } else {
+            for (int i = 0; i < children.length; i++)
+                children[i] = decode(children[i], in[i], -1);
+            out = new StringDictionary[op.getTupleDesc().numFields()];
+        }
+        // refresh the operator, whose children may now return strings
+        op.setChildren(children);
+        return out;
+    }
+
+    /**
+     * Put a DictionaryRecode under an operator for a field whose dictionary
+     * is being rebalanced; the field keeps its dictionary.
+     *
+     * @return the new child of the operator, plan itself if the field's codes
+     *         already compare like their strings
+     */
+    private static DbIterator recode(DbIterator plan, StringDictionary[] dicts, int field) {
+        if (dicts[field] == null || !dicts[field].isRebalancing())
+            return plan;
+        StringDictionary[] recoded = new StringDictionary[dicts.length];
+        recoded[field] = dicts[field];
+        return new DictionaryRecode(plan, recoded);
+    }
+
+    /**
+     * @return the dictionary of each field of the table a scan reads, null for
+     *         the fields which are not encoded and for the fields of any
+     *         other iterator
+     */
+    private static StringDictionary[] scanDictionaries(DbIterator scan) {
+        int tableid;
+        if (scan instanceof SeqScan)
+            tableid = ((SeqScan) scan).getTableId();
+        else if (scan instanceof BTreeScan)
+            tableid = ((BTreeScan) scan).getTableId();
+        else if (scan instanceof HashIndexScan)
+            tableid = ((HashIndexScan) scan).getTableId();
+        else if (scan instanceof IndexOnlyScan)
+            tableid = ((IndexOnlyScan) scan).getIndex().getBaseTableId();
+        else
+            return new StringDictionary[scan.getTupleDesc().numFields()];
+        StringDictionary[] dicts = Database.getCatalog().getDictionaries(tableid);
+        if (dicts == null)
+            return new StringDictionary[scan.getTupleDesc().numFields()];
+        return dicts.clone();
+    }
+
+    /**
+     * Put a plan under a DictionaryDecode of one of its fields, or of all its
+     * encoded fields, and clear the dictionaries of the decoded fields.
+     *
+     * @param dicts
+     *            the dictionary of each field of the plan
+     * @param field
+     *            the field to decode, or -1 for all
+     * @return the DictionaryDecode, or the plan itself if none of the fields
+     *         is encoded
+     */
+    private static DbIterator decode(DbIterator plan, StringDictionary[] dicts, int field) {
+        StringDictionary[] decoded = new StringDictionary[dicts.length];
+        boolean any = false;
+        for (int i = 0; i < dicts.length; i++) {
+            if (dicts[i] != null && (field < 0 || i == field)) {
+                decoded[i] = dicts[i];
+                dicts[i] = null;
+                any = true;
+            }
+        }
+        return any ? new DictionaryDecode(plan, decoded) : plan;
+    }
+
+    /**
+     * Put a plan which returns dictionary-encoded columns under a
+     * DictionaryDecode, which turns their codes back into strings.
+     *
+     * @param dicts
+     *            the dictionary of each field the plan returns, as found by
+     *            useDictionaryCodes
+     * @return the root of the rewritten plan
+     */
+    private static DbIterator decodeDictionaryCodes(DbIterator plan, StringDictionary[] dicts) {
+        for (StringDictionary d : dicts) {
+            if (d != null)
+                return new DictionaryDecode(plan, dicts);
+        }
+        return plan;
+    }
+
+    /**
+     * Replace the SeqScan of a single-table plan with an IndexOnlyScan if
+     * every field the plan reads from the table is stored in one of the
+     * table's covering indexes. A Filter on the key of the chosen index is
+     * turned into an index predicate; the Filter itself is kept.
+     */
+    private static void useCoveringIndex(TransactionId tid, DbIterator plan) {
+        ArrayList<Operator> chain = new ArrayList<Operator>();
+        SeqScan scan = singleTableScan(plan, chain);
+        if (scan == null)
+            return;
+        List<CoveringIndex> indexes = Database.getCatalog().getIndexes(scan.getTableId());
+        if (indexes.isEmpty())
+            return;
+
+        // collect the fields read from the scan and the filters on them
+        Set<Integer> fields = readFields(scan, chain);
+        ArrayList<Predicate> preds = filters(chain);
+
+        // prefer an index whose key is filtered on, then the narrowest index
+        CoveringIndex best = null;
+        IndexPredicate bestPred = null;
+        for (CoveringIndex idx : indexes) {
+            if (!idx.covers(fields))
+                continue;
+            IndexPredicate ipred = keyPredicate(new int[] { idx.getKeyField() }, preds);
+            if (best == null || (ipred != null && bestPred == null)
+                    || ((ipred != null) == (bestPred != null) && idx.numFields() < best.numFields())) {
+                best = idx;
+                bestPred = ipred;
+            }
+        }
+        if (best == null)
+            return;
+
+        IndexOnlyScan ios = new IndexOnlyScan(tid, best, scan.getAlias(), bestPred, fields);
+        chain.get(chain.size() - 1).setChildren(new DbIterator[] { ios });
+    }
+
+    /**
+     * Replace the SeqScan of a single-table plan over a BTreeFile with a
+     * BTreeScan if the plan filters on a prefix of the key of the tree, or
+     * sorts on the leading key field. The Filters are kept; an OrderBy on the
+     * leading key field is removed, and a descending order is produced by
+     * scanning the leaves backwards.
+     *
+     * @return the root of the rewritten plan
+     */
+    private static DbIterator useBTreeIndex(TransactionId tid, DbIterator plan) {
+        ArrayList<Operator> chain = new ArrayList<Operator>();
+        SeqScan scan = singleTableScan(plan, chain);
+        if (scan == null)
+            return plan;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof BTreeFile))
+            return plan;
+        BTreeFile bf = (BTreeFile) file;
+        IndexPredicate ipred = keyPredicate(bf.keyFields(), filters(chain));
+
+        // an OrderBy is redundant if it is the only one and sorts on the key
+        OrderBy order = null;
+        int orders = 0;
+        for (Operator op : chain) {
+            if (op instanceof OrderBy) {
+                order = (OrderBy) op;
+                orders++;
+            }
+        }
+        if (orders != 1 || order.getOrderByField() != bf.keyField())
+            order = null;
+        if (ipred == null && order == null)
+            return plan;
+
+        boolean descending = order != null && !order.isASC();
+        BTreeScan bs = new BTreeScan(tid, scan.getTableId(), scan.getAlias(), ipred, descending);
+        chain.get(chain.size() - 1).setChildren(new DbIterator[] { bs });
+
+        if (order != null) {
+            DbIterator child = order.getChildren()[0];
+            int pos = chain.indexOf(order);
+            if (pos == 0)
+                return child;
+            chain.get(pos - 1).setChildren(new DbIterator[] { child });
+        }
+        return plan;
+    }
+
+    /**
+     * Replace the SeqScan of a single-table plan over a HashIndexFile with a
+     * HashIndexScan if the plan filters on the key of the index with an
+     * equality predicate. The Filters are kept.
+     */
+    private static void useHashIndex(TransactionId tid, DbIterator plan) {
+        ArrayList<Operator> chain = new ArrayList<Operator>();
+        SeqScan scan = singleTableScan(plan, chain);
+        if (scan == null)
+            return;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof HashIndexFile))
+            return;
+        int key = ((HashIndexFile) file).keyField();
+        for (Predicate p : filters(chain)) {
+            if (p.getField() == key && p.getOp() == Predicate.Op.EQUALS) {
+                IndexPredicate ipred = new IndexPredicate(p.getOp(), p.getOperand());
+                HashIndexScan hs = new HashIndexScan(tid, scan.getTableId(), scan.getAlias(), ipred);
+                chain.get(chain.size() - 1).setChildren(new DbIterator[] { hs });
+                return;
+            }
+        }
+    }
+
+    /**
+     * Push an equality Filter on the page filter field of a HeapFile into its
+     * SeqScan, so the scan skips the page ranges which cannot hold the value.
+     * Failing that, a HeapFile with zone maps gets its first equality or range
+     * Filter, so the scan skips the pages whose zones rule it out.
+     * For a ColumnarFile, the first Filter is pushed down, so the scan skips
+     * the blocks whose range of values cannot satisfy it. The Filter is kept.
+     */
+    private static void usePageFilters(DbIterator plan) {
+        ArrayList<Operator> chain = new ArrayList<Operator>();
+        SeqScan scan = singleTableScan(plan, chain);
+        if (scan == null)
+            return;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (file instanceof ColumnarFile) {
+            ArrayList<Predicate> preds = filters(chain);
+            if (!preds.isEmpty())
+                scan.setPredicate(preds.get(0));
+            return;
+        }
+        if (!(file instanceof HeapFile))
+            return;
+        HeapFile hf = (HeapFile) file;
+        if (hf.getPageFilters() != null) {
+            int field = hf.getPageFilterField();
+            for (Predicate p : filters(chain)) {
+                if (p.getField() == field && p.getOp() == Predicate.Op.EQUALS) {
+                    scan.setPredicate(p);
+                    return;
+                }
+            }
+        }
+        if (hf.getZoneMaps() != null) {
+            for (Predicate p : filters(chain)) {
+                if (PageZoneMaps.canSkip(p.getOp())) {
+                    scan.setPredicate(p);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the SeqScan of a single-table plan over a HeapFile or ColumnarFile
+     * set only the fields the plan reads, so its pages decode only those
+     * fields, and PAX pages and ColumnarFiles only read their columns. Besides the shapes matched by
+     * singleTableScan, the plan may be an Aggregate over
+     * <code>(Filter | OrderBy)* SeqScan</code>, under an optional
+     * <code>[Project] [OrderBy]</code>.
+     */
+    private static void useColumnSubset(DbIterator plan) {
+        ArrayList<Operator> chain = new ArrayList<Operator>();
+        SeqScan scan = singleTableScan(plan, chain);
+        Set<Integer> fields;
+        if (scan != null) {
+            fields = readFields(scan, chain);
+        } else {
+            // the fields above an Aggregate are fields of its output
+            DbIterator cur = plan;
+            if (cur instanceof Project)
+                cur = ((Project) cur).getChildren()[0];
+            if (cur instanceof OrderBy)
+                cur = ((OrderBy) cur).getChildren()[0];
+            if (!(cur instanceof Aggregate))
+                return;
+            Aggregate agg = (Aggregate) cur;
+            cur = agg.getChildren()[0];
+            while (cur instanceof Filter || cur instanceof OrderBy) {
+                chain.add((Operator) cur);
+                cur = ((Operator) cur).getChildren()[0];
+            }
+            if (!(cur instanceof SeqScan))
+                return;
+            scan = (SeqScan) cur;
+            fields = readFields(null, chain);
+            fields.add(agg.aggregateField());
+            if (agg.groupField() != Aggregator.NO_GROUPING)
+                fields.add(agg.groupField());
+        }
+        if (fields.size() < scan.getTupleDesc().numFields())
+            scan.setColumns(fields);
+    }
+
+    /**
+     * Collect the fields of the table a chain of operators above its scan
+     * reads.
+     *
+     * @param scan
+     *            the scan below the chain, whose fields are all read if the
+     *            chain has no Project; or null if the chain's output is not
+     *            read as a whole
+     * @param chain
+     *            Project, Filter and OrderBy operators, top-down
+     */
+    private static Set<Integer> readFields(SeqScan scan, List<Operator> chain) {
+        HashSet<Integer> fields = new HashSet<Integer>();
+        boolean projected = false;
+        for (Operator op : chain) {
+            if (op instanceof Project) {
+                fields.addAll(((Project) op).getOutFieldIds());
+                projected = true;
+            } else if (op instanceof Filter) {
+                fields.add(((Filter) op).getPredicate().getField());
+            } else if (op instanceof OrderBy) {
+                fields.add(((OrderBy) op).getOrderByField());
+            }
+        }
+        if (!projected && scan != null) {
+            for (int i = 0; i < scan.getTupleDesc().numFields(); i++)
+                fields.add(i);
+        }
+        return fields;
+    }
+
+    /**
+     * @return the predicates of the Filters in the given operators which
+     *         compare the stored values
+     */
+    private static ArrayList<Predicate> filters(List<Operator> chain) {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        for (Operator op : chain) {
+            // a predicate on the strings of codes cannot be pushed into an
+            // index or a scan, which only hold the codes
+            if (op instanceof Filter
+                    && !(((Filter) op).getPredicate() instanceof StringDictionary.StringPredicate))
+                preds.add(((Filter) op).getPredicate());
+        }
+        return preds;
+    }
+
+    /**
+     * Build an index predicate on a (possibly composite) B+ tree key from a
+     * conjunction of predicates. Equality predicates are matched against the
+     * key fields in order; the first key field without one may contribute a
+     * range predicate, e.g. <code>tenant = 3 AND ts > 100</code> on a key
+     * <code>(tenant, ts)</code> becomes <code>(3, 100)</code> with GREATER_THAN.
+     *
+     * @param keyFields
+     *            the fields the index is keyed on, in key order
+     * @param preds
+     *            predicates which all hold for the returned tuples
+     * @return the index predicate, or null if no predicate restricts the
+     *         leading key field
+     */
+    static IndexPredicate keyPredicate(int[] keyFields, List<Predicate> preds) {
+        ArrayList<Field> values = new ArrayList<Field>();
+        Predicate.Op op = Predicate.Op.EQUALS;
+        for (int k : keyFields) {
+            Predicate eq = null;
+            Predicate range = null;
+            for (Predicate p : preds) {
+                if (p.getField() != k)
+                    continue;
+                if (p.getOp() == Predicate.Op.EQUALS && eq == null)
+                    eq = p;
+                else if (isIndexable(p.getOp()) && range == null)
+                    range = p;
+            }
+            if (eq != null) {
+                values.add(eq.getOperand());
+                continue;
+            }
+            if (range != null) {
+                values.add(range.getOperand());
+                op = range.getOp();
+            }
+            break;
+        }
+        if (values.isEmpty())
+            return null;
+        Field value = values.size() == 1 ? values.get(0) : new CompositeField(values);
+        return new IndexPredicate(op, value);
+    }
+
+    /**
+     * @return true if a B+ tree can answer the given operator with a range scan
+     */
+    static boolean isIndexable(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ
+                || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+}
@@ -45,6 +45,13 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * @return the ids of the fields of the child's tupleDesc that are projected out
+     */
+    public ArrayList<Integer> getOutFieldIds() {
+        return outFieldIds;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -87,10 +94,16 @@ public class Project extends Operator {
 
     @Override
     public void setChildren(DbIterator[] children) {
-	if (this.child!=children[0])
-	{
-	    this.child = children[0];
+	this.child = children[0];
+	// the projected fields take the types of the child's fields, which may
+	// have changed below it
+	Type[] types = new Type[outFieldIds.size()];
+	String[] names = new String[outFieldIds.size()];
+	for (int i = 0; i < types.length; i++) {
+	    types[i] = child.getTupleDesc().getFieldType(outFieldIds.get(i));
+	    names[i] = td.getFieldName(i);
 	}
+	td = new TupleDesc(types, names);
     }
     
 }
@@ -14,6 +14,9 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String alias;
     private DbFileIterator iter;
+    // pushed down into a HeapFile or ColumnarFile scan, if set
+    private Predicate pred;
+    private int[] columns;
 
     private static final long serialVersionUID = 1L;
 
@@ -51,6 +54,64 @@ public class SeqScan implements DbIterator {
         return name;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * Only return the tuples satisfying a predicate, letting a HeapFile skip the
+     * pages which its page filters or zone maps show cannot hold any, and a
+     * ColumnarFile the blocks whose smallest and largest values show the same.
+     * Has no effect on other files.
+     *
+     * @param pred
+     *            the predicate the returned tuples must satisfy
+     * @return true if the scan now applies the predicate
+     */
+    public boolean setPredicate(Predicate pred) {
+        DbFile dbF = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbF instanceof HeapFile) && !(dbF instanceof ColumnarFile))
+            return false;
+        this.pred = pred;
+        this.iter = pushedDownIterator(dbF);
+        return true;
+    }
+
+    /**
+     * Only set some of the fields of the returned tuples, leaving the others
+     * possibly null, so that a HeapFile decodes only those fields, and a PAX
+     * HeapFile or a ColumnarFile only reads their columns. Has no effect on
+     * other files.
+     *
+     * @param fields
+     *            the fields the operators above this scan read
+     * @return true if the scan now only sets those fields
+     */
+    public boolean setColumns(Collection<Integer> fields) {
+        DbFile dbF = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbF instanceof HeapFile) && !(dbF instanceof ColumnarFile))
+            return false;
+        this.columns = new int[fields.size()];
+        int i = 0;
+        for (int f : fields)
+            columns[i++] = f;
+        this.iter = pushedDownIterator(dbF);
+        return true;
+    }
+
+    /**
+     * @return an iterator over the file which applies the pushed down
+     *         predicate and columns
+     */
+    private DbFileIterator pushedDownIterator(DbFile dbF) {
+        if (dbF instanceof ColumnarFile)
+            return ((ColumnarFile) dbF).iterator(tid, pred, columns);
+        return ((HeapFile) dbF).iterator(tid, pred, columns);
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
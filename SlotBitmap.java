@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SlotBitmap tracks which slots of a page are in use, one bit per slot, in
+ * 64-bit words. The bits are read from and written to the page as bytes,
+ * with slot i in bit i % 8 of byte i / 8, the format shared by the headers
+ * of HeapPage, BTreeLeafPage and BTreeHeaderPage. The number of used slots
+ * is kept up to date so that counting free slots does not scan the bitmap,
+ * and searches for a free or used slot skip 64 slots at a time.
+ */
+public class SlotBitmap {
+
+	private final long[] words;
+	private final int numSlots;
+	private int numUsed;
+
+	/**
+	 * Create a bitmap with every slot free.
+	 * @param numSlots - the number of slots
+	 */
+	public SlotBitmap(int numSlots) {
+		this.numSlots = numSlots;
+		this.words = new long[(numSlots + 63) >>> 6];
+	}
+
+	/**
+	 * Create a bitmap from the header bytes of a page. Bits past the last
+	 * slot are ignored.
+	 * @param data - the bytes of the page
+	 * @param offset - the offset of the header in data
+	 * @param numSlots - the number of slots
+	 */
+	public SlotBitmap(byte[] data, int offset, int numSlots) {
+		this(numSlots);
+		int len = getNumBytes(numSlots);
+		for(int i = 0; i < len; i++) {
+			words[i >>> 3] |= (data[offset + i] & 0xFFL) << ((i & 7) << 3);
+		}
+		if((numSlots & 63) != 0) {
+			words[words.length - 1] &= (1L << numSlots) - 1;
+		}
+		for(long w : words) {
+			numUsed += Long.bitCount(w);
+		}
+	}
+
+	/**
+	 * @return a copy of this bitmap, which does not change with it
+	 */
+	public SlotBitmap copy() {
+		SlotBitmap b = new SlotBitmap(numSlots);
+		System.arraycopy(words, 0, b.words, 0, words.length);
+		b.numUsed = numUsed;
+		return b;
+	}
+
+	/**
+	 * @return the number of bytes the header of a page with numSlots slots takes
+	 */
+	public static int getNumBytes(int numSlots) {
+		return (numSlots + 7) >>> 3;
+	}
+
+	/**
+	 * Write the bitmap into the header of a page, as getNumBytes() bytes
+	 * @param data - the bytes of the page
+	 * @param offset - the offset of the header in data
+	 */
+	public void write(byte[] data, int offset) {
+		int len = getNumBytes(numSlots);
+		for(int i = 0; i < len; i++) {
+			data[offset + i] = (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+		}
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * @return the number of used slots
+	 */
+	public int getNumUsed() {
+		return numUsed;
+	}
+
+	/**
+	 * @return the number of free slots
+	 */
+	public int getNumFree() {
+		return numSlots - numUsed;
+	}
+
+	public boolean isUsed(int i) {
+		if(i < 0 || i >= numSlots) {
+			throw new IllegalArgumentException("Slot doesn't exist");
+		}
+		return (words[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * Mark a slot used or free
+	 * @return true if the slot changed
+	 */
+	public boolean setUsed(int i, boolean value) {
+		if(isUsed(i) == value) {
+			return false;
+		}
+		words[i >>> 6] ^= 1L << i;
+		numUsed += value ? 1 : -1;
+		return true;
+	}
+
+	/**
+	 * Mark every slot used
+	 */
+	public void setAllUsed() {
+		Arrays.fill(words, -1L);
+		if((numSlots & 63) != 0) {
+			words[words.length - 1] = (1L << numSlots) - 1;
+		}
+		numUsed = numSlots;
+	}
+
+	/**
+	 * @param from - the slot to start from
+	 * @return the first free slot at or after from, or -1 if there is none
+	 */
+	public int nextFree(int from) {
+		if(from >= numSlots || numUsed == numSlots) {
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = ~words[w] & (-1L << from);
+		while(word == 0) {
+			if(++w == words.length) {
+				return -1;
+			}
+			word = ~words[w];
+		}
+		int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+		return slot < numSlots ? slot : -1;
+	}
+
+	/**
+	 * @param from - the slot to start from
+	 * @return the first used slot at or after from, or -1 if there is none
+	 */
+	public int nextUsed(int from) {
+		if(from >= numSlots || numUsed == 0) {
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		while(word == 0) {
+			if(++w == words.length) {
+				return -1;
+			}
+			word = words[w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * @param from - the slot to start from, going down
+	 * @return the last used slot at or before from, or -1 if there is none
+	 */
+	public int prevUsed(int from) {
+		if(from < 0 || numUsed == 0) {
+			return -1;
+		}
+		from = Math.min(from, numSlots - 1);
+		int w = from >>> 6;
+		long word = words[w] & (-1L >>> (63 - (from & 63)));
+		while(word == 0) {
+			if(--w < 0) {
+				return -1;
+			}
+			word = words[w];
+		}
+		return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+	}
+}
@@ -0,0 +1,334 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is a HeapPage which stores variable-length records behind a
+ * slot directory, instead of fixed-size slots of TupleDesc.getSize() bytes.
+ * Strings take a 2-byte length and their characters rather than the full
+ * Type.STRING_LEN, so tables of mostly short strings fit many more tuples on
+ * a page.
+ * <p>
+ * The layout of a page is:
+ * <pre>
+ * | slot count (2) | start of records (2) | slot directory | free space | records |
+ * </pre>
+ * Each entry of the slot directory holds the offset and length of a record;
+ * an empty slot has length 0. Records are added at the end of the free space,
+ * growing towards the directory. Deleting a record leaves a hole, which is
+ * reclaimed by compact when an insert does not fit into the free space. Slot
+ * numbers never change, so record ids stay valid across compactions.
+ *
+ * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    private static final int HEADER_SIZE = 4; // slot count, start of records
+    private static final int SLOT_SIZE = 4; // record offset, record length
+
+    private ByteBuffer buf; // shared with beforeImage until first modified
+    private final ArrayList<Tuple> cache; // decoded tuples, by slot
+    private int usedBytes; // bytes taken by live records
+    private byte[] beforeImage;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk. A
+     * page of zeroes is an empty page.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, BufferPool.getPageSize());
+    }
+
+    /**
+     * Create a SlottedHeapPage from the bytes of a page of pageSize bytes.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data, int pageSize) throws IOException {
+        super(id, pageSize);
+        if (pageSize > 0xFFFF)
+            throw new IOException("slotted pages must be smaller than 64KB");
+        if (data.length != pageSize)
+            data = Arrays.copyOf(data, pageSize);
+        this.buf = ByteBuffer.wrap(data);
+        this.cache = new ArrayList<Tuple>();
+        for (int i = 0; i < getSlotCount(); i++) {
+            cache.add(null);
+            usedBytes += getRecordLength(i);
+        }
+        this.beforeImage = data;
+    }
+
+    /**
+     * Give the page its own copy of its bytes if they are still shared with
+     * the before-image, before modifying them.
+     */
+    private void copyOnWrite() {
+        synchronized (this) {
+            if (buf.array() == beforeImage)
+                buf = ByteBuffer.wrap(beforeImage.clone());
+        }
+    }
+
+    private int getSlotCount() {
+        return buf.getShort(0) & 0xFFFF;
+    }
+
+    private void setSlotCount(int n) {
+        buf.putShort(0, (short) n);
+    }
+
+    /** @return the offset of the lowest record, or the page size if there is none */
+    private int getRecordStart() {
+        int start = buf.getShort(2) & 0xFFFF;
+        return start == 0 ? pageSize : start;
+    }
+
+    private void setRecordStart(int start) {
+        buf.putShort(2, (short) start);
+    }
+
+    private int getRecordOffset(int slot) {
+        return buf.getShort(HEADER_SIZE + slot * SLOT_SIZE) & 0xFFFF;
+    }
+
+    private int getRecordLength(int slot) {
+        return buf.getShort(HEADER_SIZE + slot * SLOT_SIZE + 2) & 0xFFFF;
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        buf.putShort(HEADER_SIZE + slot * SLOT_SIZE, (short) offset);
+        buf.putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, (short) length);
+    }
+
+    /** @return the number of bytes between the slot directory and the records */
+    private int getContiguousFreeBytes() {
+        return getRecordStart() - HEADER_SIZE - getSlotCount() * SLOT_SIZE;
+    }
+
+    /** @return the number of free bytes, counting the holes left by deletes */
+    private int getFreeBytes() {
+        return pageSize - HEADER_SIZE - getSlotCount() * SLOT_SIZE - usedBytes;
+    }
+
+    private int firstEmptySlot() {
+        for (int i = 0; i < getSlotCount(); i++) {
+            if (getRecordLength(i) == 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bytes the specified tuple takes on a slotted page
+     */
+    public static int getRecordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                size += 2 + ((StringField) t.getField(i)).getValue().getBytes().length;
+            else
+                size += td.getFieldType(i).getLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes taken by the largest tuple of the page's TupleDesc
+     */
+    private int getMaxRecordSize() {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            Type t = td.getFieldType(i);
+            size += (t == Type.STRING_TYPE) ? 2 + Type.STRING_LEN : t.getLen();
+        }
+        return size;
+    }
+
+    /**
+     * Move the records together at the end of the page, so that all the free
+     * space of the page is between the slot directory and the records. Slot
+     * numbers are not changed.
+     */
+    public void compact() {
+        copyOnWrite();
+        byte[] page = buf.array();
+        byte[] records = new byte[usedBytes];
+        int end = pageSize;
+        int start = end;
+        for (int i = 0; i < getSlotCount(); i++) {
+            int len = getRecordLength(i);
+            if (len == 0)
+                continue;
+            start -= len;
+            System.arraycopy(page, getRecordOffset(i), records, start - (end - usedBytes), len);
+            setSlot(i, start, len);
+        }
+        System.arraycopy(records, 0, page, end - usedBytes, usedBytes);
+        Arrays.fill(page, HEADER_SIZE + getSlotCount() * SLOT_SIZE, end - usedBytes, (byte) 0);
+        setRecordStart(start == end ? 0 : start);
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        int need = getRecordSize(t) + (firstEmptySlot() == -1 ? SLOT_SIZE : 0);
+        return getFreeBytes() >= need;
+    }
+
+    /**
+     * Adds the specified tuple to the page, compacting the page first if the
+     * tuple only fits into the space of deleted records.
+     * @throws DbException if the tuple does not fit, or tupledesc is a mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("Not equal");
+        int len = getRecordSize(t);
+        int slot = firstEmptySlot();
+        int need = len + (slot == -1 ? SLOT_SIZE : 0);
+        if (getFreeBytes() < need)
+            throw new DbException("The page is full!");
+        copyOnWrite();
+        if (getContiguousFreeBytes() < need)
+            compact();
+
+        if (slot == -1) {
+            slot = getSlotCount();
+            setSlotCount(slot + 1);
+            cache.add(null);
+        }
+        int offset = getRecordStart() - len;
+        buf.position(offset);
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                byte[] s = ((StringField) f).getValue().getBytes();
+                buf.putShort((short) s.length);
+                buf.put(s);
+            } else {
+                buf.putInt(((IntField) f).getValue());
+            }
+        }
+        setSlot(slot, offset, len);
+        setRecordStart(offset);
+        usedBytes += len;
+
+        t.setRecordId(new RecordId(pid, slot));
+        cache.set(slot, t);
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its record becomes a hole,
+     * reclaimed by the next compaction.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid))
+            throw new DbException("The tuple isn't on this page!");
+        int slot = rid.tupleno();
+        if (!isSlotUsed(slot))
+            throw new DbException("The tuple is already empty!");
+        copyOnWrite();
+
+        usedBytes -= getRecordLength(slot);
+        setSlot(slot, 0, 0);
+        cache.set(slot, null);
+        // trailing empty slots are not referenced by any record id
+        int n = getSlotCount();
+        while (n > 0 && getRecordLength(n - 1) == 0) {
+            n--;
+            cache.remove(n);
+        }
+        if (n == 0)
+            Arrays.fill(buf.array(), (byte) 0);
+        else
+            setSlotCount(n);
+    }
+
+    /**
+     * Returns the number of tuples of the largest size which still fit on
+     * this page. Smaller tuples may fit when this is 0; use hasRoomFor.
+     */
+    public int getNumEmptySlots() {
+        return Math.max(0, getFreeBytes() / (getMaxRecordSize() + SLOT_SIZE));
+    }
+
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < getSlotCount() && getRecordLength(i) > 0;
+    }
+
+    /**
+     * Decode the record of a slot, or return the tuple decoded before
+     */
+    private Tuple getTuple(int slot) {
+        Tuple t = cache.get(slot);
+        if (t != null)
+            return t;
+        t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        ByteBuffer rec = buf.duplicate();
+        rec.position(getRecordOffset(slot));
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                byte[] bs = new byte[rec.getShort() & 0xFFFF];
+                rec.get(bs);
+                t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+            } else {
+                t.setField(i, new IntField(rec.getInt()));
+            }
+        }
+        cache.set(slot, t);
+        return t;
+    }
+
+    public Iterator<Tuple> iterator() {
+        ArrayList<Tuple> allTuples = new ArrayList<Tuple>();
+        for (int i = 0; i < getSlotCount(); i++) {
+            if (getRecordLength(i) > 0)
+                allTuples.add(getTuple(i));
+        }
+        return allTuples.iterator();
+    }
+
+    /**
+     * Records are decoded whole, so all the fields are set.
+     */
+    public Iterator<Tuple> iterator(Predicate pred, int[] fields) {
+        return iterator(pred);
+    }
+
+    public Iterator<Tuple> iterator(Predicate pred) {
+        if (pred == null)
+            return iterator();
+        ArrayList<Tuple> matches = new ArrayList<Tuple>();
+        for (int i = 0; i < getSlotCount(); i++) {
+            if (getRecordLength(i) > 0 && pred.filter(getTuple(i)))
+                matches.add(getTuple(i));
+        }
+        return matches.iterator();
+    }
+
+    public byte[] getPageData() {
+        return buf.array().clone();
+    }
+
+    public HeapPage getBeforeImage() {
+        try {
+            synchronized (this) {
+                return new SlottedHeapPage(pid, beforeImage, pageSize);
+            }
+        } catch (IOException e) {
+            //should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (this) {
+            // shared until the next modification copies the page
+            beforeImage = buf.array();
+        }
+    }
+}
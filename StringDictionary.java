@@ -0,0 +1,371 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * StringDictionary encodes the values of a low-cardinality string column of a
+ * table as int codes. The column is stored as an INT_TYPE column of codes, so
+ * that predicates, joins and group-bys on it compare ints, and the dictionary
+ * is kept in the Catalog to translate strings to codes and back.
+ * <p>
+ * The dictionary preserves order: the codes of two strings compare like the
+ * strings, so a range predicate on the strings is a range predicate on the
+ * codes (see translate). A new string gets the code halfway between the codes
+ * of its neighbours, or GAP past the first or last code, which leaves room for
+ * many values between any two; when two neighbours have adjacent codes, a
+ * string between them cannot be encoded until the dictionary is rebalanced
+ * and the columns encoded with it are rewritten with the new codes (see
+ * Catalog#encodeStrings).
+ * <p>
+ * A rebalance gives the strings new codes, distinct from all the old ones,
+ * and keeps the old codes as retired codes which still decode to their
+ * strings, until finishRebalance is called once no row holds them. Until
+ * then, the rows holding old and new codes are decoded correctly, but their
+ * codes do not compare like their strings, and predicates on the column are
+ * evaluated on the strings (see translate).
+ * <p>
+ * Several columns, of one table or of several, may share a dictionary, which
+ * lets a join compare their codes.
+ * <p>
+ * The file of a dictionary is a log of records, each either a code given to
+ * a string, which retires the previous code of the string, or the end of a
+ * rebalance, which drops the retired codes. A record is forced to disk
+ * before the code it gives is returned, so that a page holding the code is
+ * never on disk before it; save rewrites the log without the records which
+ * no longer matter.
+ *
+ * @see Catalog#getDictionary
+ * @see DictionaryDecode
+ * @see DictionaryRecode
+ */
+public class StringDictionary {
+
+	/** Distance between the codes of strings added before the first or after the last */
+	public static final int GAP = 1 << 16;
+
+	private static final byte CODE_RECORD = 0;
+	private static final byte END_REBALANCE_RECORD = 1;
+
+	private final TreeMap<String, Integer> codes;
+	private final HashMap<Integer, String> values; // of the current and the retired codes
+	private final HashSet<Integer> retired;
+	private final File file;
+
+	/**
+	 * Create an empty dictionary which is not saved.
+	 */
+	public StringDictionary() {
+		this.codes = new TreeMap<String, Integer>();
+		this.values = new HashMap<Integer, String>();
+		this.retired = new HashSet<Integer>();
+		this.file = null;
+	}
+
+	/**
+	 * Create a dictionary backed by a file, reading the file if it exists.
+	 * @param file - the file the dictionary is saved to
+	 */
+	public StringDictionary(File file) throws IOException {
+		this.codes = new TreeMap<String, Integer>();
+		this.values = new HashMap<Integer, String>();
+		this.retired = new HashSet<Integer>();
+		this.file = file;
+		if (file.exists()) {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					int kind = dis.read();
+					if (kind == -1)
+						break;
+					if (kind == END_REBALANCE_RECORD) {
+						dropRetired();
+						continue;
+					}
+					int code = dis.readInt();
+					put(dis.readUTF(), code);
+				}
+			} catch (EOFException e) {
+				// a record cut short by a crash; its code was never returned
+			} finally {
+				dis.close();
+			}
+		}
+	}
+
+	/**
+	 * Give a string a code, retiring its previous code
+	 */
+	private void put(String s, int code) {
+		Integer old = codes.put(s, code);
+		if (old != null && old != code)
+			retired.add(old);
+		values.put(code, s);
+	}
+
+	private void dropRetired() {
+		for (int code : retired)
+			values.remove(code);
+		retired.clear();
+	}
+
+	/**
+	 * Append records to the file of the dictionary, if it has one, and force
+	 * them to disk.
+	 */
+	private void append(byte[] records) throws IOException {
+		if (file == null)
+			return;
+		FileOutputStream fos = new FileOutputStream(file, true);
+		try {
+			fos.write(records);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	private static void writeCode(DataOutputStream dos, String s, int code) throws IOException {
+		dos.writeByte(CODE_RECORD);
+		dos.writeInt(code);
+		dos.writeUTF(s);
+	}
+
+	/**
+	 * @return the number of strings in the dictionary
+	 */
+	public synchronized int size() {
+		return codes.size();
+	}
+
+	/**
+	 * @return true if the string has a code
+	 */
+	public synchronized boolean contains(String s) {
+		return codes.containsKey(s);
+	}
+
+	/**
+	 * Return the code of a string, giving it a new code if it has none. A new
+	 * code is on disk before it is returned.
+	 * @throws DbException if the codes of the neighbours of a new string
+	 *         leave no code between them, or the dictionary is being
+	 *         rebalanced
+	 */
+	public synchronized int encode(String s) throws DbException, IOException {
+		Integer code = codes.get(s);
+		if (code != null)
+			return code;
+		code = newCode(s);
+		if (code == null)
+			throw new DbException("no dictionary code left for " + s
+					+ "; the dictionary must be rebalanced");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writeCode(new DataOutputStream(baos), s, code);
+		append(baos.toByteArray());
+		put(s, code);
+		return code;
+	}
+
+	/**
+	 * @return true if the string has a code, or there is a code left for it
+	 *         and the dictionary is not being rebalanced
+	 */
+	public synchronized boolean canEncode(String s) {
+		return codes.containsKey(s) || newCode(s) != null;
+	}
+
+	/**
+	 * @return the code a new string would get, or null if the codes of its
+	 *         neighbours leave no code between them or the dictionary is
+	 *         being rebalanced, when a new code might be a retired one
+	 */
+	private Integer newCode(String s) {
+		if (!retired.isEmpty())
+			return null;
+		Map.Entry<String, Integer> lo = codes.lowerEntry(s);
+		Map.Entry<String, Integer> hi = codes.higherEntry(s);
+		long low = lo == null ? Integer.MIN_VALUE - 1L : lo.getValue();
+		long high = hi == null ? Integer.MAX_VALUE + 1L : hi.getValue();
+		long c;
+		if (lo == null && hi == null)
+			c = 0;
+		else if (lo == null)
+			c = Math.max(high - GAP, low + 1);
+		else if (hi == null)
+			c = Math.min(low + GAP, high - 1);
+		else
+			c = (low + high) >> 1;
+		if (c <= low || c >= high)
+			return null;
+		return (int) c;
+	}
+
+	/**
+	 * Start a rebalance: give the strings new codes, evenly spread over the
+	 * middle half of the int range, which leaves room for many strings
+	 * between any two and for GAP-spaced strings before the first and after
+	 * the last. The new codes keep the order of the strings and differ from
+	 * all the old codes, which are retired. Does nothing if a rebalance is
+	 * already under way.
+	 */
+	public synchronized void rebalance() throws IOException {
+		if (!retired.isEmpty())
+			return;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		LinkedHashMap<String, Integer> renumbered = new LinkedHashMap<String, Integer>();
+		long step = (1L << 31) / (codes.size() + 1);
+		long c = Integer.MIN_VALUE / 2;
+		long prev = Long.MIN_VALUE;
+		for (String s : codes.keySet()) {
+			c += step;
+			long code = Math.max(c, prev + 1);
+			while (values.containsKey((int) code))
+				code++;
+			prev = code;
+			renumbered.put(s, (int) code);
+			writeCode(dos, s, (int) code);
+		}
+		append(baos.toByteArray());
+		for (Map.Entry<String, Integer> e : renumbered.entrySet())
+			put(e.getKey(), e.getValue());
+	}
+
+	/**
+	 * @return true if a rebalance is under way
+	 */
+	public synchronized boolean isRebalancing() {
+		return !retired.isEmpty();
+	}
+
+	/**
+	 * @return the new code of the string of a retired code, or null if the
+	 *         code is not retired
+	 */
+	public synchronized Integer newCodeOf(int code) {
+		if (!retired.contains(code))
+			return null;
+		return codes.get(values.get(code));
+	}
+
+	/**
+	 * Finish a rebalance once no row holds a retired code: the retired codes
+	 * are dropped, and may be given to new strings.
+	 */
+	public synchronized void finishRebalance() throws IOException {
+		if (retired.isEmpty())
+			return;
+		append(new byte[] { END_REBALANCE_RECORD });
+		dropRetired();
+	}
+
+	/**
+	 * @return the string of a code
+	 * @throws NoSuchElementException if the code is not in the dictionary
+	 */
+	public synchronized String decode(int code) {
+		String s = values.get(code);
+		if (s == null)
+			throw new NoSuchElementException("no string has code " + code);
+		return s;
+	}
+
+	/**
+	 * Translate a predicate comparing the column with a string into a
+	 * predicate comparing the codes of the column, which holds for a code
+	 * exactly when the original predicate holds for its string. The string
+	 * does not have to be in the dictionary.
+	 *
+	 * @param pred - a predicate with a StringField operand
+	 * @return the predicate on the codes; for LIKE, or while the dictionary
+	 *         is being rebalanced, a StringPredicate
+	 */
+	public synchronized Predicate translate(Predicate pred) {
+		if (!retired.isEmpty())
+			return new StringPredicate(pred, this);
+		String s = ((StringField) pred.getOperand()).getValue();
+		int field = pred.getField();
+		// the smallest code of a string >= s, and the largest of a string <= s
+		Map.Entry<String, Integer> ceiling = codes.ceilingEntry(s);
+		Map.Entry<String, Integer> floor = codes.floorEntry(s);
+		Predicate all = new Predicate(field, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE));
+		Predicate none = new Predicate(field, Predicate.Op.GREATER_THAN, new IntField(Integer.MAX_VALUE));
+		Integer code = codes.get(s);
+		switch (pred.getOp()) {
+		case EQUALS:
+			return code == null ? none : new Predicate(field, Predicate.Op.EQUALS, new IntField(code));
+		case NOT_EQUALS:
+			return code == null ? all : new Predicate(field, Predicate.Op.NOT_EQUALS, new IntField(code));
+		case LESS_THAN:
+			return ceiling == null ? all
+					: new Predicate(field, Predicate.Op.LESS_THAN, new IntField(ceiling.getValue()));
+		case GREATER_THAN_OR_EQ:
+			return ceiling == null ? none
+					: new Predicate(field, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ceiling.getValue()));
+		case LESS_THAN_OR_EQ:
+			return floor == null ? none
+					: new Predicate(field, Predicate.Op.LESS_THAN_OR_EQ, new IntField(floor.getValue()));
+		case GREATER_THAN:
+			return floor == null ? all
+					: new Predicate(field, Predicate.Op.GREATER_THAN, new IntField(floor.getValue()));
+		default:
+			return new StringPredicate(pred, this);
+		}
+	}
+
+	/**
+	 * A predicate on a dictionary-encoded column which is evaluated on the
+	 * strings of the codes: it holds for a code when the predicate holds for
+	 * its string. The match of each code is remembered, so that each string
+	 * is matched once.
+	 */
+	static class StringPredicate extends Predicate {
+
+		private static final long serialVersionUID = 1L;
+		private final StringDictionary dict;
+		private final HashMap<Integer, Boolean> matches = new HashMap<Integer, Boolean>();
+
+		StringPredicate(Predicate pred, StringDictionary dict) {
+			super(pred.getField(), pred.getOp(), pred.getOperand());
+			this.dict = dict;
+		}
+
+		public boolean filter(Tuple t) {
+			int code = ((IntField) t.getField(getField())).getValue();
+			Boolean match = matches.get(code);
+			if (match == null) {
+				StringField s = new StringField(dict.decode(code), Type.STRING_LEN);
+				match = s.compare(getOp(), getOperand());
+				matches.put(code, match);
+			}
+			return match;
+		}
+	}
+
+	/**
+	 * Rewrite the file of the dictionary, if it has one, with a record for
+	 * each code still in use. The new file replaces the old one once it is
+	 * on disk.
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			// a retired code comes before the code which retires it
+			for (int code : retired)
+				writeCode(dos, values.get(code), code);
+			for (Map.Entry<String, Integer> e : codes.entrySet())
+				writeCode(dos, e.getKey(), e.getValue());
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file))
+			throw new IOException("cannot replace " + file);
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -66,6 +67,37 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	public void serialize(ByteBuffer buf) {
+		String s = value;
+		int overflow = maxSize - s.length();
+		if (overflow < 0) {
+			s = s.substring(0, maxSize);
+		}
+		buf.putInt(s.length());
+		for (int i = 0; i < s.length(); i++)
+			buf.put((byte) s.charAt(i));
+		// the buffer may be reused, so the padding is written out
+		while (overflow-- > 0)
+			buf.put((byte) 0);
+	}
+
+	/**
+	 * Read a StringField written by serialize from the position of a buffer,
+	 * and move the position past its padding.
+	 * 
+	 * @param buf
+	 *            The buffer to read from
+	 * @param maxSize
+	 *            The maximum size of the string
+	 */
+	public static StringField parse(ByteBuffer buf, int maxSize) {
+		int len = buf.getInt();
+		byte[] bs = new byte[len];
+		buf.get(bs);
+		buf.position(buf.position() + maxSize - len);
+		return new StringField(new String(bs), maxSize);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -105,6 +137,25 @@ public class StringField implements Field {
 		return false;
 	}
 
+	/**
+	 * Find the shortest prefix of this string which is still greater than the
+	 * given string. Used to truncate the separator keys of a B+ tree: any key
+	 * greater than lower and less than or equal to this string separates the two.
+	 * 
+	 * @param lower
+	 *            a string less than or equal to this string
+	 * @return the shortest prefix of this string greater than lower, or this
+	 *         field if the two strings are equal
+	 */
+	public StringField shortestSeparator(StringField lower) {
+		for (int len = 1; len < value.length(); len++) {
+			String prefix = value.substring(0, len);
+			if (prefix.compareTo(lower.value) > 0)
+				return new StringField(prefix, maxSize);
+		}
+		return this;
+	}
+
 	/**
 	 * @return the Type for this Field
 	 */
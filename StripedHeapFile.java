@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * StripedHeapFile is a HeapFile whose pages are spread round-robin over
+ * several files, usually in directories on different disks: page p is page
+ * p / n of stripe p % n. Consecutive pages of a scan are read from all the
+ * disks in turn, so that a table is not limited by the bandwidth of a single
+ * device.
+ * <p>
+ * The first stripe stands for the whole file: the id of the table is that of
+ * the first stripe, and the side files of the table (checksums, page filters,
+ * zone maps) are kept next to it. Pages are only ever added at the end of a
+ * HeapFile, so the stripes grow in turn, and the stripes of a file must
+ * always be given in the same order.
+ *
+ * @see Tablespace
+ */
+public class StripedHeapFile extends HeapFile {
+
+    private final File[] stripes;
+
+    /**
+     * Constructs a heap file striped over the given files.
+     *
+     * @param stripes
+     *            the files holding the pages, in order
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     * @param layout
+     *            the format of the pages
+     * @param pageSize
+     *            the number of bytes of a page, or 0 for
+     *            BufferPool.getPageSize()
+     */
+    public StripedHeapFile(File[] stripes, TupleDesc td, Layout layout, int pageSize) {
+        super(stripes[0], td, layout, pageSize);
+        this.stripes = stripes.clone();
+    }
+
+    /**
+     * @return the files holding the pages, in order
+     */
+    public File[] getStripes() {
+        return stripes.clone();
+    }
+
+    protected File fileOf(int pageNo) {
+        return stripes[pageNo % stripes.length];
+    }
+
+    protected long offsetOf(int pageNo) {
+        return (long) (pageNo / stripes.length) * getPageSize();
+    }
+
+    /**
+     * A page may be written to any stripe, so the pages were last written
+     * when the most recently written stripe was.
+     */
+    protected long lastModified() {
+        long last = 0;
+        for (File stripe : stripes)
+            last = Math.max(last, stripe.lastModified());
+        return last;
+    }
+
+    /**
+     * Returns the number of pages in this file, over all its stripes.
+     */
+    public int numPages() {
+        int pages = 0;
+        for (File stripe : stripes)
+            pages += (int) (stripe.length() / getPageSize());
+        return pages;
+    }
+}
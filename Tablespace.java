@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A Tablespace is a named set of directories, usually on different disks,
+ * that the files of tables and indexes are placed in. A file which is not
+ * striped goes into one of the directories, chosen by its name so that the
+ * files of a tablespace spread over its directories; a striped heap file has
+ * a stripe in every directory.
+ * <p>
+ * The directories of a tablespace must keep their order once files are
+ * placed in it, since both the placement of a file and the order of the
+ * stripes depend on it.
+ *
+ * @see Catalog#addTablespace
+ * @see StripedHeapFile
+ */
+public class Tablespace {
+
+    private final String name;
+    private final File[] dirs;
+
+    /**
+     * Create a tablespace.
+     *
+     * @param name
+     *            the name of the tablespace
+     * @param dirs
+     *            its directories, in order
+     */
+    public Tablespace(String name, File... dirs) {
+        if (dirs.length == 0)
+            throw new IllegalArgumentException("tablespace " + name + " has no directory");
+        this.name = name;
+        this.dirs = dirs.clone();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the directories of the tablespace, in order
+     */
+    public File[] getDirectories() {
+        return dirs.clone();
+    }
+
+    /**
+     * @return the file of the given name in the directory the tablespace
+     *         places it in
+     */
+    public File fileFor(String fileName) {
+        return new File(dirs[Math.floorMod(fileName.hashCode(), dirs.length)], fileName);
+    }
+
+    /**
+     * @return a file of the given name in each directory, in order
+     */
+    public File[] stripesFor(String fileName) {
+        File[] stripes = new File[dirs.length];
+        for (int i = 0; i < dirs.length; i++)
+            stripes[i] = new File(dirs[i], fileName);
+        return stripes;
+    }
+
+    /**
+     * Open a heap file in the tablespace, striped over all the directories
+     * if there are several.
+     *
+     * @param fileName
+     *            the name of the file, or of each of its stripes
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     * @param layout
+     *            the format of the pages
+     * @param pageSize
+     *            the number of bytes of a page, or 0 for
+     *            BufferPool.getPageSize()
+     */
+    public HeapFile openHeapFile(String fileName, TupleDesc td, HeapFile.Layout layout, int pageSize) {
+        if (dirs.length == 1)
+            return new HeapFile(new File(dirs[0], fileName), td, layout, pageSize);
+        return new StripedHeapFile(stripesFor(fileName), td, layout, pageSize);
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -180,6 +181,23 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * Read the ith field of a tuple of this TupleDesc from the position of a
+     * buffer, in the format written by Field.serialize.
+     * 
+     * @param i
+     *            index of the field
+     * @param buf
+     *            the buffer to read from
+     * @return the field
+     */
+    public Field parseField(int i, ByteBuffer buf) {
+        Type type = getFieldType(i);
+        if (type == Type.INT_TYPE)
+            return IntField.parse(buf);
+        return StringField.parse(buf, type.getLen() - 4);
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.